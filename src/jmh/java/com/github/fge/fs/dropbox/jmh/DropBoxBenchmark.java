@@ -0,0 +1,127 @@
+package com.github.fge.fs.dropbox.jmh;
+
+import com.github.fge.filesystem.provider.FileSystemRepository;
+import com.github.fge.fs.dropbox.misc.DropBoxEnv;
+import com.github.fge.fs.dropbox.provider.DropBoxFileSystemProvider;
+import com.github.fge.fs.dropbox.provider.DropBoxFileSystemRepository;
+import com.github.fge.fs.dropbox.rpc.PooledHttpRequestor;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base class of benchmarks run against a {@link FakeDropBoxServer}
+ *
+ * <p>For each trial, a new server is started with the latency, bandwidth and
+ * error rate given as parameters, filled by {@link
+ * #populate(FakeDropBoxServer)}, and a filesystem is created over it; the
+ * filesystem uses the real DropBox client, only the HTTP requests end up on
+ * the fake server.</p>
+ *
+ * <p>Parameters can be overridden from the command line, for instance {@code
+ * -p latency=50 -p bandwidth=1048576}.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public abstract class DropBoxBenchmark
+{
+    private static final AtomicInteger FILESYSTEMS = new AtomicInteger();
+
+    /**
+     * Latency added to each request by the server, in milliseconds
+     */
+    @Param("0")
+    public long latency;
+
+    /**
+     * Maximum transfer rate of bodies, in bytes per second; 0 for no limit
+     */
+    @Param("0")
+    public long bandwidth;
+
+    /**
+     * Fraction of requests failing with a 503 status
+     */
+    @Param("0")
+    public double errorRate;
+
+    protected FakeDropBoxServer server;
+    protected FileSystem fs;
+
+    @Setup
+    public final void setUp()
+        throws IOException
+    {
+        server = new FakeDropBoxServer(latency, bandwidth, errorRate);
+        server.start();
+        populate(server);
+
+        final Map<String, Object> env = new HashMap<>();
+        env.put(DropBoxEnv.ACCESS_TOKEN, "benchmark");
+        env.put(DropBoxEnv.HOST, server.getHost());
+        env.put(DropBoxEnv.HTTP_REQUESTOR, server.newRequestor(
+            new PooledHttpRequestor(PooledHttpRequestor.DEFAULT_MAX_CONNECTIONS,
+                PooledHttpRequestor.DEFAULT_CONNECT_TIMEOUT,
+                PooledHttpRequestor.DEFAULT_READ_TIMEOUT, true)));
+        env.put(DropBoxEnv.JMX_ENABLED, false);
+        configure(env);
+
+        /*
+         * Each trial needs its own filesystem
+         */
+        final URI uri = URI.create("dropbox://benchmark"
+            + FILESYSTEMS.incrementAndGet() + '/');
+        final FileSystemRepository repository
+            = new DropBoxFileSystemRepository();
+        fs = new DropBoxFileSystemProvider(repository).newFileSystem(uri, env);
+    }
+
+    @TearDown
+    public final void tearDown()
+        throws IOException
+    {
+        try {
+            fs.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Create the files and directories used by the benchmark
+     *
+     * @param server the server
+     */
+    protected abstract void populate(final FakeDropBoxServer server);
+
+    /**
+     * Add entries to the environment used to create the filesystem
+     *
+     * <p>This implementation does nothing.</p>
+     *
+     * @param env the environment
+     */
+    protected void configure(final Map<String, Object> env)
+    {
+    }
+}
@@ -0,0 +1,934 @@
+package com.github.fge.fs.dropbox.jmh;
+
+import com.dropbox.core.DbxHost;
+import com.dropbox.core.http.HttpRequestor;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process, in-memory imitation of the DropBox API (version 1)
+ *
+ * <p>This server implements the subset of the API used by the filesystem:
+ * metadata (with children and listing hashes), account info, file operations
+ * (create folder, delete, copy, move), downloads (including range requests),
+ * single request uploads, chunked uploads, and the initial enumeration of the
+ * delta API (it does not track changes: a cursor is only good for fetching
+ * the next page). It serves both the API and
+ * content hosts on the same loopback port, over plain HTTP; see {@link
+ * #getHost()} and {@link #newRequestor(HttpRequestor)} for how to make the
+ * SDK talk to it.</p>
+ *
+ * <p>The server can be made to behave like a remote one:</p>
+ *
+ * <ul>
+ *     <li>a fixed latency is added before each response;</li>
+ *     <li>request and response bodies are transferred no faster than a given
+ *     bandwidth;</li>
+ *     <li>a given fraction of requests fail with a 503 status, which clients
+ *     retry.</li>
+ * </ul>
+ *
+ * <p>Access tokens are not checked.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class FakeDropBoxServer
+    implements Closeable
+{
+    private static final String DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss";
+    private static final int BUFFER_SIZE = 16384;
+
+    private static final String METADATA = "/1/metadata/auto";
+    private static final String ACCOUNT_INFO = "/1/account/info";
+    private static final String CREATE_FOLDER = "/1/fileops/create_folder";
+    private static final String DELETE = "/1/fileops/delete";
+    private static final String COPY = "/1/fileops/copy";
+    private static final String MOVE = "/1/fileops/move";
+    private static final String FILES = "/1/files/auto";
+    private static final String FILES_PUT = "/1/files_put/auto";
+    private static final String CHUNKED_UPLOAD = "/1/chunked_upload";
+    private static final String COMMIT_CHUNKED_UPLOAD
+        = "/1/commit_chunked_upload/auto";
+    private static final String DELTA = "/1/delta";
+
+    private static final int DELTA_PAGE_SIZE = 2000;
+
+    private static final long QUOTA = 1L << 40;
+
+    private static final String HOST = "fake-dropbox.invalid";
+
+    private final long latency;
+    private final long bandwidth;
+    private final double errorRate;
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final AtomicLong revisions = new AtomicLong();
+    private final AtomicLong uploadIds = new AtomicLong();
+
+    /*
+     * Keyed by lowercase path; guarded by "nodes"
+     */
+    private final NavigableMap<String, Node> nodes = new TreeMap<>();
+    private final Map<String, ByteArrayOutputStream> uploads
+        = new HashMap<>();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Constructor
+     *
+     * @param latency latency added to each request, in milliseconds
+     * @param bandwidth maximum transfer rate of bodies, in bytes per second;
+     * 0 for no limit
+     * @param errorRate the fraction of requests failing with a 503 status,
+     * between 0 and 1
+     */
+    public FakeDropBoxServer(final long latency, final long bandwidth,
+        final double errorRate)
+    {
+        if (latency < 0L || bandwidth < 0L)
+            throw new IllegalArgumentException("latency and bandwidth cannot "
+                + "be negative");
+        if (errorRate < 0.0 || errorRate > 1.0)
+            throw new IllegalArgumentException("error rate must be between 0 "
+                + "and 1");
+        this.latency = latency;
+        this.bandwidth = bandwidth;
+        this.errorRate = errorRate;
+        nodes.put("/", new Node("/", true, null, nextRev()));
+    }
+
+    public FakeDropBoxServer()
+    {
+        this(0L, 0L, 0.0);
+    }
+
+    public void start()
+        throws IOException
+    {
+        server = HttpServer.create(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(final Runnable r)
+            {
+                final Thread t = new Thread(r, "fake-dropbox");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler()
+        {
+            @Override
+            public void handle(final HttpExchange exchange)
+                throws IOException
+            {
+                try {
+                    dispatch(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Get the host to give to the filesystem (see {@link
+     * com.github.fge.fs.dropbox.misc.DropBoxEnv#HOST})
+     *
+     * <p>The SDK cannot build URLs with a port; requests must therefore go
+     * through the requestor returned by {@link #newRequestor(HttpRequestor)},
+     * which sends requests for this host to the server.</p>
+     *
+     * @return the host
+     */
+    public DbxHost getHost()
+    {
+        return new DbxHost(HOST, HOST, HOST);
+    }
+
+    /**
+     * Create a requestor sending requests for {@link #getHost()} to this
+     * server
+     *
+     * @param delegate the requestor to send requests with
+     * @return a new requestor
+     */
+    public HttpRequestor newRequestor(final HttpRequestor delegate)
+    {
+        final InetSocketAddress address = server.getAddress();
+        return new PlainHttpRequestor(delegate, HOST,
+            address.getAddress().getHostAddress() + ':' + address.getPort());
+    }
+
+    /**
+     * Create a file, and its parent folders if needed
+     *
+     * @param path the path
+     * @param contents the contents
+     */
+    public void putFile(final String path, final byte[] contents)
+    {
+        synchronized (nodes) {
+            makeParents(path);
+            nodes.put(key(path),
+                new Node(path, false, contents.clone(), nextRev()));
+        }
+    }
+
+    /**
+     * Create a folder, and its parent folders if needed
+     *
+     * @param path the path
+     */
+    public void putFolder(final String path)
+    {
+        synchronized (nodes) {
+            makeParents(path);
+            if (!nodes.containsKey(key(path)))
+                nodes.put(key(path), new Node(path, true, null, nextRev()));
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if (server != null)
+            server.stop(0);
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    private void dispatch(final HttpExchange exchange)
+        throws IOException
+    {
+        final String path = exchange.getRequestURI().getPath();
+        final Map<String, String> params = params(exchange);
+
+        sleep(latency);
+
+        if (errorRate > 0.0
+            && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            drain(exchange.getRequestBody());
+            sendError(exchange, 503, "injected error");
+            return;
+        }
+
+        if (path.startsWith(METADATA))
+            metadata(exchange, path.substring(METADATA.length()), params);
+        else if (path.equals(ACCOUNT_INFO))
+            accountInfo(exchange);
+        else if (path.equals(CREATE_FOLDER))
+            createFolder(exchange, params.get("path"));
+        else if (path.equals(DELETE))
+            delete(exchange, params.get("path"));
+        else if (path.equals(COPY))
+            transfer(exchange, params.get("from_path"), params.get("to_path"),
+                false);
+        else if (path.equals(MOVE))
+            transfer(exchange, params.get("from_path"), params.get("to_path"),
+                true);
+        else if (path.startsWith(FILES_PUT))
+            filesPut(exchange, path.substring(FILES_PUT.length()));
+        else if (path.startsWith(FILES))
+            files(exchange, path.substring(FILES.length()));
+        else if (path.equals(CHUNKED_UPLOAD))
+            chunkedUpload(exchange, params);
+        else if (path.startsWith(COMMIT_CHUNKED_UPLOAD))
+            commitChunkedUpload(exchange,
+                path.substring(COMMIT_CHUNKED_UPLOAD.length()), params);
+        else if (path.equals(DELTA))
+            delta(exchange, params.get("cursor"), params.get("path_prefix"));
+        else
+            sendError(exchange, 400, "unsupported call: " + path);
+    }
+
+    private void metadata(final HttpExchange exchange, final String path,
+        final Map<String, String> params)
+        throws IOException
+    {
+        final boolean list = !"false".equals(params.get("list"));
+        final Node node;
+        final List<Node> children = new ArrayList<>();
+
+        synchronized (nodes) {
+            node = nodes.get(key(path));
+            if (node != null && node.folder && list)
+                children.addAll(children(path));
+        }
+
+        if (node == null) {
+            sendError(exchange, 404, "path not found");
+            return;
+        }
+
+        if (!node.folder || !list) {
+            sendEntry(exchange, node);
+            return;
+        }
+
+        final String hash = hash(children);
+
+        if (hash.equals(params.get("hash"))) {
+            exchange.sendResponseHeaders(304, -1L);
+            return;
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (
+            final JsonGenerator generator = jsonFactory.createGenerator(out);
+        ) {
+            generator.writeStartObject();
+            writeEntryFields(generator, node);
+            generator.writeStringField("hash", hash);
+            generator.writeArrayFieldStart("contents");
+            for (final Node child: children) {
+                generator.writeStartObject();
+                writeEntryFields(generator, child);
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+
+        sendJson(exchange, 200, out.toByteArray());
+    }
+
+    private void delta(final HttpExchange exchange,
+        @Nullable final String cursor, @Nullable final String prefix)
+        throws IOException
+    {
+        final int offset = cursor == null ? 0 : Integer.parseInt(cursor);
+        final List<Node> page = new ArrayList<>();
+        boolean more = false;
+
+        synchronized (nodes) {
+            final List<Node> all = new ArrayList<>();
+            if (prefix == null || "/".equals(prefix))
+                all.addAll(nodes.tailMap("/", false).values());
+            else {
+                final String key = key(prefix);
+                final Node node = nodes.get(key);
+                if (node != null) {
+                    all.add(node);
+                    all.addAll(nodes.subMap(key + '/', true, key + '0',
+                        false).values());
+                }
+            }
+            for (int i = offset; i < all.size(); i++) {
+                if (page.size() == DELTA_PAGE_SIZE) {
+                    more = true;
+                    break;
+                }
+                page.add(all.get(i));
+            }
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (
+            final JsonGenerator generator = jsonFactory.createGenerator(out);
+        ) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("entries");
+            for (final Node node: page) {
+                generator.writeStartArray();
+                generator.writeString(key(node.path));
+                generator.writeStartObject();
+                writeEntryFields(generator, node);
+                generator.writeEndObject();
+                generator.writeEndArray();
+            }
+            generator.writeEndArray();
+            generator.writeBooleanField("reset", offset == 0);
+            generator.writeStringField("cursor",
+                Integer.toString(offset + page.size()));
+            generator.writeBooleanField("has_more", more);
+            generator.writeEndObject();
+        }
+
+        sendJson(exchange, 200, out.toByteArray());
+    }
+
+    private void accountInfo(final HttpExchange exchange)
+        throws IOException
+    {
+        long used = 0L;
+
+        synchronized (nodes) {
+            for (final Node node: nodes.values())
+                if (!node.folder)
+                    used += node.data.length;
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (
+            final JsonGenerator generator = jsonFactory.createGenerator(out);
+        ) {
+            generator.writeStartObject();
+            generator.writeNumberField("uid", 1L);
+            generator.writeStringField("display_name", "Fake DropBox");
+            generator.writeStringField("country", "US");
+            generator.writeStringField("referral_link",
+                "https://www.dropbox.com/referrals/fake");
+            generator.writeObjectFieldStart("quota_info");
+            generator.writeNumberField("quota", QUOTA);
+            generator.writeNumberField("normal", used);
+            generator.writeNumberField("shared", 0L);
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+
+        sendJson(exchange, 200, out.toByteArray());
+    }
+
+    private void createFolder(final HttpExchange exchange,
+        @Nullable final String path)
+        throws IOException
+    {
+        if (path == null) {
+            sendError(exchange, 400, "missing path");
+            return;
+        }
+
+        final Node node;
+
+        synchronized (nodes) {
+            if (nodes.containsKey(key(path))) {
+                node = null;
+            } else {
+                makeParents(path);
+                node = new Node(path, true, null, nextRev());
+                nodes.put(key(path), node);
+            }
+        }
+
+        if (node == null)
+            sendError(exchange, 403, "path already exists");
+        else
+            sendEntry(exchange, node);
+    }
+
+    private void delete(final HttpExchange exchange,
+        @Nullable final String path)
+        throws IOException
+    {
+        if (path == null) {
+            sendError(exchange, 400, "missing path");
+            return;
+        }
+
+        final Node node;
+
+        synchronized (nodes) {
+            node = nodes.get(key(path));
+            if (node != null)
+                removeTree(path);
+        }
+
+        if (node == null)
+            sendError(exchange, 404, "path not found");
+        else
+            sendEntry(exchange, node);
+    }
+
+    private void transfer(final HttpExchange exchange,
+        @Nullable final String from, @Nullable final String to,
+        final boolean move)
+        throws IOException
+    {
+        if (from == null || to == null) {
+            sendError(exchange, 400, "missing path");
+            return;
+        }
+
+        final Node node;
+        final int status;
+
+        synchronized (nodes) {
+            final Node src = nodes.get(key(from));
+            if (src == null) {
+                status = 404;
+                node = null;
+            } else if (nodes.containsKey(key(to))) {
+                status = 403;
+                node = null;
+            } else {
+                status = 200;
+                makeParents(to);
+                final String prefix = key(from);
+                final List<Node> moved = new ArrayList<>();
+                moved.add(src);
+                moved.addAll(nodes.subMap(prefix + '/', true, prefix + '0',
+                    false).values());
+                for (final Node n: moved)
+                    nodes.put(key(to + n.path.substring(from.length())),
+                        new Node(to + n.path.substring(from.length()),
+                            n.folder, n.data, nextRev()));
+                if (move)
+                    removeTree(from);
+                node = nodes.get(key(to));
+            }
+        }
+
+        if (node == null)
+            sendError(exchange, status, status == 404 ? "path not found"
+                : "destination already exists");
+        else
+            sendEntry(exchange, node);
+    }
+
+    private void files(final HttpExchange exchange, final String path)
+        throws IOException
+    {
+        final Node node;
+
+        synchronized (nodes) {
+            node = nodes.get(key(path));
+        }
+
+        if (node == null || node.folder) {
+            sendError(exchange, 404, "file not found");
+            return;
+        }
+
+        final byte[] data = node.data;
+        final String range = exchange.getRequestHeaders().getFirst("Range");
+        long start = 0L;
+        long end = data.length - 1L;
+        int status = 200;
+
+        if (range != null && range.startsWith("bytes=")) {
+            final String spec = range.substring("bytes=".length());
+            final int dash = spec.indexOf('-');
+            start = Long.parseLong(spec.substring(0, dash));
+            if (dash < spec.length() - 1)
+                end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+            if (start >= data.length) {
+                exchange.getResponseHeaders().set("Content-Range",
+                    "bytes */" + data.length);
+                exchange.sendResponseHeaders(416, -1L);
+                return;
+            }
+            status = 206;
+            exchange.getResponseHeaders().set("Content-Range",
+                "bytes " + start + '-' + end + '/' + data.length);
+        }
+
+        exchange.getResponseHeaders().set("x-dropbox-metadata",
+            new String(entryJson(node), StandardCharsets.UTF_8));
+
+        /*
+         * For an empty file, a length of 0 means a chunked body with no
+         * chunks; -1 would mean no body and no length at all, which leaves
+         * the client unable to reuse the connection
+         */
+        final int len = (int) (end - start + 1L);
+        exchange.sendResponseHeaders(status, len);
+        try (
+            final OutputStream out = exchange.getResponseBody();
+        ) {
+            write(out, data, (int) start, len);
+        }
+    }
+
+    private void filesPut(final HttpExchange exchange, final String path)
+        throws IOException
+    {
+        final byte[] data = read(exchange.getRequestBody());
+        final Node node = store(path, data);
+
+        if (node == null)
+            sendError(exchange, 403, "a folder exists at this path");
+        else
+            sendEntry(exchange, node);
+    }
+
+    private void chunkedUpload(final HttpExchange exchange,
+        final Map<String, String> params)
+        throws IOException
+    {
+        final byte[] data = read(exchange.getRequestBody());
+        String uploadId = params.get("upload_id");
+        final long offset = params.containsKey("offset")
+            ? Long.parseLong(params.get("offset")) : 0L;
+        final long current;
+        boolean mismatch = false;
+
+        synchronized (nodes) {
+            ByteArrayOutputStream upload = uploadId == null ? null
+                : uploads.get(uploadId);
+            if (uploadId == null) {
+                uploadId = Long.toHexString(uploadIds.incrementAndGet());
+                upload = new ByteArrayOutputStream();
+                uploads.put(uploadId, upload);
+            }
+            if (upload == null) {
+                sendError(exchange, 404, "no such upload");
+                return;
+            }
+            if (offset == upload.size())
+                upload.write(data, 0, data.length);
+            else
+                mismatch = true;
+            current = upload.size();
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (
+            final JsonGenerator generator = jsonFactory.createGenerator(out);
+        ) {
+            generator.writeStartObject();
+            generator.writeStringField("upload_id", uploadId);
+            generator.writeNumberField("offset", current);
+            generator.writeEndObject();
+        }
+
+        sendJson(exchange, mismatch ? 400 : 200, out.toByteArray());
+    }
+
+    private void commitChunkedUpload(final HttpExchange exchange,
+        final String path, final Map<String, String> params)
+        throws IOException
+    {
+        final String uploadId = params.get("upload_id");
+        final ByteArrayOutputStream upload;
+
+        synchronized (nodes) {
+            upload = uploadId == null ? null : uploads.remove(uploadId);
+        }
+
+        if (upload == null) {
+            sendError(exchange, 400, "no such upload");
+            return;
+        }
+
+        final Node node = store(path, upload.toByteArray());
+
+        if (node == null)
+            sendError(exchange, 403, "a folder exists at this path");
+        else
+            sendEntry(exchange, node);
+    }
+
+    /*
+     * Returns null if there is a folder at this path
+     */
+    @Nullable
+    private Node store(final String path, final byte[] data)
+    {
+        final Node node = new Node(path, false, data, nextRev());
+
+        synchronized (nodes) {
+            final Node existing = nodes.get(key(path));
+            if (existing != null && existing.folder)
+                return null;
+            makeParents(path);
+            nodes.put(key(path), node);
+        }
+
+        return node;
+    }
+
+    /*
+     * All of the following must be called with the lock held
+     */
+
+    private List<Node> children(final String path)
+    {
+        final String prefix = "/".equals(path) ? "/" : key(path) + '/';
+        final List<Node> ret = new ArrayList<>();
+
+        for (final Map.Entry<String, Node> entry:
+            nodes.tailMap(prefix, false).entrySet()) {
+            if (!entry.getKey().startsWith(prefix))
+                break;
+            if (entry.getKey().indexOf('/', prefix.length()) == -1)
+                ret.add(entry.getValue());
+        }
+
+        return ret;
+    }
+
+    private void makeParents(final String path)
+    {
+        int index = path.indexOf('/', 1);
+        String parent;
+
+        while (index != -1) {
+            parent = path.substring(0, index);
+            if (!nodes.containsKey(key(parent)))
+                nodes.put(key(parent), new Node(parent, true, null, nextRev()));
+            index = path.indexOf('/', index + 1);
+        }
+    }
+
+    private void removeTree(final String path)
+    {
+        final String prefix = key(path);
+        nodes.remove(prefix);
+        /*
+         * '0' is the character following '/'
+         */
+        nodes.subMap(prefix + '/', true, prefix + '0', false).clear();
+    }
+
+    private void sendEntry(final HttpExchange exchange, final Node node)
+        throws IOException
+    {
+        sendJson(exchange, 200, entryJson(node));
+    }
+
+    private byte[] entryJson(final Node node)
+        throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (
+            final JsonGenerator generator = jsonFactory.createGenerator(out);
+        ) {
+            generator.writeStartObject();
+            writeEntryFields(generator, node);
+            generator.writeEndObject();
+        }
+
+        return out.toByteArray();
+    }
+
+    private static void writeEntryFields(final JsonGenerator generator,
+        final Node node)
+        throws IOException
+    {
+        final long size = node.folder ? 0L : node.data.length;
+        final String date = formatDate(node.modified);
+
+        generator.writeStringField("path", node.path);
+        generator.writeBooleanField("is_dir", node.folder);
+        generator.writeStringField("icon", node.folder ? "folder"
+            : "page_white");
+        generator.writeBooleanField("thumb_exists", false);
+        generator.writeStringField("rev", node.rev);
+        generator.writeNumberField("bytes", size);
+        generator.writeStringField("size", size + " bytes");
+        generator.writeStringField("modified", date);
+        if (!node.folder)
+            generator.writeStringField("client_mtime", date);
+        generator.writeStringField("root", "dropbox");
+    }
+
+    private void sendJson(final HttpExchange exchange, final int status,
+        final byte[] json)
+        throws IOException
+    {
+        exchange.getResponseHeaders().set("Content-Type",
+            "application/json");
+        exchange.sendResponseHeaders(status, json.length);
+        try (
+            final OutputStream out = exchange.getResponseBody();
+        ) {
+            write(out, json, 0, json.length);
+        }
+    }
+
+    private void sendError(final HttpExchange exchange, final int status,
+        final String message)
+        throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (
+            final JsonGenerator generator = jsonFactory.createGenerator(out);
+        ) {
+            generator.writeStartObject();
+            generator.writeStringField("error", message);
+            generator.writeEndObject();
+        }
+
+        sendJson(exchange, status, out.toByteArray());
+    }
+
+    /*
+     * Bandwidth limited transfers
+     */
+
+    private void write(final OutputStream out, final byte[] data,
+        final int off, final int len)
+        throws IOException
+    {
+        int done = 0;
+        int n;
+
+        while (done < len) {
+            n = Math.min(BUFFER_SIZE, len - done);
+            out.write(data, off + done, n);
+            done += n;
+            throttle(n);
+        }
+    }
+
+    private byte[] read(final InputStream in)
+        throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[BUFFER_SIZE];
+        int n;
+
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+            throttle(n);
+        }
+
+        return out.toByteArray();
+    }
+
+    private void throttle(final int bytes)
+        throws InterruptedIOException
+    {
+        if (bandwidth > 0L)
+            sleep(TimeUnit.SECONDS.toMillis(bytes) / bandwidth);
+    }
+
+    private static void drain(final InputStream in)
+        throws IOException
+    {
+        final byte[] buf = new byte[BUFFER_SIZE];
+
+        //noinspection StatementWithEmptyBody
+        while (in.read(buf) != -1)
+            ;
+    }
+
+    private static void sleep(final long millis)
+        throws InterruptedIOException
+    {
+        if (millis <= 0L)
+            return;
+
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private Map<String, String> params(final HttpExchange exchange)
+        throws IOException
+    {
+        final Map<String, String> ret = new HashMap<>();
+
+        parseParams(exchange.getRequestURI().getRawQuery(), ret);
+
+        final String type
+            = exchange.getRequestHeaders().getFirst("Content-Type");
+        if ("POST".equals(exchange.getRequestMethod()) && type != null
+            && type.startsWith("application/x-www-form-urlencoded"))
+            parseParams(new String(read(exchange.getRequestBody()),
+                StandardCharsets.UTF_8), ret);
+
+        return ret;
+    }
+
+    private static void parseParams(@Nullable final String s,
+        final Map<String, String> params)
+        throws UnsupportedEncodingException
+    {
+        if (s == null || s.isEmpty())
+            return;
+
+        int index;
+
+        for (final String param: s.split("&")) {
+            index = param.indexOf('=');
+            if (index == -1)
+                continue;
+            params.put(URLDecoder.decode(param.substring(0, index), "UTF-8"),
+                URLDecoder.decode(param.substring(index + 1), "UTF-8"));
+        }
+    }
+
+    private static String hash(final List<Node> children)
+    {
+        long hash = 17L;
+
+        for (final Node child: children)
+            hash = 31L * hash + (child.path + child.rev).hashCode();
+
+        return Long.toHexString(hash);
+    }
+
+    private String nextRev()
+    {
+        return Long.toHexString(revisions.incrementAndGet()) + "0fake";
+    }
+
+    private static String formatDate(final Date date)
+    {
+        final SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT,
+            Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(date) + " +0000";
+    }
+
+    private static String key(final String path)
+    {
+        return path.toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Node
+    {
+        private final String path;
+        private final boolean folder;
+        private final byte[] data;
+        private final String rev;
+        private final Date modified = new Date();
+
+        private Node(final String path, final boolean folder,
+            @Nullable final byte[] data, final String rev)
+        {
+            this.path = path;
+            this.folder = folder;
+            this.data = data;
+            this.rev = rev;
+        }
+    }
+}
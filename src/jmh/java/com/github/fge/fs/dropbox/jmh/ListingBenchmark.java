@@ -0,0 +1,69 @@
+package com.github.fge.fs.dropbox.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Listing of a directory
+ *
+ * <p>{@link #list()} only iterates over the entries; {@link
+ * #listAndReadAttributes()} also reads the attributes of each of them, which
+ * the metadata returned by the listing should make cheap.</p>
+ */
+@State(Scope.Benchmark)
+public class ListingBenchmark
+    extends DropBoxBenchmark
+{
+    private static final byte[] CONTENTS = new byte[16];
+
+    @Param({ "100", "10000" })
+    public int entries;
+
+    @Override
+    protected void populate(final FakeDropBoxServer server)
+    {
+        for (int i = 0; i < entries; i++)
+            server.putFile("/listing/file" + i, CONTENTS);
+    }
+
+    @Benchmark
+    public int list()
+        throws IOException
+    {
+        int count = 0;
+
+        try (
+            final DirectoryStream<Path> stream
+                = Files.newDirectoryStream(fs.getPath("/listing"));
+        ) {
+            for (final Path ignored: stream)
+                count++;
+        }
+
+        return count;
+    }
+
+    @Benchmark
+    public long listAndReadAttributes()
+        throws IOException
+    {
+        long total = 0L;
+
+        try (
+            final DirectoryStream<Path> stream
+                = Files.newDirectoryStream(fs.getPath("/listing"));
+        ) {
+            for (final Path path: stream)
+                total += Files.size(path);
+        }
+
+        return total;
+    }
+}
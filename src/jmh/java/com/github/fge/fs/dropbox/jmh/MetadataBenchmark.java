@@ -0,0 +1,84 @@
+package com.github.fge.fs.dropbox.jmh;
+
+import com.github.fge.fs.dropbox.misc.DropBoxEnv;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Metadata lookups of random files in a directory
+ *
+ * <p>{@code missing} checks the existence of random files which do not
+ * exist. With the {@code cached} parameter set to {@code false}, the metadata
+ * cache, including missing paths, is disabled and every lookup is an API
+ * call.</p>
+ */
+@State(Scope.Benchmark)
+public class MetadataBenchmark
+    extends DropBoxBenchmark
+{
+    private static final byte[] CONTENTS = new byte[16];
+
+    @Param("1000")
+    public int files;
+
+    @Param({ "true", "false" })
+    public boolean cached;
+
+    private Path[] paths;
+
+    @Override
+    protected void populate(final FakeDropBoxServer server)
+    {
+        for (int i = 0; i < files; i++)
+            server.putFile("/metadata/file" + i, CONTENTS);
+    }
+
+    @Override
+    protected void configure(final Map<String, Object> env)
+    {
+        if (cached)
+            return;
+        env.put(DropBoxEnv.METADATA_CACHE_SIZE, 0);
+        env.put(DropBoxEnv.METADATA_CACHE_ABSENT_SIZE, 0);
+    }
+
+    private Path randomPath()
+    {
+        if (paths == null) {
+            final Path[] array = new Path[files];
+            for (int i = 0; i < files; i++)
+                array[i] = fs.getPath("/metadata/file" + i);
+            paths = array;
+        }
+        return paths[ThreadLocalRandom.current().nextInt(files)];
+    }
+
+    @Benchmark
+    public BasicFileAttributes readAttributes()
+        throws IOException
+    {
+        return Files.readAttributes(randomPath(), BasicFileAttributes.class);
+    }
+
+    @Benchmark
+    public boolean exists()
+    {
+        return Files.exists(randomPath());
+    }
+
+    @Benchmark
+    public boolean missing()
+    {
+        final int index = ThreadLocalRandom.current().nextInt(files);
+        return Files.exists(fs.getPath("/metadata/missing" + index));
+    }
+}
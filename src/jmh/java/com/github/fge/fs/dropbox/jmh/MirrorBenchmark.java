@@ -0,0 +1,134 @@
+package com.github.fge.fs.dropbox.jmh;
+
+import com.github.fge.fs.dropbox.sync.DropBoxMirror;
+import com.github.fge.fs.dropbox.sync.SyncPlan;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Mirroring of a local tree to DropBox using {@link DropBoxMirror}
+ *
+ * <p>The local tree, in a temporary directory, and the remote tree both have
+ * {@code files} files, in directories of 1000 files each; they start
+ * identical. {@code plan} measures the comparison of both trees; {@code
+ * mirror} measures a full mirror operation after {@code changed} local files
+ * were modified.</p>
+ *
+ * <p>Run it with a nonzero latency, for instance {@code -p latency=20}: the
+ * remote tree should be read in a few API calls whatever its size, and API
+ * calls made per file would go unnoticed without latency.</p>
+ */
+@State(Scope.Benchmark)
+public class MirrorBenchmark
+    extends DropBoxBenchmark
+{
+    private static final int FILES_PER_DIRECTORY = 1000;
+
+    @Param("100000")
+    public int files;
+
+    @Param("100")
+    public int changed;
+
+    @Param("8")
+    public int threads;
+
+    private Path local;
+    private DropBoxMirror mirror;
+    private int generation = 0;
+
+    @Override
+    protected void populate(final FakeDropBoxServer server)
+    {
+        final byte[] contents = new byte[16];
+        String name;
+
+        try {
+            local = Files.createTempDirectory("dropbox-mirror-");
+            server.putFolder("/mirror");
+            for (int i = 0; i < files; i++) {
+                if (i % FILES_PER_DIRECTORY == 0) {
+                    name = "dir" + i / FILES_PER_DIRECTORY;
+                    Files.createDirectory(local.resolve(name));
+                    server.putFolder("/mirror/" + name);
+                }
+                name = "dir" + i / FILES_PER_DIRECTORY + "/file" + i;
+                Files.write(local.resolve(name), contents);
+                // after the local file: remote is not older
+                server.putFile("/mirror/" + name, contents);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot create local tree", e);
+        }
+
+        mirror = new DropBoxMirror(threads);
+    }
+
+    /*
+     * Sizes alternate between 16 and 17 bytes, so that modified files are
+     * always detected as such
+     */
+    @Setup(Level.Invocation)
+    public void modify()
+        throws IOException
+    {
+        final byte[] contents = new byte[16 + ++generation % 2];
+        final int step = Math.max(1, files / Math.max(1, changed));
+
+        for (int i = 0; i < changed && i * step < files; i++)
+            Files.write(local.resolve("dir" + i * step / FILES_PER_DIRECTORY
+                + "/file" + i * step), contents);
+    }
+
+    @TearDown
+    public void deleteLocal()
+        throws IOException
+    {
+        Files.walkFileTree(local, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(final Path file,
+                final BasicFileAttributes attrs)
+                throws IOException
+            {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir,
+                final IOException exc)
+                throws IOException
+            {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Benchmark
+    public SyncPlan plan()
+        throws IOException
+    {
+        return mirror.plan(local, fs.getPath("/mirror"));
+    }
+
+    @Benchmark
+    public SyncPlan mirror()
+        throws IOException
+    {
+        return mirror.mirror(local, fs.getPath("/mirror"), null);
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.fge.fs.dropbox.jmh;
+
+import com.github.fge.fs.dropbox.misc.DropBoxEnv;
+import com.github.fge.fs.dropbox.rpc.RequestExecutor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Metadata lookups while files are being uploaded
+ *
+ * <p>In the {@code mixed} group, one thread reads the attributes of random
+ * files, with the metadata cache disabled, while other threads keep uploading
+ * files of {@code size} bytes; the sample time mode reports percentiles of the
+ * latency of both. With {@code lanes} set to {@code false}, uploads may take
+ * all API call slots and lookups get no priority over them, which is how the
+ * latency of lookups would be without separate lanes.</p>
+ *
+ * <p>Use the {@code latency} and {@code bandwidth} parameters to make
+ * requests slow enough for calls to queue.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+public class MixedLoadBenchmark
+    extends DropBoxBenchmark
+{
+    private static final int FILES = 1000;
+    private static final int UPLOADERS = 24;
+
+    @Param("1048576")
+    public int size;
+
+    @Param({ "true", "false" })
+    public boolean lanes;
+
+    private byte[] contents;
+
+    @Override
+    protected void populate(final FakeDropBoxServer server)
+    {
+        final byte[] small = new byte[16];
+
+        for (int i = 0; i < FILES; i++)
+            server.putFile("/mixed/file" + i, small);
+
+        contents = new byte[size];
+        new Random(size).nextBytes(contents);
+    }
+
+    @Override
+    protected void configure(final Map<String, Object> env)
+    {
+        env.put(DropBoxEnv.METADATA_CACHE_SIZE, 0);
+        if (lanes)
+            return;
+        env.put(DropBoxEnv.REQUEST_BULK_CONCURRENCY,
+            RequestExecutor.DEFAULT_MAX_CONCURRENCY);
+        env.put(DropBoxEnv.REQUEST_METADATA_WEIGHT, 1);
+        env.put(DropBoxEnv.REQUEST_BULK_WEIGHT, 1);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public BasicFileAttributes lookup()
+        throws IOException
+    {
+        final int index = ThreadLocalRandom.current().nextInt(FILES);
+        return Files.readAttributes(fs.getPath("/mixed/file" + index),
+            BasicFileAttributes.class);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(UPLOADERS)
+    public void upload()
+        throws IOException
+    {
+        final String name = "/mixed/upload" + Thread.currentThread().getId();
+
+        try (
+            final OutputStream out = Files.newOutputStream(fs.getPath(name));
+        ) {
+            out.write(contents);
+        }
+    }
+}
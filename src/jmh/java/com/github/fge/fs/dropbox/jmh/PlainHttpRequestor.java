@@ -0,0 +1,82 @@
+package com.github.fge.fs.dropbox.jmh;
+
+import com.dropbox.core.http.HttpRequestor;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An {@link HttpRequestor} sending requests for a host to another address,
+ * over plain HTTP
+ *
+ * <p>The SDK always builds {@code https} URLs, and cannot build URLs with a
+ * port; this requestor rewrites URLs of the form {@code https://host/...} to
+ * {@code http://address/...} before handing them over to another requestor.
+ * </p>
+ *
+ * <p>The names of response headers are also turned to lowercase, which is
+ * how DropBox sends them, and how the SDK looks them up.</p>
+ *
+ * @see FakeDropBoxServer#newRequestor(HttpRequestor)
+ */
+@ParametersAreNonnullByDefault
+final class PlainHttpRequestor
+    extends HttpRequestor
+{
+    private final HttpRequestor delegate;
+    private final String from;
+    private final String to;
+
+    /**
+     * Constructor
+     *
+     * @param delegate the requestor to send requests with
+     * @param host the host to redirect
+     * @param address the address to redirect to, as {@code host:port}
+     */
+    PlainHttpRequestor(final HttpRequestor delegate, final String host,
+        final String address)
+    {
+        this.delegate = delegate;
+        from = "https://" + host + '/';
+        to = "http://" + address + '/';
+    }
+
+    @Override
+    public Response doGet(final String url, final Iterable<Header> headers)
+        throws IOException
+    {
+        final Response response = delegate.doGet(rewrite(url), headers);
+        final Map<String, List<String>> map = new HashMap<>();
+
+        for (final Map.Entry<String, ? extends List<String>> entry:
+            response.headers.entrySet())
+            map.put(entry.getKey() == null ? null
+                : entry.getKey().toLowerCase(Locale.ENGLISH), entry.getValue());
+
+        return new Response(response.statusCode, response.body, map);
+    }
+
+    @Override
+    public Uploader startPost(final String url, final Iterable<Header> headers)
+        throws IOException
+    {
+        return delegate.startPost(rewrite(url), headers);
+    }
+
+    @Override
+    public Uploader startPut(final String url, final Iterable<Header> headers)
+        throws IOException
+    {
+        return delegate.startPut(rewrite(url), headers);
+    }
+
+    private String rewrite(final String url)
+    {
+        return url.startsWith(from) ? to + url.substring(from.length()) : url;
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.fge.fs.dropbox.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Uploads and downloads of whole files
+ *
+ * <p>The default sizes cover a small file, uploaded in a single request, and
+ * a large one, uploaded in chunks. {@code firstByte} measures the time to
+ * open a file and read its first byte, which is mostly made of round
+ * trips.</p>
+ */
+@State(Scope.Benchmark)
+public class TransferBenchmark
+    extends DropBoxBenchmark
+{
+    private static final int BUFFER_SIZE = 65536;
+
+    @Param({ "4096", "16777216" })
+    public int size;
+
+    private byte[] contents;
+
+    @Override
+    protected void populate(final FakeDropBoxServer server)
+    {
+        contents = new byte[size];
+        new Random(size).nextBytes(contents);
+        server.putFile("/transfer/download", contents);
+    }
+
+    @Benchmark
+    public void upload()
+        throws IOException
+    {
+        final String name = "/transfer/upload"
+            + Thread.currentThread().getId();
+
+        try (
+            final OutputStream out = Files.newOutputStream(fs.getPath(name));
+        ) {
+            out.write(contents);
+        }
+    }
+
+    @Benchmark
+    public long download()
+        throws IOException
+    {
+        final byte[] buf = new byte[BUFFER_SIZE];
+        long total = 0L;
+        int read;
+
+        try (
+            final InputStream in
+                = Files.newInputStream(fs.getPath("/transfer/download"));
+        ) {
+            while ((read = in.read(buf)) != -1)
+                total += read;
+        }
+
+        return total;
+    }
+
+    @Benchmark
+    public int firstByte()
+        throws IOException
+    {
+        try (
+            final InputStream in
+                = Files.newInputStream(fs.getPath("/transfer/download"));
+        ) {
+            return in.read();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.fge.fs.dropbox.jmh;
+
+import com.github.fge.fs.dropbox.provider.DropBoxFileSystemProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Enumeration of a whole tree, using {@link Files#walkFileTree(Path,
+ * java.nio.file.FileVisitor)} or {@link
+ * DropBoxFileSystemProvider#newTreeStream(Path)}
+ *
+ * <p>The tree has {@code depth} levels of directories, each of them having
+ * {@code fanout} subdirectories and {@code fanout} files.</p>
+ */
+@State(Scope.Benchmark)
+public class TreeWalkBenchmark
+    extends DropBoxBenchmark
+{
+    private static final byte[] CONTENTS = new byte[16];
+
+    @Param("3")
+    public int depth;
+
+    @Param("8")
+    public int fanout;
+
+    @Override
+    protected void populate(final FakeDropBoxServer server)
+    {
+        populate(server, "/tree", depth);
+    }
+
+    private void populate(final FakeDropBoxServer server, final String dir,
+        final int levels)
+    {
+        server.putFolder(dir);
+        for (int i = 0; i < fanout; i++)
+            server.putFile(dir + "/file" + i, CONTENTS);
+        if (levels == 0)
+            return;
+        for (int i = 0; i < fanout; i++)
+            populate(server, dir + "/dir" + i, levels - 1);
+    }
+
+    @Benchmark
+    public long walk()
+        throws IOException
+    {
+        final long[] count = new long[1];
+
+        Files.walkFileTree(fs.getPath("/tree"), new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(final Path file,
+                final BasicFileAttributes attrs)
+            {
+                count[0]++;
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return count[0];
+    }
+
+    @Benchmark
+    public long enumerate()
+        throws IOException
+    {
+        final DropBoxFileSystemProvider provider
+            = (DropBoxFileSystemProvider) fs.provider();
+        long count = 0L;
+
+        try (
+            final DirectoryStream<Path> stream
+                = provider.newTreeStream(fs.getPath("/tree"));
+        ) {
+            for (final Path ignored: stream)
+                count++;
+        }
+
+        return count;
+    }
+}
@@ -22,11 +22,12 @@ public final class DropBoxBasicFileAttributesProvider
 {
     private final DbxEntry.File fileEntry;
 
-    public DropBoxBasicFileAttributesProvider(@Nonnull final DbxEntry entry)
+    public DropBoxBasicFileAttributesProvider(
+        @Nonnull final DropBoxMetadata metadata)
         throws IOException
     {
-        fileEntry = Objects.requireNonNull(entry).isFolder()
-            ? entry.asFile() : null;
+        final DbxEntry entry = Objects.requireNonNull(metadata).getEntry();
+        fileEntry = entry.isFile() ? entry.asFile() : null;
     }
 
     /**
@@ -0,0 +1,23 @@
+package com.github.fge.fs.dropbox.attr;
+
+import java.io.IOException;
+import java.nio.file.attribute.FileAttributeView;
+
+/**
+ * A read only view of the DropBox specific attributes of a file
+ *
+ * <p>The name of this view is {@code "dropbox"}; all its attributes can be
+ * read at once using {@code Files.readAttributes(path, "dropbox:*")}.</p>
+ */
+public interface DropBoxFileAttributeView
+    extends FileAttributeView
+{
+    /**
+     * Reads the DropBox specific attributes of a file
+     *
+     * @return the attributes
+     * @throws IOException an I/O error occurred
+     */
+    DropBoxFileAttributes readAttributes()
+        throws IOException;
+}
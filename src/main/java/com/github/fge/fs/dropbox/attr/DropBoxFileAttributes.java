@@ -0,0 +1,71 @@
+package com.github.fge.fs.dropbox.attr;
+
+import javax.annotation.Nullable;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * DropBox specific attributes of a file
+ *
+ * <p>These attributes are read as a whole, using the metadata of the file
+ * obtained by a single API call; for directories, all attributes are {@code
+ * null}.</p>
+ *
+ * @see DropBoxFileAttributeView
+ */
+public interface DropBoxFileAttributes
+{
+    /**
+     * Returns the revision of the file
+     *
+     * <p>The revision changes every time the contents of the file change.</p>
+     *
+     * @return the revision
+     */
+    @Nullable
+    String rev();
+
+    /**
+     * Returns the modification time of the file as set by the client which
+     * uploaded it, if any
+     *
+     * @return the client modification time
+     */
+    @Nullable
+    FileTime clientMtime();
+
+    /**
+     * Returns the MIME type of the file
+     *
+     * @return the MIME type, or {@code null} if unknown
+     */
+    @Nullable
+    String mimeType();
+
+    /**
+     * Returns the size of the file in human readable form (for instance,
+     * {@code "2.3 MB"})
+     *
+     * @return the size
+     */
+    @Nullable
+    String humanSize();
+
+    /**
+     * Returns the content hash of the file, if known
+     *
+     * <p>This is the hash computed by {@link
+     * com.github.fge.fs.dropbox.misc.ContentHasher}, which can be compared
+     * with the hash of a local file. The DropBox API version used here does
+     * not report hashes: it is only known if the current revision of the file
+     * was uploaded by this filesystem, with {@link
+     * com.github.fge.fs.dropbox.misc.DropBoxOpenOption#SKIP_UNCHANGED} or
+     * {@link
+     * com.github.fge.fs.dropbox.driver.DropBoxFileSystemDriver#uploadFile(
+     * java.nio.file.Path, java.nio.file.Path)}. Use {@link #rev()} to tell
+     * whether a file has changed.</p>
+     *
+     * @return the hash, or {@code null} if unknown
+     */
+    @Nullable
+    String contentHash();
+}
@@ -1,6 +1,5 @@
 package com.github.fge.fs.dropbox.attr;
 
-import com.dropbox.core.DbxEntry;
 import com.github.fge.filesystem.attributes.FileAttributesFactory;
 
 public final class DropBoxFileAttributesFactory
@@ -8,7 +7,8 @@ public final class DropBoxFileAttributesFactory
 {
     public DropBoxFileAttributesFactory()
     {
-        setMetadataClass(DbxEntry.class);
+        setMetadataClass(DropBoxMetadata.class);
         addImplementation("basic", DropBoxBasicFileAttributesProvider.class);
+        addImplementation("dropbox", DropBoxFileAttributesProvider.class);
     }
 }
@@ -0,0 +1,74 @@
+package com.github.fge.fs.dropbox.attr;
+
+import com.dropbox.core.DbxEntry;
+import com.github.fge.filesystem.attributes.provider.FileAttributesProvider;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.file.attribute.FileTime;
+import java.util.Objects;
+
+/**
+ * {@link DropBoxFileAttributeView} implementation
+ *
+ * <p>Note: version 1 of the DropBox API returns neither a MIME type nor a
+ * content hash for files. The MIME type is therefore guessed from the name of
+ * the file; the content hash is only known for revisions whose hash this
+ * filesystem computed itself, when uploading them.</p>
+ */
+public final class DropBoxFileAttributesProvider
+    extends FileAttributesProvider
+    implements DropBoxFileAttributeView, DropBoxFileAttributes
+{
+    private final DbxEntry.File fileEntry;
+    private final String contentHash;
+
+    public DropBoxFileAttributesProvider(
+        @Nonnull final DropBoxMetadata metadata)
+        throws IOException
+    {
+        super("dropbox");
+        final DbxEntry entry = Objects.requireNonNull(metadata).getEntry();
+        fileEntry = entry.isFile() ? entry.asFile() : null;
+        contentHash = fileEntry == null ? null : metadata.getContentHash();
+    }
+
+    @Override
+    public DropBoxFileAttributes readAttributes()
+    {
+        return this;
+    }
+
+    @Override
+    public String rev()
+    {
+        return fileEntry == null ? null : fileEntry.rev;
+    }
+
+    @Override
+    public FileTime clientMtime()
+    {
+        return fileEntry == null || fileEntry.clientMtime == null ? null
+            : FileTime.fromMillis(fileEntry.clientMtime.getTime());
+    }
+
+    @Override
+    public String mimeType()
+    {
+        return fileEntry == null ? null
+            : URLConnection.guessContentTypeFromName(fileEntry.name);
+    }
+
+    @Override
+    public String humanSize()
+    {
+        return fileEntry == null ? null : fileEntry.humanSize;
+    }
+
+    @Override
+    public String contentHash()
+    {
+        return contentHash;
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.fge.fs.dropbox.attr;
+
+import com.dropbox.core.DbxEntry;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.Objects;
+
+/**
+ * The metadata of a path, from which its attributes are read
+ *
+ * <p>This is the entry returned by DropBox, along with the content hash of
+ * the current revision of the file, if this filesystem knows it (see {@link
+ * com.github.fge.fs.dropbox.cache.ContentHashCache}).</p>
+ */
+@ParametersAreNonnullByDefault
+public final class DropBoxMetadata
+{
+    private final DbxEntry entry;
+    private final String contentHash;
+
+    public DropBoxMetadata(final DbxEntry entry,
+        @Nullable final String contentHash)
+    {
+        this.entry = Objects.requireNonNull(entry);
+        this.contentHash = contentHash;
+    }
+
+    @Nonnull
+    public DbxEntry getEntry()
+    {
+        return entry;
+    }
+
+    @Nullable
+    public String getContentHash()
+    {
+        return contentHash;
+    }
+}
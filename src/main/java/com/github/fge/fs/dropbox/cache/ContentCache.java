@@ -0,0 +1,396 @@
+package com.github.fge.fs.dropbox.cache;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A disk backed cache of file contents
+ *
+ * <p>Contents are stored as plain files in a directory of their own, one file
+ * per (path, revision) pair. Since a revision of a DropBox file never changes,
+ * a cached copy is valid for as long as the revision is current; callers are
+ * expected to pass the revision they obtained from the file metadata.</p>
+ *
+ * <p>The cache is bounded by the total size of the files it holds; files are
+ * evicted in least recently used order. Files already present in the directory
+ * when the cache is created are reused, so that contents survive across runs.
+ * </p>
+ *
+ * <p>When several threads miss on the same revision at the same time, only
+ * one of them downloads it; the others wait for this download to complete and
+ * then read the cached copy. A file is pinned from the time it is requested
+ * until it is opened, so that downloads of other files cannot evict it in
+ * between; the cache may exceed its size while files are pinned.</p>
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class ContentCache
+{
+    public static final long DEFAULT_SIZE = 1024L * 1024L * 1024L;
+
+    private static final String PART_SUFFIX = ".part";
+
+    private final Path directory;
+    private final long maxBytes;
+
+    /*
+     * File name to size, in least recently used order
+     */
+    private final Map<String, Long> entries
+        = new LinkedHashMap<>(16, 0.75f, true);
+
+    /*
+     * Guarded by "entries"; pins are counted by file name
+     */
+    private long totalBytes = 0L;
+    private final Map<String, Integer> pins = new HashMap<>();
+
+    private final ConcurrentMap<String, FutureTask<Path>> downloads
+        = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Loads the contents of a file
+     */
+    public interface Loader
+    {
+        /**
+         * Write the contents of the file to the given stream
+         *
+         * @param out the stream
+         * @throws IOException file not found, or DropBox API error
+         */
+        void load(OutputStream out)
+            throws IOException;
+    }
+
+    /**
+     * Constructor
+     *
+     * <p>The directory is created if it does not exist; files it already
+     * contains are indexed, leftovers of interrupted downloads are removed.
+     * </p>
+     *
+     * @param directory the cache directory
+     * @param maxBytes the maximum total size of cached files, in bytes
+     * @throws IOException cannot create or read the directory
+     */
+    public ContentCache(final Path directory, final long maxBytes)
+        throws IOException
+    {
+        if (maxBytes <= 0L)
+            throw new IllegalArgumentException("cache size must be strictly "
+                + "positive");
+        this.directory = Files.createDirectories(directory);
+        this.maxBytes = maxBytes;
+        index();
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getTotalBytes()
+    {
+        synchronized (entries) {
+            return totalBytes;
+        }
+    }
+
+    /**
+     * Open a stream to the contents of a revision of a file
+     *
+     * <p>If the revision is not cached, it is loaded first. Files larger than
+     * the cache itself are not cached: in this case, this method returns
+     * {@code null} and the caller must read the file by other means.</p>
+     *
+     * @param path the real path of the file
+     * @param rev the revision of the file
+     * @param size the size of this revision
+     * @param loader the loader to use on a miss
+     * @return a stream, or {@code null} if the file is too large
+     * @throws IOException loader error, or I/O error on the cached copy
+     */
+    @Nullable
+    public InputStream open(final String path, final String rev,
+        final long size, final Loader loader)
+        throws IOException
+    {
+        if (size > maxBytes)
+            return null;
+
+        final String name = fileName(path, rev);
+
+        pin(name);
+
+        try {
+            if (isCached(name)) {
+                try {
+                    final InputStream in = openCached(name);
+                    hits.incrementAndGet();
+                    return in;
+                } catch (NoSuchFileException ignored) {
+                    // removed behind our back
+                    remove(name);
+                }
+            }
+
+            misses.incrementAndGet();
+            awaitDownload(name, size, loader);
+            return openCached(name);
+        } finally {
+            unpin(name);
+        }
+    }
+
+    private void pin(final String name)
+    {
+        synchronized (entries) {
+            final Integer count = pins.get(name);
+            pins.put(name, count == null ? 1 : count + 1);
+        }
+    }
+
+    private void unpin(final String name)
+    {
+        synchronized (entries) {
+            final int count = pins.get(name);
+            if (count == 1)
+                pins.remove(name);
+            else
+                pins.put(name, count - 1);
+        }
+    }
+
+    private boolean isCached(final String name)
+    {
+        synchronized (entries) {
+            return entries.get(name) != null;
+        }
+    }
+
+    private InputStream openCached(final String name)
+        throws IOException
+    {
+        final Path file = directory.resolve(name);
+        final FileChannel channel
+            = FileChannel.open(file, StandardOpenOption.READ);
+
+        try {
+            Files.setLastModifiedTime(file,
+                FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+            // only used to order entries across runs
+        }
+
+        return Channels.newInputStream(channel);
+    }
+
+    private void awaitDownload(final String name, final long size,
+        final Loader loader)
+        throws IOException
+    {
+        final FutureTask<Path> task = new FutureTask<>(new Callable<Path>()
+        {
+            @Override
+            public Path call()
+                throws IOException
+            {
+                return download(name, size, loader);
+            }
+        });
+
+        final FutureTask<Path> existing = downloads.putIfAbsent(name, task);
+
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                downloads.remove(name, task);
+            }
+        }
+
+        try {
+            (existing == null ? task : existing).get();
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private Path download(final String name, final long size,
+        final Loader loader)
+        throws IOException
+    {
+        final Path file = directory.resolve(name);
+        final Path tmp = Files.createTempFile(directory, name, PART_SUFFIX);
+
+        try {
+            try (
+                final OutputStream out = Files.newOutputStream(tmp);
+            ) {
+                loader.load(out);
+            }
+            final long actual = Files.size(tmp);
+            if (actual != size)
+                throw new IOException("expected " + size + " bytes for "
+                    + "cached copy " + name + ", got " + actual);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+
+        add(name, size);
+        return file;
+    }
+
+    private void add(final String name, final long size)
+    {
+        final List<String> evicted = new ArrayList<>();
+
+        synchronized (entries) {
+            final Long old = entries.put(name, size);
+            if (old != null)
+                totalBytes -= old;
+            totalBytes += size;
+
+            final Iterator<Map.Entry<String, Long>> iterator
+                = entries.entrySet().iterator();
+            Map.Entry<String, Long> entry;
+            while (totalBytes > maxBytes && iterator.hasNext()) {
+                entry = iterator.next();
+                if (entry.getKey().equals(name)
+                    || pins.containsKey(entry.getKey()))
+                    continue;
+                totalBytes -= entry.getValue();
+                evicted.add(entry.getKey());
+                iterator.remove();
+            }
+        }
+
+        for (final String victim: evicted)
+            deleteQuietly(directory.resolve(victim));
+    }
+
+    private void remove(final String name)
+    {
+        synchronized (entries) {
+            final Long size = entries.remove(name);
+            if (size != null)
+                totalBytes -= size;
+        }
+    }
+
+    private void index()
+        throws IOException
+    {
+        final List<Path> files = new ArrayList<>();
+        final Map<Path, FileTime> times = new HashMap<>();
+
+        try (
+            final DirectoryStream<Path> stream
+                = Files.newDirectoryStream(directory);
+        ) {
+            for (final Path file: stream) {
+                if (file.getFileName().toString().endsWith(PART_SUFFIX)) {
+                    deleteQuietly(file);
+                    continue;
+                }
+                if (!Files.isRegularFile(file))
+                    continue;
+                files.add(file);
+                times.put(file, Files.getLastModifiedTime(file));
+            }
+        }
+
+        Collections.sort(files, new Comparator<Path>()
+        {
+            @Override
+            public int compare(final Path o1, final Path o2)
+            {
+                return times.get(o1).compareTo(times.get(o2));
+            }
+        });
+
+        for (final Path file: files)
+            add(file.getFileName().toString(), Files.size(file));
+    }
+
+    private static void deleteQuietly(final Path file)
+    {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {
+            // may still be open on some platforms; will be retried next run
+        }
+    }
+
+    private static String fileName(final String path, final String rev)
+    {
+        final MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available??", e);
+        }
+
+        final String key = path.toLowerCase(Locale.ROOT) + '\0' + rev;
+        final byte[] hash = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+        final StringBuilder sb = new StringBuilder(2 * hash.length);
+
+        for (final byte b: hash)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+                .append(Character.forDigit(b & 0xf, 16));
+
+        return sb.toString();
+    }
+}
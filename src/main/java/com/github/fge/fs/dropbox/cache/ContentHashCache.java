@@ -0,0 +1,164 @@
+package com.github.fge.fs.dropbox.cache;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Content hashes of uploaded files, by path and revision
+ *
+ * <p>The version of the DropBox API used here does not report content
+ * hashes; the only way to know the hash of a file is to have computed it when
+ * uploading it. Since a revision never changes, a hash recorded for a (path,
+ * revision) pair remains valid for as long as this revision is current.</p>
+ *
+ * <p>Only the latest revision of each path is kept. When the cache is backed
+ * by a file, this file is read when the cache is created and rewritten by
+ * {@link #save()}, so that hashes survive across runs; the file has one
+ * line per path, made of the revision, the hash and the path, separated by
+ * tabs.</p>
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class ContentHashCache
+{
+    private static final String TMP_SUFFIX = ".tmp";
+
+    @Nullable
+    private final Path file;
+
+    /*
+     * Keyed by lowercase path
+     */
+    private final ConcurrentMap<String, Entry> entries
+        = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param file the file backing the cache; {@code null} for an in memory
+     * cache
+     * @throws IOException failed to read the file
+     */
+    public ContentHashCache(@Nullable final Path file)
+        throws IOException
+    {
+        this.file = file;
+        if (file != null)
+            load(file);
+    }
+
+    /**
+     * Get the hash of a revision of a file
+     *
+     * @param path the real path of the file
+     * @param rev the revision
+     * @return the hash, or {@code null} if it is not known
+     */
+    @Nullable
+    public String get(final String path, final String rev)
+    {
+        final Entry entry = entries.get(key(path));
+        return entry != null && entry.rev.equals(rev) ? entry.hash : null;
+    }
+
+    /**
+     * Record the hash of a revision of a file
+     *
+     * @param path the real path of the file
+     * @param rev the revision
+     * @param hash the hash
+     */
+    public void put(final String path, final String rev, final String hash)
+    {
+        entries.put(key(path), new Entry(path, rev, hash));
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Write the cache to its file, if any
+     *
+     * @throws IOException failed to write the file
+     */
+    public void save()
+        throws IOException
+    {
+        if (file == null)
+            return;
+
+        final Path tmp = file.resolveSibling(file.getFileName() + TMP_SUFFIX);
+
+        try {
+            try (
+                final BufferedWriter writer = Files.newBufferedWriter(tmp,
+                    StandardCharsets.UTF_8);
+            ) {
+                for (final Entry entry: entries.values()) {
+                    writer.write(entry.rev + '\t' + entry.hash + '\t'
+                        + entry.path);
+                    writer.newLine();
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    private void load(final Path file)
+        throws IOException
+    {
+        String line;
+        String[] fields;
+
+        try (
+            final BufferedReader reader = Files.newBufferedReader(file,
+                StandardCharsets.UTF_8);
+        ) {
+            while ((line = reader.readLine()) != null) {
+                fields = line.split("\t", 3);
+                // leftover of an interrupted write; ignore
+                if (fields.length != 3)
+                    continue;
+                put(fields[2], fields[0], fields[1]);
+            }
+        } catch (NoSuchFileException ignored) {
+            // first run
+        }
+    }
+
+    private static String key(final String path)
+    {
+        return path.toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Entry
+    {
+        private final String path;
+        private final String rev;
+        private final String hash;
+
+        private Entry(final String path, final String rev, final String hash)
+        {
+            this.path = path;
+            this.rev = rev;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.github.fge.fs.dropbox.cache;
+
+import com.dropbox.core.DbxEntry;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A bounded cache of directory listings
+ *
+ * <p>This cache remembers the last listing obtained for a folder, along with
+ * its {@link DbxEntry.WithChildren#hash hash}. It is not meant to be trusted
+ * as is: the hash is to be passed to {@link
+ * com.dropbox.core.DbxClient#getMetadataWithChildrenIfChanged(String, String)}
+ * so that DropBox only sends the full listing back if it has changed.</p>
+ *
+ * <p>The cache is bounded by the total number of children of all listings it
+ * holds; listings are evicted in least recently used order. A listing with
+ * more children than this bound is not cached at all. A bound of 0 disables
+ * the cache.</p>
+ *
+ * <p>Like {@link MetadataCache}, keys are lowercased real paths.</p>
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class ListingCache
+{
+    public static final int DEFAULT_SIZE = 65536;
+
+    private final int maxChildren;
+
+    private final Map<String, DbxEntry.WithChildren> listings
+        = new LinkedHashMap<>(16, 0.75f, true);
+
+    /*
+     * Guarded by "listings"
+     */
+    private long totalChildren = 0L;
+
+    /**
+     * Constructor
+     *
+     * @param maxChildren the maximum total number of children; 0 disables the
+     * cache
+     */
+    public ListingCache(final int maxChildren)
+    {
+        if (maxChildren < 0)
+            throw new IllegalArgumentException("cache size cannot be negative");
+        this.maxChildren = maxChildren;
+    }
+
+    public int getMaxChildren()
+    {
+        return maxChildren;
+    }
+
+    /**
+     * Get the last known listing of a folder
+     *
+     * @param path the real path
+     * @return the listing, or {@code null} if none is known
+     */
+    @Nullable
+    public DbxEntry.WithChildren get(final String path)
+    {
+        if (maxChildren == 0)
+            return null;
+
+        synchronized (listings) {
+            return listings.get(key(path));
+        }
+    }
+
+    /**
+     * Record the listing of a folder
+     *
+     * <p>Listings of entries which are not folders are ignored.</p>
+     *
+     * @param path the real path
+     * @param listing the listing
+     */
+    public void put(final String path, final DbxEntry.WithChildren listing)
+    {
+        if (listing.hash == null || listing.children == null)
+            return;
+
+        final int size = listing.children.size();
+
+        if (size > maxChildren)
+            return;
+
+        final String key = key(path);
+
+        synchronized (listings) {
+            final DbxEntry.WithChildren old = listings.put(key, listing);
+            if (old != null)
+                totalChildren -= old.children.size();
+            totalChildren += size;
+            evict();
+        }
+    }
+
+    /**
+     * Forget about the listing of one path and of all its descendants
+     *
+     * @param path the real path
+     */
+    public void invalidateTree(final String path)
+    {
+        if (maxChildren == 0)
+            return;
+
+        final String key = key(path);
+        final String prefix = key.endsWith("/") ? key : key + '/';
+
+        synchronized (listings) {
+            final Iterator<Map.Entry<String, DbxEntry.WithChildren>> iterator
+                = listings.entrySet().iterator();
+            Map.Entry<String, DbxEntry.WithChildren> entry;
+            while (iterator.hasNext()) {
+                entry = iterator.next();
+                if (entry.getKey().equals(key)
+                    || entry.getKey().startsWith(prefix)) {
+                    totalChildren -= entry.getValue().children.size();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private void evict()
+    {
+        final Iterator<DbxEntry.WithChildren> iterator
+            = listings.values().iterator();
+
+        while (totalChildren > maxChildren && iterator.hasNext()) {
+            totalChildren -= iterator.next().children.size();
+            iterator.remove();
+        }
+    }
+
+    private static String key(final String path)
+    {
+        return path.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,614 @@
+package com.github.fge.fs.dropbox.cache;
+
+import com.dropbox.core.DbxEntry;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded, time limited cache of {@link DbxEntry} metadata
+ *
+ * <p>One instance of this class exists per filesystem. It holds at most a
+ * configured number of entries, evicted in least recently used order, and each
+ * entry expires after a configured time to live.</p>
+ *
+ * <p>Keys are real path strings; since DropBox paths are case insensitive,
+ * they are lowercased before use (this is also the form in which DropBox
+ * itself reports paths in its delta API).</p>
+ *
+ * <p>A cache created with a maximum size of 0 is disabled: lookups always
+ * miss and modifications do nothing.</p>
+ *
+ * <p>The cache also remembers, separately, paths which were found not to
+ * exist, with their own size bound and (usually shorter) time to live, so
+ * that repeated existence checks of the same missing path do not each cost
+ * an API call. Such a path is forgotten as soon as metadata is recorded for
+ * it (for instance from the listing of its parent), or it, one of its
+ * ancestors or one of its descendants is invalidated: DropBox creates missing
+ * parent directories when a file is created.</p>
+ *
+ * <p>The cache may also be kept coherent by an external change feed (see
+ * {@link com.github.fge.fs.dropbox.delta.DeltaCoherenceEngine}). In this
+ * case, entries outliving their time to live are still served for as long as
+ * the feed reports being up to date within the configured maximum staleness.
+ * Values fetched by the caller are stored using {@link #putIfUnchanged(String,
+ * DbxEntry, long)} so that an invalidation which happened in the meantime is
+ * not overwritten.</p>
+ *
+ * <p>Directory streams read the metadata of many entries at once, often more
+ * than this cache can hold. They record it in a {@link Scope} instead, which
+ * lookups fall back to and which is only bounded by what the stream chooses
+ * to keep; its entries do not expire, but are subject to invalidations like
+ * the others, until the stream is closed.</p>
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class MetadataCache
+{
+    public static final int DEFAULT_SIZE = 1024;
+    public static final long DEFAULT_TTL = 5000L;
+    public static final int DEFAULT_ABSENT_SIZE = 1024;
+    public static final long DEFAULT_ABSENT_TTL = 2000L;
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final int maxAbsent;
+    private final long absentTtlNanos;
+
+    private final Map<String, CachedEntry> entries;
+
+    /*
+     * Paths known not to exist, with the time they were found missing;
+     * guarded by "entries"
+     */
+    private final Map<String, Long> absent;
+
+    /*
+     * Open scopes; guarded by "entries". Weakly referenced, so that streams
+     * which are never closed do not leak.
+     */
+    private final Set<Scope> scopes
+        = Collections.newSetFromMap(new WeakHashMap<Scope, Boolean>());
+
+    /*
+     * Incremented on each invalidation; guarded by "entries"
+     */
+    private long generation = 0L;
+
+    /*
+     * Coherence state, updated by the change feed
+     */
+    private volatile long maxStalenessNanos = -1L;
+    private volatile String coherencePrefix = null;
+    private volatile boolean listening = false;
+    private volatile boolean synced = false;
+    private volatile long syncedAt;
+
+    /**
+     * Constructor
+     *
+     * @param maxSize the maximum number of entries; 0 disables the cache
+     * @param ttl the time to live of an entry, in milliseconds
+     * @param maxAbsent the maximum number of paths known not to exist; 0
+     * disables caching of missing paths
+     * @param absentTtl the time to live of a missing path, in milliseconds
+     */
+    public MetadataCache(final int maxSize, final long ttl,
+        final int maxAbsent, final long absentTtl)
+    {
+        if (maxSize < 0 || maxAbsent < 0)
+            throw new IllegalArgumentException("cache size cannot be negative");
+        if (ttl < 0L || absentTtl < 0L)
+            throw new IllegalArgumentException("TTL cannot be negative");
+        this.maxSize = maxSize;
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.maxAbsent = maxAbsent;
+        absentTtlNanos = TimeUnit.MILLISECONDS.toNanos(absentTtl);
+        //noinspection CloneableClassWithoutClone
+        entries = new LinkedHashMap<String, CachedEntry>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(
+                final Map.Entry<String, CachedEntry> eldest)
+            {
+                return size() > MetadataCache.this.maxSize;
+            }
+        };
+        //noinspection CloneableClassWithoutClone
+        absent = new LinkedHashMap<String, Long>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(
+                final Map.Entry<String, Long> eldest)
+            {
+                return size() > MetadataCache.this.maxAbsent;
+            }
+        };
+    }
+
+    public boolean isEnabled()
+    {
+        return maxSize > 0 && ttlNanos > 0L;
+    }
+
+    private boolean isAbsentEnabled()
+    {
+        return maxAbsent > 0 && absentTtlNanos > 0L;
+    }
+
+    /**
+     * Tell whether a path is known not to exist
+     *
+     * @param path the real path
+     * @return true if the path was found missing less than the configured
+     * time to live ago, and nothing was recorded for it since
+     */
+    public boolean isAbsent(final String path)
+    {
+        if (!isAbsentEnabled())
+            return false;
+
+        final String key = key(path);
+
+        synchronized (entries) {
+            final Long timestamp = absent.get(key);
+            if (timestamp == null)
+                return false;
+            if (System.nanoTime() - timestamp > absentTtlNanos) {
+                absent.remove(key);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Record that a path does not exist, unless an invalidation happened
+     * since a given generation
+     *
+     * @param path the real path
+     * @param generation the generation obtained before looking up the path
+     *
+     * @see #generation()
+     */
+    public void putAbsentIfUnchanged(final String path, final long generation)
+    {
+        if (!isAbsentEnabled())
+            return;
+
+        final Long timestamp = System.nanoTime();
+
+        synchronized (entries) {
+            if (this.generation == generation)
+                absent.put(key(path), timestamp);
+        }
+    }
+
+    /**
+     * Get the cached metadata for a path, if any
+     *
+     * @param path the real path
+     * @return the metadata, or {@code null} if not cached or expired
+     */
+    @Nullable
+    public DbxEntry get(final String path)
+    {
+        if (!isEnabled())
+            return null;
+
+        final String key = key(path);
+
+        synchronized (entries) {
+            final CachedEntry cached = entries.get(key);
+            if (cached == null)
+                return getScoped(key);
+            final long now = System.nanoTime();
+            if (now - cached.timestamp > ttlNanos && !isCoherent(key, now)) {
+                entries.remove(key);
+                return getScoped(key);
+            }
+            return cached.entry;
+        }
+    }
+
+    /**
+     * Open a scope, in which the metadata read by a directory stream is
+     * recorded
+     *
+     * <p>The scope must be closed along with the stream.</p>
+     *
+     * @return a new scope
+     */
+    public Scope openScope()
+    {
+        final Scope scope = new Scope();
+
+        synchronized (entries) {
+            scopes.add(scope);
+        }
+
+        return scope;
+    }
+
+    /**
+     * Record metadata for a path
+     *
+     * <p>The path is no longer considered missing. This does not prevent
+     * lookups in progress from recording what they found: when the path was
+     * just created, {@link #invalidate(String) invalidate} it first.</p>
+     *
+     * @param path the real path
+     * @param entry the metadata
+     */
+    public void put(final String path, final DbxEntry entry)
+    {
+        final String key = key(path);
+        final CachedEntry cached = new CachedEntry(entry, System.nanoTime());
+
+        synchronized (entries) {
+            forgetAbsent(key, false);
+            if (isEnabled())
+                entries.put(key, cached);
+            replaceScoped(key, entry);
+        }
+    }
+
+    /**
+     * Get the current generation of this cache
+     *
+     * <p>Pass the returned value to {@link #putIfUnchanged(String, DbxEntry,
+     * long)} once the value to record has been fetched.</p>
+     *
+     * @return the generation
+     */
+    public long generation()
+    {
+        synchronized (entries) {
+            return generation;
+        }
+    }
+
+    /**
+     * Record metadata for a path unless an invalidation happened since a
+     * given generation
+     *
+     * <p>The path is no longer considered missing in any case.</p>
+     *
+     * @param path the real path
+     * @param entry the metadata
+     * @param generation the generation obtained before fetching the metadata
+     *
+     * @see #generation()
+     */
+    public void putIfUnchanged(final String path, final DbxEntry entry,
+        final long generation)
+    {
+        final String key = key(path);
+        final CachedEntry cached = new CachedEntry(entry, System.nanoTime());
+
+        synchronized (entries) {
+            if (isEnabled() && this.generation == generation)
+                entries.put(key, cached);
+            forgetAbsent(key, false);
+        }
+    }
+
+    /**
+     * Replace the metadata for a path, if and only if the path is cached
+     *
+     * <p>This is used by change feeds, which report changes on paths this
+     * cache may know nothing about.</p>
+     *
+     * @param path the real path
+     * @param entry the new metadata
+     */
+    public void update(final String path, final DbxEntry entry)
+    {
+        final String key = key(path);
+        final CachedEntry cached = new CachedEntry(entry, System.nanoTime());
+
+        /*
+         * Feeds report changes on many paths nobody looked up; only changes
+         * on known paths, cached or missing, invalidate lookups in progress,
+         * otherwise nothing could be cached while a feed is busy.
+         */
+        synchronized (entries) {
+            if (entries.containsKey(key)) {
+                generation++;
+                entries.put(key, cached);
+            }
+            if (replaceScoped(key, entry))
+                generation++;
+            if (forgetAbsent(key, false))
+                generation++;
+        }
+    }
+
+    /**
+     * Forget about one path
+     *
+     * @param path the real path
+     */
+    public void invalidate(final String path)
+    {
+        final String key = key(path);
+
+        synchronized (entries) {
+            generation++;
+            entries.remove(key);
+            for (final Scope scope: scopes)
+                scope.entries.remove(key);
+            forgetAbsent(key, true);
+        }
+    }
+
+    /**
+     * Forget about one path and, if it is a directory, all of its descendants
+     *
+     * @param path the real path
+     */
+    public void invalidateTree(final String path)
+    {
+        final String key = key(path);
+        final String prefix = key.endsWith("/") ? key : key + '/';
+
+        synchronized (entries) {
+            generation++;
+            removeTree(entries, key, prefix);
+            for (final Scope scope: scopes)
+                removeTree(scope.entries, key, prefix);
+            forgetAbsent(key, true);
+        }
+    }
+
+    public void clear()
+    {
+        synchronized (entries) {
+            generation++;
+            entries.clear();
+            absent.clear();
+            for (final Scope scope: scopes)
+                scope.entries.clear();
+        }
+    }
+
+    /**
+     * Allow entries to outlive their time to live while a change feed is up
+     * to date
+     *
+     * @param maxStaleness the maximum staleness, in milliseconds
+     * @param pathPrefix only paths under this prefix are covered by the feed,
+     * or {@code null} if the feed covers all paths
+     */
+    public void enableCoherence(final long maxStaleness,
+        @Nullable final String pathPrefix)
+    {
+        if (maxStaleness < 0L)
+            throw new IllegalArgumentException("staleness cannot be negative");
+        if (pathPrefix != null) {
+            final String prefix = key(pathPrefix);
+            coherencePrefix = prefix.endsWith("/") ? prefix : prefix + '/';
+        }
+        maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(maxStaleness);
+    }
+
+    /**
+     * Tell that all changes up to a given instant have been applied
+     *
+     * @param nanoTime the instant, as given by {@link System#nanoTime()}
+     */
+    public void markSynced(final long nanoTime)
+    {
+        syncedAt = nanoTime;
+        synced = true;
+    }
+
+    /**
+     * Tell whether the change feed is currently waiting for changes
+     *
+     * <p>While this is the case, the feed would report any change as soon as
+     * it happens, and the cache is considered up to date.</p>
+     *
+     * @param listening true if the feed is listening
+     */
+    public void setListening(final boolean listening)
+    {
+        this.listening = listening;
+    }
+
+    private boolean isCoherent(final String key, final long now)
+    {
+        final long maxStaleness = maxStalenessNanos;
+        if (maxStaleness < 0L)
+            return false;
+        final String prefix = coherencePrefix;
+        if (prefix != null && !(key + '/').startsWith(prefix))
+            return false;
+        return listening || synced && now - syncedAt <= maxStaleness;
+    }
+
+    /*
+     * Must be called with the lock held
+     */
+    @Nullable
+    private DbxEntry getScoped(final String key)
+    {
+        DbxEntry entry;
+
+        for (final Scope scope: scopes) {
+            entry = scope.entries.get(key);
+            if (entry != null)
+                return entry;
+        }
+
+        return null;
+    }
+
+    /*
+     * Replace the metadata of a path in the scopes which hold it; must be
+     * called with the lock held. Returns whether any scope held it.
+     */
+    private boolean replaceScoped(final String key, final DbxEntry entry)
+    {
+        boolean replaced = false;
+
+        for (final Scope scope: scopes)
+            if (scope.entries.containsKey(key)) {
+                scope.entries.put(key, entry);
+                replaced = true;
+            }
+
+        return replaced;
+    }
+
+    private static void removeTree(final Map<String, ?> map,
+        final String key, final String prefix)
+    {
+        final Iterator<String> iterator = map.keySet().iterator();
+        String s;
+
+        while (iterator.hasNext()) {
+            s = iterator.next();
+            if (s.equals(key) || s.startsWith(prefix))
+                iterator.remove();
+        }
+    }
+
+    /*
+     * Forget that a path and its ancestors are missing, and, if requested,
+     * its descendants; must be called with the lock held. Returns whether
+     * anything was forgotten.
+     *
+     * This does not bump the generation: callers recording metadata they
+     * have just fetched have no stale lookup to guard against, and must not
+     * prevent the other entries of the same listing from being recorded.
+     * Callers reporting changes bump it themselves.
+     */
+    private boolean forgetAbsent(final String key, final boolean descendants)
+    {
+        if (absent.isEmpty())
+            return false;
+
+        boolean forgotten = absent.remove(key) != null;
+        String parent = key;
+        int index;
+
+        while ((index = parent.lastIndexOf('/')) > 0) {
+            parent = parent.substring(0, index);
+            forgotten |= absent.remove(parent) != null;
+        }
+
+        if (descendants) {
+            final String prefix = key.endsWith("/") ? key : key + '/';
+            final Iterator<String> iterator = absent.keySet().iterator();
+            while (iterator.hasNext())
+                if (iterator.next().startsWith(prefix)) {
+                    iterator.remove();
+                    forgotten = true;
+                }
+        }
+
+        return forgotten;
+    }
+
+    private static String key(final String path)
+    {
+        return path.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Metadata read by one directory stream
+     *
+     * <p>Lookups which miss in the cache itself fall back to the open scopes.
+     * Metadata is only kept in a scope for as long as it is open, regardless
+     * of the time to live of the cache.</p>
+     *
+     * @see #openScope()
+     */
+    public final class Scope
+        implements Closeable
+    {
+        /*
+         * Guarded by the lock of the cache
+         */
+        private final Map<String, DbxEntry> entries = new HashMap<>();
+
+        private Scope()
+        {
+        }
+
+        /**
+         * Record metadata for a path unless an invalidation happened since a
+         * given generation of the cache
+         *
+         * <p>The path is no longer considered missing in any case.</p>
+         *
+         * @param path the real path
+         * @param entry the metadata
+         * @param generation the generation of the cache obtained before
+         * fetching the metadata
+         *
+         * @see MetadataCache#generation()
+         */
+        public void putIfUnchanged(final String path, final DbxEntry entry,
+            final long generation)
+        {
+            final String key = key(path);
+
+            synchronized (MetadataCache.this.entries) {
+                if (isEnabled() && MetadataCache.this.generation == generation
+                    && scopes.contains(this))
+                    entries.put(key, entry);
+                forgetAbsent(key, false);
+            }
+        }
+
+        /**
+         * Forget the metadata of a path, if it is the given one
+         *
+         * @param path the real path
+         * @param entry the metadata recorded for this path
+         */
+        public void remove(final String path, final DbxEntry entry)
+        {
+            final String key = key(path);
+
+            synchronized (MetadataCache.this.entries) {
+                if (entries.get(key) == entry)
+                    entries.remove(key);
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            synchronized (MetadataCache.this.entries) {
+                scopes.remove(this);
+                entries.clear();
+            }
+        }
+    }
+
+    private static final class CachedEntry
+    {
+        private final DbxEntry entry;
+        private final long timestamp;
+
+        private CachedEntry(final DbxEntry entry, final long timestamp)
+        {
+            this.entry = entry;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.github.fge.fs.dropbox.delta;
+
+import com.dropbox.core.DbxClient;
+import com.dropbox.core.DbxDelta;
+import com.dropbox.core.DbxEntry;
+import com.dropbox.core.DbxException;
+import com.dropbox.core.DbxHost;
+import com.dropbox.core.DbxRequestUtil;
+import com.dropbox.core.http.HttpRequestor;
+import com.dropbox.core.json.JsonReadException;
+import com.dropbox.core.json.JsonReader;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * A {@link DeltaSource} backed by a {@link DbxClient}
+ *
+ * <p>Changes are read using {@link DbxClient#getDelta(String)} (or {@link
+ * DbxClient#getDeltaWithPathPrefix(String, String)} if a path prefix is
+ * given). The DropBox SDK has no support for {@code /delta/latest_cursor}
+ * and {@code /longpoll_delta}, which are therefore called directly; the
+ * latter requires no authentication.</p>
+ *
+ * <p>A longpoll which times out on the client side is reported as having no
+ * changes: had there been any, the server would have answered earlier.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class DbxClientDeltaSource
+    implements DeltaSource
+{
+    public static final String DEFAULT_NOTIFY_HOST = "api-notify.dropbox.com";
+
+    private static final String LATEST_CURSOR_PATH = "1/delta/latest_cursor";
+    private static final String LONGPOLL_PATH = "1/longpoll_delta";
+
+    private static final JsonReader<String> CURSOR_READER
+        = new JsonReader<String>()
+    {
+        @Override
+        public String read(final JsonParser parser)
+            throws IOException, JsonReadException
+        {
+            final JsonLocation top = JsonReader.expectObjectStart(parser);
+
+            String cursor = null;
+            String fieldName;
+
+            while (parser.getCurrentToken() == JsonToken.FIELD_NAME) {
+                fieldName = parser.getCurrentName();
+                parser.nextToken();
+                try {
+                    if ("cursor".equals(fieldName))
+                        cursor = JsonReader.StringReader.readField(parser,
+                            fieldName, cursor);
+                    else
+                        JsonReader.skipValue(parser);
+                } catch (JsonReadException e) {
+                    throw e.addFieldContext(fieldName);
+                }
+            }
+
+            JsonReader.expectObjectEnd(parser);
+
+            if (cursor == null)
+                throw new JsonReadException("missing field \"cursor\"", top);
+
+            return cursor;
+        }
+    };
+
+    private final DbxClient client;
+    private final String apiHost;
+    private final String notifyHost;
+    private final String pathPrefix;
+
+    /**
+     * Constructor
+     *
+     * @param client the client
+     * @param pathPrefix restrict changes to this path, or {@code null} for the
+     * whole account
+     */
+    public DbxClientDeltaSource(final DbxClient client,
+        @Nullable final String pathPrefix)
+    {
+        this(client, pathPrefix, DbxHost.Default.api, DEFAULT_NOTIFY_HOST);
+    }
+
+    public DbxClientDeltaSource(final DbxClient client,
+        @Nullable final String pathPrefix, final String notifyHost)
+    {
+        this(client, pathPrefix, DbxHost.Default.api, notifyHost);
+    }
+
+    public DbxClientDeltaSource(final DbxClient client,
+        @Nullable final String pathPrefix, final String apiHost,
+        final String notifyHost)
+    {
+        this.client = client;
+        this.apiHost = apiHost;
+        this.pathPrefix = pathPrefix;
+        this.notifyHost = notifyHost;
+    }
+
+    @Nonnull
+    @Override
+    public String getLatestCursor()
+        throws DbxException
+    {
+        final String[] params = pathPrefix == null ? new String[0]
+            : new String[] { "path_prefix", pathPrefix };
+
+        return DbxRequestUtil.doPost(client.getRequestConfig(),
+            client.getAccessToken(), apiHost, LATEST_CURSOR_PATH, params,
+            null, new DbxRequestUtil.ResponseHandler<String>()
+            {
+                @Override
+                public String handle(final HttpRequestor.Response response)
+                    throws DbxException
+                {
+                    if (response.statusCode != 200)
+                        throw DbxRequestUtil.unexpectedStatus(response);
+                    return DbxRequestUtil.readJsonFromResponse(CURSOR_READER,
+                        response.body);
+                }
+            });
+    }
+
+    @Nonnull
+    @Override
+    public DbxDelta<DbxEntry> getDelta(@Nullable final String cursor)
+        throws DbxException
+    {
+        return pathPrefix == null ? client.getDelta(cursor)
+            : client.getDeltaWithPathPrefix(cursor, pathPrefix);
+    }
+
+    @Nonnull
+    @Override
+    public LongpollResult longpoll(final String cursor,
+        final int timeoutSeconds)
+        throws DbxException
+    {
+        final String[] params = {
+            "cursor", cursor,
+            "timeout", Integer.toString(timeoutSeconds)
+        };
+
+        try {
+            return DbxRequestUtil.doGet(client.getRequestConfig(),
+                client.getAccessToken(), notifyHost, LONGPOLL_PATH, params,
+                null, new DbxRequestUtil.ResponseHandler<LongpollResult>()
+                {
+                    @Override
+                    public LongpollResult handle(
+                        final HttpRequestor.Response response)
+                        throws DbxException
+                    {
+                        if (response.statusCode != 200)
+                            throw DbxRequestUtil.unexpectedStatus(response);
+                        return DbxRequestUtil.readJsonFromResponse(
+                            LongpollResult.READER, response.body);
+                    }
+                });
+        } catch (DbxException.NetworkIO e) {
+            if (e.underlying instanceof SocketTimeoutException)
+                return LongpollResult.NO_CHANGES;
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.github.fge.fs.dropbox.delta;
+
+import com.dropbox.core.DbxDelta;
+import com.dropbox.core.DbxEntry;
+import com.dropbox.core.DbxException;
+import com.github.fge.fs.dropbox.cache.MetadataCache;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a {@link MetadataCache} coherent with changes made by other clients
+ *
+ * <p>Once {@link #start() started}, this engine runs a background thread
+ * which holds a delta cursor, obtained from {@link
+ * DeltaSource#getLatestCursor()} so that existing entries need not be paged
+ * through: it applies all pending changes, then blocks in
+ * a longpoll until new changes are reported, and so on. Deleted entries are
+ * invalidated (along with their descendants), modified entries are replaced if
+ * they are cached.</p>
+ *
+ * <p>While the engine is up to date, the cache is allowed to serve entries
+ * beyond their time to live, within the configured maximum staleness; if the
+ * engine fails to reach DropBox, entries fall back to their normal time to
+ * live until it recovers.</p>
+ *
+ * <p>{@link #sync()} can also be called directly, which makes it possible to
+ * drive this engine from a local {@link DeltaSource} without a background
+ * thread.</p>
+ *
+ * <p>Note that closing this engine cannot interrupt a longpoll which is
+ * already in progress; the (daemon) thread exits when it returns.</p>
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class DeltaCoherenceEngine
+    implements Closeable
+{
+    public static final long DEFAULT_MAX_STALENESS = 30000L;
+    public static final int DEFAULT_LONGPOLL_TIMEOUT = 30;
+
+    private static final long INITIAL_RETRY_DELAY = 1000L;
+    private static final long MAX_RETRY_DELAY = 60000L;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final DeltaSource source;
+    private final MetadataCache cache;
+    private final int longpollTimeout;
+
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private volatile Thread thread;
+    private volatile String cursor;
+    private volatile DbxException lastError;
+
+    /**
+     * Constructor
+     *
+     * @param source the change feed
+     * @param cache the cache to keep coherent
+     * @param maxStaleness the maximum staleness of cache entries, in
+     * milliseconds
+     * @param longpollTimeout the longpoll timeout, in seconds
+     * @param pathPrefix the path prefix covered by the feed, or {@code null}
+     * if it covers the whole account
+     */
+    public DeltaCoherenceEngine(final DeltaSource source,
+        final MetadataCache cache, final long maxStaleness,
+        final int longpollTimeout, @Nullable final String pathPrefix)
+    {
+        if (longpollTimeout <= 0)
+            throw new IllegalArgumentException("longpoll timeout must be "
+                + "strictly positive");
+        this.source = source;
+        this.cache = cache;
+        this.longpollTimeout = longpollTimeout;
+        cache.enableCoherence(maxStaleness, pathPrefix);
+    }
+
+    /**
+     * Start the background thread
+     *
+     * @throws IllegalStateException engine already started
+     */
+    public void start()
+    {
+        if (!started.compareAndSet(false, true))
+            throw new IllegalStateException("engine already started");
+
+        final Thread t = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runLoop();
+            }
+        }, "dropbox-delta-" + THREAD_COUNT.incrementAndGet());
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * Fetch and apply all pending changes
+     *
+     * @return the number of change entries applied
+     * @throws DbxException DropBox API error
+     */
+    public synchronized int sync()
+        throws DbxException
+    {
+        int count = 0;
+        long fetchedAt;
+        DbxDelta<DbxEntry> delta;
+
+        /*
+         * The cache is filled by lookups, not from the feed: all we need is a
+         * starting point for changes.
+         */
+        if (cursor == null) {
+            fetchedAt = System.nanoTime();
+            cursor = source.getLatestCursor();
+            cache.markSynced(fetchedAt);
+            return 0;
+        }
+
+        do {
+            fetchedAt = System.nanoTime();
+            delta = source.getDelta(cursor);
+            if (delta.reset)
+                cache.clear();
+            for (final DbxDelta.Entry<DbxEntry> entry: delta.entries) {
+                if (entry.metadata == null)
+                    cache.invalidateTree(entry.lcPath);
+                else
+                    cache.update(entry.lcPath, entry.metadata);
+                count++;
+            }
+            cursor = delta.cursor;
+        } while (delta.hasMore);
+
+        cache.markSynced(fetchedAt);
+        return count;
+    }
+
+    @Nullable
+    public String getCursor()
+    {
+        return cursor;
+    }
+
+    /**
+     * Get the last error encountered by the background thread
+     *
+     * @return the error, or {@code null} if none occurred
+     */
+    @Nullable
+    public DbxException getLastError()
+    {
+        return lastError;
+    }
+
+    @Override
+    public void close()
+    {
+        if (closed.getAndSet(true))
+            return;
+        cache.setListening(false);
+        final Thread t = thread;
+        if (t != null)
+            t.interrupt();
+    }
+
+    private void runLoop()
+    {
+        long retryDelay = INITIAL_RETRY_DELAY;
+        LongpollResult result;
+
+        while (!closed.get()) {
+            try {
+                sync();
+                cache.setListening(true);
+                try {
+                    result = source.longpoll(cursor, longpollTimeout);
+                } finally {
+                    cache.setListening(false);
+                }
+                if (!result.changes)
+                    cache.markSynced(System.nanoTime());
+                lastError = null;
+                retryDelay = INITIAL_RETRY_DELAY;
+                if (result.backoff > 0L)
+                    TimeUnit.SECONDS.sleep(result.backoff);
+            } catch (DbxException e) {
+                lastError = e;
+                try {
+                    TimeUnit.MILLISECONDS.sleep(retryDelay);
+                } catch (InterruptedException ignored) {
+                    return;
+                }
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+            } catch (InterruptedException ignored) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.fge.fs.dropbox.delta;
+
+import com.dropbox.core.DbxDelta;
+import com.dropbox.core.DbxEntry;
+import com.dropbox.core.DbxException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A feed of changes to a DropBox account
+ *
+ * <p>The production implementation is {@link DbxClientDeltaSource}, which
+ * uses the {@code /delta}, {@code /delta/latest_cursor} and {@code
+ * /longpoll_delta} endpoints; tests can substitute a local, in memory
+ * feed.</p>
+ *
+ * @see DeltaCoherenceEngine
+ */
+public interface DeltaSource
+{
+    /**
+     * Get a cursor pointing to the current state of the account
+     *
+     * <p>Unlike a {@code null} cursor, this cursor does not require paging
+     * through all existing entries first.</p>
+     *
+     * @return the cursor
+     * @throws DbxException DropBox API error
+     */
+    @Nonnull
+    String getLatestCursor()
+        throws DbxException;
+
+    /**
+     * Fetch one page of changes
+     *
+     * @param cursor the cursor returned by the previous page, or {@code null}
+     * to start from scratch
+     * @return the page
+     * @throws DbxException DropBox API error
+     */
+    @Nonnull
+    DbxDelta<DbxEntry> getDelta(@Nullable String cursor)
+        throws DbxException;
+
+    /**
+     * Block until changes may be available after a cursor, or a timeout
+     * expires
+     *
+     * @param cursor the cursor
+     * @param timeoutSeconds the timeout, in seconds
+     * @return the result of the poll
+     * @throws DbxException DropBox API error
+     */
+    @Nonnull
+    LongpollResult longpoll(String cursor, int timeoutSeconds)
+        throws DbxException;
+}
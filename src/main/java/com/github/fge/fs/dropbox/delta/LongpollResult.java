@@ -0,0 +1,75 @@
+package com.github.fge.fs.dropbox.delta;
+
+import com.dropbox.core.json.JsonReadException;
+import com.dropbox.core.json.JsonReader;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Result of a call to {@code /longpoll_delta}
+ *
+ * @see DeltaSource#longpoll(String, int)
+ */
+public final class LongpollResult
+{
+    public static final LongpollResult NO_CHANGES
+        = new LongpollResult(false, -1L);
+
+    /**
+     * Whether changes may be available
+     */
+    public final boolean changes;
+
+    /**
+     * Number of seconds to wait before polling again, or -1 if none required
+     */
+    public final long backoff;
+
+    public LongpollResult(final boolean changes, final long backoff)
+    {
+        this.changes = changes;
+        this.backoff = backoff;
+    }
+
+    public static final JsonReader<LongpollResult> READER
+        = new JsonReader<LongpollResult>()
+    {
+        @Override
+        public LongpollResult read(final JsonParser parser)
+            throws IOException, JsonReadException
+        {
+            final JsonLocation top = JsonReader.expectObjectStart(parser);
+
+            Boolean changes = null;
+            long backoff = -1L;
+            String fieldName;
+
+            while (parser.getCurrentToken() == JsonToken.FIELD_NAME) {
+                fieldName = parser.getCurrentName();
+                parser.nextToken();
+                try {
+                    if ("changes".equals(fieldName))
+                        changes = JsonReader.BooleanReader.readField(parser,
+                            fieldName, changes);
+                    else if ("backoff".equals(fieldName))
+                        backoff = JsonReader.readUnsignedLongField(parser,
+                            fieldName, backoff);
+                    else
+                        JsonReader.skipValue(parser);
+                } catch (JsonReadException e) {
+                    throw e.addFieldContext(fieldName);
+                }
+            }
+
+            JsonReader.expectObjectEnd(parser);
+
+            if (changes == null)
+                throw new JsonReadException("missing field \"changes\"", top);
+
+            return new LongpollResult(changes, backoff);
+        }
+    };
+}
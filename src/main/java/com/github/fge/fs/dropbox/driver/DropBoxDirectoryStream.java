@@ -0,0 +1,347 @@
+package com.github.fge.fs.dropbox.driver;
+
+import com.dropbox.core.DbxEntry;
+import com.dropbox.core.util.Collector;
+import com.github.fge.fs.dropbox.cache.MetadataCache;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link DirectoryStream} fed while a directory listing is being received
+ *
+ * <p>The listing is performed by a producer task which hands over children
+ * as they are parsed from the response, through a queue. The producer never
+ * blocks on this queue: it runs within an API call, and holds a concurrency
+ * slot and a connection until the response is fully read, which must not
+ * depend on the consumer. The queue is therefore unbounded; DropBox returns a
+ * listing in a single response anyway, so that it is held in memory as a
+ * whole in any case. Paths are only created for children as they are
+ * iterated over, and only those accepted by the filter are returned.</p>
+ *
+ * <p>{@link #start(ExecutorService, Runnable)} only returns once the producer
+ * has either produced a first child or failed; this means errors such as a
+ * missing path or a path which is not a directory are reported when the
+ * stream is opened, as the API requires. Errors occurring later on are
+ * reported by the iterator as {@link DirectoryIteratorException}s.</p>
+ *
+ * <p>The producer records the metadata of children in the {@link
+ * MetadataCache.Scope scope} of the stream, so that reading the attributes
+ * of returned paths costs no API call for as long as the stream is open,
+ * however many children there are.</p>
+ *
+ * <p>Closing the stream cancels the producer, and closes its scope.</p>
+ */
+@ParametersAreNonnullByDefault
+final class DropBoxDirectoryStream
+    implements DirectoryStream<Path>
+{
+    private static final Object END = new Object();
+
+    private final Path dir;
+    private final DirectoryStream.Filter<? super Path> filter;
+    private final MetadataCache.Scope scope;
+
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final AtomicBoolean iteratorCalled = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private volatile Future<?> producer;
+    private volatile boolean delivered = false;
+
+    DropBoxDirectoryStream(final Path dir,
+        final DirectoryStream.Filter<? super Path> filter,
+        final MetadataCache.Scope scope)
+    {
+        this.dir = dir;
+        this.filter = filter;
+        this.scope = scope;
+    }
+
+    /**
+     * Start the producer, and wait for it to either produce a first element
+     * or fail
+     *
+     * @param executor the executor to run the producer on
+     * @param task the producer
+     * @throws IOException the producer failed before producing any child
+     */
+    void start(final ExecutorService executor, final Runnable task)
+        throws IOException
+    {
+        producer = executor.submit(task);
+
+        try {
+            started.await();
+        } catch (InterruptedException e) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while listing "
+                + dir);
+        }
+
+        final Object head = queue.peek();
+        if (head instanceof Failure) {
+            close();
+            throw ((Failure) head).exception;
+        }
+    }
+
+    /**
+     * Get a collector which hands children over to this stream
+     *
+     * <p>The collector's result is the list of all children, unless there
+     * were more than {@code retainLimit} of them, in which case it is {@code
+     * null}.</p>
+     *
+     * @param retainLimit maximum number of children to retain
+     * @return a collector
+     */
+    Collector<DbxEntry, List<DbxEntry>> collector(final int retainLimit)
+    {
+        return new Collector<DbxEntry, List<DbxEntry>>()
+        {
+            private List<DbxEntry> retained = new ArrayList<>();
+
+            @Override
+            public void add(final DbxEntry element)
+            {
+                offer(element);
+                if (retained == null)
+                    return;
+                if (retained.size() < retainLimit)
+                    retained.add(element);
+                else
+                    retained = null;
+            }
+
+            @Override
+            public List<DbxEntry> finish()
+            {
+                return retained;
+            }
+        };
+    }
+
+    /**
+     * Producer side: get the scope to record the metadata of children in
+     *
+     * @return the scope
+     */
+    MetadataCache.Scope getScope()
+    {
+        return scope;
+    }
+
+    /**
+     * Producer side: tell whether any child has been handed over yet
+     *
+     * @return true if at least one child was handed over
+     */
+    boolean hasDelivered()
+    {
+        return delivered;
+    }
+
+    /**
+     * Producer side: hand over all remaining children, and end the stream
+     *
+     * @param children the children
+     */
+    void endWith(final List<DbxEntry> children)
+    {
+        put(new Tail(children));
+    }
+
+    /**
+     * Producer side: end the stream
+     */
+    void end()
+    {
+        put(END);
+    }
+
+    /**
+     * Producer side: end the stream with an error
+     *
+     * @param exception the error
+     */
+    void fail(final IOException exception)
+    {
+        put(new Failure(exception));
+    }
+
+    @Override
+    public Iterator<Path> iterator()
+    {
+        // required by the contract
+        if (iteratorCalled.getAndSet(true))
+            throw new IllegalStateException();
+        if (closed.get())
+            throw new IllegalStateException("directory stream closed");
+        return new StreamIterator();
+    }
+
+    @Override
+    public void close()
+    {
+        if (closed.getAndSet(true))
+            return;
+        final Future<?> future = producer;
+        if (future != null)
+            future.cancel(true);
+        queue.clear();
+        scope.close();
+    }
+
+    private void offer(final DbxEntry entry)
+    {
+        delivered = true;
+        put(entry);
+    }
+
+    private void put(final Object element)
+    {
+        if (closed.get())
+            throw new StreamClosedException();
+        queue.add(element);
+        started.countDown();
+    }
+
+    private final class StreamIterator
+        implements Iterator<Path>
+    {
+        private Iterator<DbxEntry> tail = null;
+        private boolean done = false;
+        private Path next = null;
+
+        @Override
+        public boolean hasNext()
+        {
+            if (next != null)
+                return true;
+            if (done)
+                return false;
+
+            DbxEntry entry;
+            Path path;
+
+            while ((entry = nextEntry()) != null) {
+                path = dir.resolve(entry.name);
+                try {
+                    if (filter.accept(path)) {
+                        next = path;
+                        return true;
+                    }
+                } catch (IOException e) {
+                    throw new DirectoryIteratorException(e);
+                }
+            }
+
+            return false;
+        }
+
+        @Override
+        public Path next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            final Path ret = next;
+            next = null;
+            return ret;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Nullable
+        private DbxEntry nextEntry()
+        {
+            while (!done) {
+                if (tail != null) {
+                    if (tail.hasNext())
+                        return tail.next();
+                    done = true;
+                    break;
+                }
+
+                if (closed.get()) {
+                    done = true;
+                    break;
+                }
+
+                final Object element;
+                try {
+                    element = queue.take();
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                    done = true;
+                    throw new DirectoryIteratorException(
+                        new InterruptedIOException("interrupted while listing "
+                            + dir));
+                }
+
+                if (element instanceof DbxEntry)
+                    return (DbxEntry) element;
+                if (element instanceof Tail) {
+                    tail = ((Tail) element).children.iterator();
+                    continue;
+                }
+                done = true;
+                if (element instanceof Failure)
+                    throw new DirectoryIteratorException(
+                        ((Failure) element).exception);
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Thrown to the producer when the stream has been closed
+     */
+    @SuppressWarnings("serial")
+    static final class StreamClosedException
+        extends RuntimeException
+    {
+    }
+
+    private static final class Tail
+    {
+        private final List<DbxEntry> children;
+
+        private Tail(final List<DbxEntry> children)
+        {
+            this.children = children;
+        }
+    }
+
+    private static final class Failure
+    {
+        private final IOException exception;
+
+        private Failure(final IOException exception)
+        {
+            this.exception = exception;
+        }
+    }
+}
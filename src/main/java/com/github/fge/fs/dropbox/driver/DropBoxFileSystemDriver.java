@@ -1,51 +1,248 @@
 package com.github.fge.fs.dropbox.driver;
 
 import com.dropbox.core.DbxClient;
+import com.dropbox.core.DbxDelta;
 import com.dropbox.core.DbxEntry;
 import com.dropbox.core.DbxException;
+import com.dropbox.core.DbxHost;
 import com.dropbox.core.DbxWriteMode;
+import com.dropbox.core.util.Collector;
+import com.dropbox.core.util.Maybe;
 import com.github.fge.filesystem.driver.UnixLikeFileSystemDriverBase;
 import com.github.fge.filesystem.exceptions.IsDirectoryException;
 import com.github.fge.filesystem.provider.FileSystemFactoryProvider;
+import com.github.fge.fs.dropbox.attr.DropBoxMetadata;
+import com.github.fge.fs.dropbox.cache.ContentCache;
+import com.github.fge.fs.dropbox.cache.ContentHashCache;
+import com.github.fge.fs.dropbox.cache.ListingCache;
+import com.github.fge.fs.dropbox.cache.MetadataCache;
+import com.github.fge.fs.dropbox.delta.DbxClientDeltaSource;
+import com.github.fge.fs.dropbox.delta.DeltaCoherenceEngine;
+import com.github.fge.fs.dropbox.filestore.DropBoxFileStore;
+import com.github.fge.fs.dropbox.metrics.DropBoxMetrics;
+import com.github.fge.fs.dropbox.metrics.Operation;
+import com.github.fge.fs.dropbox.misc.ChunkedUploader;
+import com.github.fge.fs.dropbox.misc.ContentHasher;
+import com.github.fge.fs.dropbox.misc.DropBoxAsynchronousFileChannel;
+import com.github.fge.fs.dropbox.misc.DropBoxEnv;
 import com.github.fge.fs.dropbox.misc.DropBoxIOException;
 import com.github.fge.fs.dropbox.misc.DropBoxInputStream;
+import com.github.fge.fs.dropbox.misc.DropBoxOpenOption;
 import com.github.fge.fs.dropbox.misc.DropBoxOutputStream;
+import com.github.fge.fs.dropbox.misc.DropBoxSeekableByteChannel;
+import com.github.fge.fs.dropbox.misc.ParallelDownloadInputStream;
+import com.github.fge.fs.dropbox.misc.RangeDownloader;
+import com.github.fge.fs.dropbox.misc.SkipUnchangedOutputStream;
+import com.github.fge.fs.dropbox.misc.WriteBehindUploader;
+import com.github.fge.fs.dropbox.rpc.DbxCall;
+import com.github.fge.fs.dropbox.rpc.Lane;
+import com.github.fge.fs.dropbox.rpc.RequestExecutor;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.AccessMode;
 import java.nio.file.CopyOption;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileStore;
+import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.spi.FileSystemProvider;
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @SuppressWarnings("OverloadedVarargsMethod")
 @ParametersAreNonnullByDefault
 public final class DropBoxFileSystemDriver
     extends UnixLikeFileSystemDriverBase
 {
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static final AtomicInteger FILESYSTEM_COUNT = new AtomicInteger();
+    private static final String METRICS_DOMAIN = "com.github.fge.fs.dropbox";
+    private static final int UPLOAD_BUFFER_SIZE = 65536;
+
     private final DbxClient client;
+    private final RequestExecutor requestExecutor;
+    private final ExecutorService executor;
+    private final ExecutorService asyncExecutor;
+    private final RangeDownloader rangeDownloader;
+    private final int channelBlockSize;
+    private final int channelCachedBlocks;
+    private final long parallelDownloadThreshold;
+    private final int parallelDownloadPartSize;
+    private final int parallelDownloadParts;
+    private final int uploadChunkSize;
+    private final int uploadSingleThreshold;
+    private final int uploadChunksInFlight;
+    private final int uploadChunkRetries;
+    private final Path spoolDirectory;
+    private final WriteBehindUploader writeBehind;
+    private final ContentHashCache contentHashes;
+    private final MetadataCache metadataCache;
+    private final ListingCache listingCache;
+    private final ContentCache contentCache;
+    private final DeltaCoherenceEngine coherenceEngine;
+    private final DropBoxFileStore dropBoxFileStore;
+    private final DropBoxMetrics metrics;
+    private final ObjectName metricsName;
+    private final Closeable resources;
 
     public DropBoxFileSystemDriver(final FileStore fileStore,
         final FileSystemFactoryProvider provider, final DbxClient client)
+        throws IOException
+    {
+        this(fileStore, provider, client, RequestExecutor.withDefaults(null),
+            DropBoxEnv.empty());
+    }
+
+    public DropBoxFileSystemDriver(final FileStore fileStore,
+        final FileSystemFactoryProvider provider, final DbxClient client,
+        final RequestExecutor requestExecutor, final DropBoxEnv env)
+        throws IOException
+    {
+        this(fileStore, provider, client, requestExecutor, env, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param fileStore the file store
+     * @param provider the factory provider
+     * @param client the DropBox client
+     * @param requestExecutor the executor to run API calls with
+     * @param env the environment
+     * @param resources resources to close along with this driver, such as a
+     * shared HTTP requestor; may be {@code null}
+     * @throws IOException failed to initialize the driver
+     */
+    public DropBoxFileSystemDriver(final FileStore fileStore,
+        final FileSystemFactoryProvider provider, final DbxClient client,
+        final RequestExecutor requestExecutor, final DropBoxEnv env,
+        @Nullable final Closeable resources)
+        throws IOException
     {
         super(fileStore, provider);
         this.client = client;
+        this.resources = resources;
+        this.requestExecutor = requestExecutor;
+        dropBoxFileStore = fileStore instanceof DropBoxFileStore
+            ? (DropBoxFileStore) fileStore : null;
+        executor = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(final Runnable r)
+            {
+                final Thread t = new Thread(r,
+                    "dropbox-driver-" + THREAD_COUNT.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        final ExecutorService asyncExecutor
+            = env.getObject(DropBoxEnv.ASYNC_EXECUTOR, ExecutorService.class);
+        this.asyncExecutor = asyncExecutor == null ? executor : asyncExecutor;
+        metadataCache = new MetadataCache(
+            env.getInt(DropBoxEnv.METADATA_CACHE_SIZE,
+                MetadataCache.DEFAULT_SIZE),
+            env.getLong(DropBoxEnv.METADATA_CACHE_TTL,
+                MetadataCache.DEFAULT_TTL),
+            env.getInt(DropBoxEnv.METADATA_CACHE_ABSENT_SIZE,
+                MetadataCache.DEFAULT_ABSENT_SIZE),
+            env.getLong(DropBoxEnv.METADATA_CACHE_ABSENT_TTL,
+                MetadataCache.DEFAULT_ABSENT_TTL)
+        );
+        final DbxHost envHost = env.getObject(DropBoxEnv.HOST, DbxHost.class);
+        final DbxHost host = envHost == null ? DbxHost.Default : envHost;
+        rangeDownloader = new RangeDownloader(client, requestExecutor, host);
+        channelBlockSize = env.getInt(DropBoxEnv.CHANNEL_BLOCK_SIZE,
+            DropBoxSeekableByteChannel.DEFAULT_BLOCK_SIZE);
+        channelCachedBlocks = env.getInt(DropBoxEnv.CHANNEL_CACHED_BLOCKS,
+            DropBoxSeekableByteChannel.DEFAULT_CACHED_BLOCKS);
+        parallelDownloadThreshold
+            = env.getLong(DropBoxEnv.PARALLEL_DOWNLOAD_THRESHOLD, 0L);
+        parallelDownloadPartSize
+            = env.getInt(DropBoxEnv.PARALLEL_DOWNLOAD_PART_SIZE,
+                ParallelDownloadInputStream.DEFAULT_PART_SIZE);
+        parallelDownloadParts = env.getInt(DropBoxEnv.PARALLEL_DOWNLOAD_PARTS,
+            ParallelDownloadInputStream.DEFAULT_PARALLELISM);
+        uploadChunkSize = env.getInt(DropBoxEnv.UPLOAD_CHUNK_SIZE,
+            ChunkedUploader.DEFAULT_CHUNK_SIZE);
+        uploadSingleThreshold = env.getInt(
+            DropBoxEnv.UPLOAD_SINGLE_THRESHOLD, uploadChunkSize);
+        uploadChunksInFlight = env.getInt(DropBoxEnv.UPLOAD_CHUNKS_IN_FLIGHT,
+            ChunkedUploader.DEFAULT_CHUNKS_IN_FLIGHT);
+        uploadChunkRetries = env.getInt(DropBoxEnv.UPLOAD_CHUNK_RETRIES,
+            ChunkedUploader.DEFAULT_MAX_RETRIES);
+        final String spoolDirectory
+            = env.getString(DropBoxEnv.WRITE_BEHIND_DIRECTORY);
+        this.spoolDirectory = spoolDirectory == null ? null
+            : Paths.get(spoolDirectory);
+        if (env.getBoolean(DropBoxEnv.WRITE_BEHIND, false))
+            writeBehind = new WriteBehindUploader(this.spoolDirectory,
+                env.getLong(DropBoxEnv.WRITE_BEHIND_MAX_PENDING,
+                    WriteBehindUploader.DEFAULT_MAX_PENDING),
+                env.getInt(DropBoxEnv.WRITE_BEHIND_THREADS,
+                    WriteBehindUploader.DEFAULT_THREADS)
+            );
+        else
+            writeBehind = null;
+        final String contentHashFile
+            = env.getString(DropBoxEnv.CONTENT_HASH_FILE);
+        contentHashes = new ContentHashCache(contentHashFile == null ? null
+            : Paths.get(contentHashFile));
+        listingCache = new ListingCache(
+            env.getInt(DropBoxEnv.LISTING_CACHE_SIZE, ListingCache.DEFAULT_SIZE)
+        );
+
+        final String contentCacheDirectory
+            = env.getString(DropBoxEnv.CONTENT_CACHE_DIRECTORY);
+        contentCache = contentCacheDirectory == null ? null
+            : new ContentCache(Paths.get(contentCacheDirectory),
+                env.getLong(DropBoxEnv.CONTENT_CACHE_SIZE,
+                    ContentCache.DEFAULT_SIZE));
+
+        metrics = new DropBoxMetrics(requestExecutor, contentCache);
+        metricsName = env.getBoolean(DropBoxEnv.JMX_ENABLED, true)
+            ? registerMetrics(metrics) : null;
+
+        if (env.getBoolean(DropBoxEnv.DELTA_COHERENCE, false)) {
+            final String prefix = env.getString(DropBoxEnv.DELTA_PATH_PREFIX);
+            coherenceEngine = new DeltaCoherenceEngine(
+                new DbxClientDeltaSource(client, prefix, host.api,
+                    DbxClientDeltaSource.DEFAULT_NOTIFY_HOST), metadataCache,
+                env.getLong(DropBoxEnv.DELTA_MAX_STALENESS,
+                    DeltaCoherenceEngine.DEFAULT_MAX_STALENESS),
+                env.getInt(DropBoxEnv.DELTA_LONGPOLL_TIMEOUT,
+                    DeltaCoherenceEngine.DEFAULT_LONGPOLL_TIMEOUT),
+                prefix
+            );
+            coherenceEngine.start();
+        } else
+            coherenceEngine = null;
     }
 
     @Nonnull
@@ -54,269 +251,1606 @@ public final class DropBoxFileSystemDriver
         final Set<OpenOption> options)
         throws IOException
     {
-        // TODO: need a "shortcut" way for that; it's quite common
-        final String target = path.toRealPath().toString();
-        final DbxEntry entry;
+        final long start = System.nanoTime();
+        final InputStream ret;
 
         try {
-            entry = client.getMetadata(target);
-        } catch (DbxException e) {
-            throw DropBoxIOException.wrap(e);
+            ret = metrics.countReads(openInputStream(path, options));
+        } catch (IOException | RuntimeException e) {
+            metrics.recordFailure(Operation.NEW_INPUT_STREAM, start, e);
+            throw e;
         }
 
-        // TODO: metadata driver
+        metrics.recordSuccess(Operation.NEW_INPUT_STREAM, start);
+        return ret;
+    }
+
+    private InputStream openInputStream(final Path path,
+        final Set<OpenOption> options)
+        throws IOException
+    {
+        final String target = path.toRealPath().toString();
+
+        /*
+         * Unless the metadata is needed first, to look up the content cache,
+         * or is known already, download right away: the metadata of the file
+         * comes along with its contents
+         */
+        if (contentCache == null && metadataCache.get(target) == null
+            && !metadataCache.isAbsent(target))
+            return openOptimistically(target);
+
+        final DbxEntry entry = lookup(target);
+
+        if (entry == null)
+            throw new NoSuchFileException(target);
+
         if (entry.isFolder())
             throw new IsDirectoryException(target);
 
-        final DbxClient.Downloader downloader;
+        return openFile(target, entry.asFile());
+    }
+
+    private InputStream openOptimistically(final String target)
+        throws IOException
+    {
+        if (writeBehind != null)
+            writeBehind.awaitQuietly(target);
 
-        try {
-            downloader = client.startGetFile(target, null);
-        } catch (DbxException e) {
-            throw new DropBoxIOException(e);
+        final long generation = metadataCache.generation();
+        final DbxClient.Downloader downloader = startDownload(target);
+
+        if (downloader == null) {
+            /*
+             * DropBox answers the same for directories and missing files;
+             * only the metadata tells which it is
+             */
+            final DbxEntry entry = fetchMetadata(target);
+            if (entry == null)
+                throw new NoSuchFileException(target);
+            if (entry.isFolder())
+                throw new IsDirectoryException(target);
+            // created in the meantime
+            return openFile(target, entry.asFile());
+        }
+
+        final DbxEntry.File file = downloader.metadata;
+
+        // for later attribute reads
+        metadataCache.putIfUnchanged(target, file, generation);
+
+        /*
+         * Too late to spare this request, but not to download the rest of a
+         * large file faster
+         */
+        if (parallelDownloadThreshold > 0L
+            && file.numBytes >= parallelDownloadThreshold) {
+            downloader.close();
+            return new ParallelDownloadInputStream(rangeDownloader, executor,
+                target, file.rev, file.numBytes, parallelDownloadPartSize,
+                parallelDownloadParts);
         }
 
         return new DropBoxInputStream(downloader);
     }
 
-    @Nonnull
-    @Override
-    public OutputStream newOutputStream(final Path path,
-        final Set<OpenOption> options)
+    private InputStream openFile(final String target,
+        final DbxEntry.File file)
         throws IOException
     {
-        // TODO: need a "shortcut" way for that; it's quite common
-        final String target = path.toRealPath().toString();
-        final DbxEntry entry;
+        if (contentCache != null) {
+            final InputStream in = contentCache.open(target, file.rev,
+                file.numBytes, new ContentCache.Loader()
+                {
+                    @Override
+                    public void load(final OutputStream out)
+                        throws IOException
+                    {
+                        download(target, file, out);
+                    }
+                });
+            if (in != null)
+                return in;
+        }
+
+        if (parallelDownloadThreshold > 0L
+            && file.numBytes >= parallelDownloadThreshold)
+            return new ParallelDownloadInputStream(rangeDownloader, executor,
+                target, file.rev, file.numBytes, parallelDownloadPartSize,
+                parallelDownloadParts);
+
+        final DbxClient.Downloader downloader = startDownload(target);
+
+        // deleted in the meantime
+        if (downloader == null)
+            throw new NoSuchFileException(target);
+
+        return new DropBoxInputStream(downloader);
+    }
 
+    /*
+     * Returns null if there is no file at this path
+     */
+    @Nullable
+    private DbxClient.Downloader startDownload(final String target)
+        throws IOException
+    {
         try {
-            entry = client.getMetadata(target);
+            return requestExecutor.execute(
+                new DbxCall<DbxClient.Downloader>()
+                {
+                    @Override
+                    public DbxClient.Downloader call()
+                        throws DbxException
+                    {
+                        return client.startGetFile(target, null);
+                    }
+                }, Lane.BULK);
         } catch (DbxException e) {
             throw new DropBoxIOException(e);
         }
-
-        // TODO: metadata
-        if (entry != null)
-            if (entry.isFolder())
-                throw new IsDirectoryException(target);
-
-        final DbxClient.Uploader uploader
-            = client.startUploadFileChunked(target, DbxWriteMode.force(), -1L);
-
-        return new DropBoxOutputStream(uploader);
     }
 
     @Nonnull
     @Override
-    public DirectoryStream<Path> newDirectoryStream(final Path dir,
-        final DirectoryStream.Filter<? super Path> filter)
+    public OutputStream newOutputStream(final Path path,
+        final Set<OpenOption> options)
         throws IOException
     {
-        // TODO: need a "shortcut" way for that; it's quite common
-        final String target = dir.toRealPath().toString();
-        final DbxEntry.WithChildren dirent;
+        final long start = System.nanoTime();
+        final OutputStream ret;
+
         try {
-            dirent = client.getMetadataWithChildren(target);
-        } catch (DbxException e) {
-            throw new DropBoxIOException(e);
+            ret = metrics.countWrites(openOutputStream(path, options));
+        } catch (IOException | RuntimeException e) {
+            metrics.recordFailure(Operation.NEW_OUTPUT_STREAM, start, e);
+            throw e;
         }
 
-        if (!dirent.entry.isFolder())
-            throw new NotDirectoryException(target);
+        metrics.recordSuccess(Operation.NEW_OUTPUT_STREAM, start);
+        return ret;
+    }
 
-        final List<DbxEntry> children = dirent.children;
-        final List<Path> list = new ArrayList<>(children.size());
+    private OutputStream openOutputStream(final Path path,
+        final Set<OpenOption> options)
+        throws IOException
+    {
+        final String target = path.toRealPath().toString();
+        final boolean skipUnchanged
+            = options.contains(DropBoxOpenOption.SKIP_UNCHANGED);
 
-        for (final DbxEntry child: children)
-            list.add(dir.resolve(child.name));
+        /*
+         * The target need not be looked up, unless its revision is needed:
+         * DropBox refuses to commit an upload over a directory, which is then
+         * reported as an IsDirectoryException (see upload()). Known metadata
+         * is still used to fail early.
+         */
+        final DbxEntry entry = skipUnchanged ? lookup(target)
+            : metadataCache.get(target);
 
-        //noinspection AnonymousInnerClassWithTooManyMethods
-        return new DirectoryStream<Path>()
-        {
-            private final AtomicBoolean alreadyOpen = new AtomicBoolean(false);
+        if (entry != null && entry.isFolder())
+            throw new IsDirectoryException(target);
+
+        metadataCache.invalidate(target);
 
+        if (skipUnchanged) {
+            final String currentHash = entry == null ? null
+                : contentHashes.get(target, entry.asFile().rev);
+            return new SkipUnchangedOutputStream(createSpoolFile(),
+                currentHash, new SkipUnchangedOutputStream.Uploader()
+                {
+                    @Override
+                    public void upload(final Path spool, final String hash)
+                        throws IOException
+                    {
+                        uploadSpool(target, spool, hash);
+                    }
+                });
+        }
+
+        if (writeBehind == null)
+            return upload(target);
+
+        return writeBehind.open(target, new WriteBehindUploader.Sink()
+        {
             @Override
-            public Iterator<Path> iterator()
+            public OutputStream open()
             {
-                // required by the contract
-                if (alreadyOpen.getAndSet(true))
-                    throw new IllegalStateException();
-                return list.iterator();
+                return upload(target);
             }
+        });
+    }
+
+    private Path createSpoolFile()
+        throws IOException
+    {
+        return spoolDirectory == null
+            ? Files.createTempFile("dropbox-", ".spool")
+            : Files.createTempFile(spoolDirectory, "dropbox-", ".spool");
+    }
 
+    /*
+     * Upload a spool file whose content hash is known, and record this hash
+     * for the new revision once the upload succeeds
+     */
+    private void uploadSpool(final String target, final Path spool,
+        final String hash)
+        throws IOException
+    {
+        final WriteBehindUploader.Sink sink = new WriteBehindUploader.Sink()
+        {
             @Override
-            public void close()
-                throws IOException
+            public OutputStream open()
             {
+                final DropBoxOutputStream out = upload(target);
+                return new OutputStream()
+                {
+                    @Override
+                    public void write(final int b)
+                        throws IOException
+                    {
+                        out.write(b);
+                    }
+
+                    @Override
+                    public void write(final byte[] b, final int off,
+                        final int len)
+                        throws IOException
+                    {
+                        out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close()
+                        throws IOException
+                    {
+                        out.close();
+                        final DbxEntry.File entry = out.getEntry();
+                        if (entry != null)
+                            contentHashes.put(target, entry.rev, hash);
+                    }
+                };
             }
         };
-    }
 
-    @Override
-    public void createDirectory(final Path dir, final FileAttribute<?>... attrs)
-        throws IOException
-    {
-        // TODO: need a "shortcut" way for that; it's quite common
-        final String target = dir.toRealPath().toString();
+        if (writeBehind != null) {
+            writeBehind.upload(target, spool, sink);
+            return;
+        }
 
-        try {
-            // TODO: how to diagnose?
-            if (client.createFolder(target) == null)
-                throw new DropBoxIOException("cannot create directory??");
-        } catch (DbxException e) {
-            throw DropBoxIOException.wrap(e);
+        try (
+            final OutputStream out = sink.open();
+        ) {
+            Files.copy(spool, out);
+        } finally {
+            Files.deleteIfExists(spool);
         }
     }
 
-    @Override
-    public void delete(final Path path)
-        throws IOException
+    private DropBoxOutputStream upload(final String target)
     {
-        // TODO: need a "shortcut" way for that; it's quite common
-        final String target = path.toRealPath().toString();
+        final DbxClient.Uploader uploader = new ChunkedUploader(client,
+            requestExecutor, executor, target, DbxWriteMode.force(),
+            uploadChunkSize, uploadSingleThreshold, uploadChunksInFlight,
+            uploadChunkRetries);
 
-        final DbxEntry.WithChildren entry;
+        return new DropBoxOutputStream(uploader, target, metadataCache,
+            dropBoxFileStore, new DropBoxOutputStream.FailureHandler()
+            {
+                @Override
+                public IOException handle(final IOException failure)
+                {
+                    return uploadFailure(target, failure);
+                }
+            });
+    }
+
+    /*
+     * Report an upload over a directory as such; since the upload may run in
+     * the background, this must not wait for write-behind uploads
+     */
+    private IOException uploadFailure(final String target,
+        final IOException failure)
+    {
+        final DbxEntry entry;
 
         try {
-            entry = client.getMetadataWithChildren(target);
-        } catch (DbxException e) {
-            throw DropBoxIOException.wrap(e);
+            entry = fetchMetadata(target);
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+            return failure;
         }
 
-        // TODO: metadata!
-        if (entry.entry.isFolder() && !entry.children.isEmpty())
-            throw new DirectoryNotEmptyException(target);
+        if (entry == null || !entry.isFolder())
+            return failure;
 
-        try {
-            client.delete(target);
-        } catch (DbxException e) {
-            throw DropBoxIOException.wrap(e);
-        }
+        final IsDirectoryException ret = new IsDirectoryException(target);
+        ret.initCause(failure);
+        return ret;
     }
 
-    @Override
-    public void copy(final Path source, final Path target,
-        final Set<CopyOption> options)
+    /**
+     * Get the pending upload of a file written in write-behind mode
+     *
+     * <p>The future completes once the contents written to the file are on
+     * DropBox. If the upload failed, it is kept until a new upload of the
+     * same file or a call to {@link #awaitUpload(Path)}.</p>
+     *
+     * @param path the path of the file
+     * @return the upload, or {@code null} if there is no pending or failed
+     * upload for this file
+     * @throws IOException failed to resolve the path
+     *
+     * @see DropBoxEnv#WRITE_BEHIND
+     */
+    @Nullable
+    public Future<Void> getUpload(final Path path)
         throws IOException
     {
-        final String srcpath = source.toRealPath().toString();
-        final String dstpath = source.toRealPath().toString();
-
-        final DbxEntry.WithChildren dstentry;
+        return writeBehind == null ? null
+            : writeBehind.getUpload(path.toRealPath().toString());
+    }
 
-        try {
-            dstentry = client.getMetadataWithChildren(dstpath);
-        } catch (DbxException e) {
-            throw DropBoxIOException.wrap(e);
-        }
+    /**
+     * Wait for the pending upload of a file written in write-behind mode, if
+     * any
+     *
+     * @param path the path of the file
+     * @throws IOException the upload failed
+     *
+     * @see DropBoxEnv#WRITE_BEHIND
+     */
+    public void awaitUpload(final Path path)
+        throws IOException
+    {
+        if (writeBehind != null)
+            writeBehind.await(path.toRealPath().toString());
+    }
 
-        if (dstentry != null) {
-            if (dstentry.entry.isFolder() && !dstentry.children.isEmpty())
-                throw new DirectoryNotEmptyException(dstpath);
-            // TODO: unknown what happens when a copy operation is performed
-            try {
-                client.delete(dstpath);
-            } catch (DbxException e) {
-                throw DropBoxIOException.wrap(e);
-            }
-        }
+    /**
+     * Upload a local file
+     *
+     * <p>The content hash of the file is computed as it is uploaded, and
+     * remembered for the new revision, as uploads using {@link
+     * DropBoxOpenOption#SKIP_UNCHANGED} do; unlike those, the file is not
+     * spooled first. This method does not use write-behind mode: it returns
+     * once the file is on DropBox.</p>
+     *
+     * @param source the local file
+     * @param target the path to upload to
+     * @throws IsDirectoryException target is a directory
+     * @throws IOException failed to read the local file, or DropBox API error
+     *
+     * @see #getContentHash(Path)
+     */
+    public void uploadFile(final Path source, final Path target)
+        throws IOException
+    {
+        final long start = System.nanoTime();
 
         try {
-            // TODO: how to diagnose?
-            if (client.copy(srcpath, dstpath) == null)
-                throw new DropBoxIOException("cannot copy??");
-        } catch (DbxException e) {
-            throw new DropBoxIOException(e);
+            uploadLocalFile(source, target);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordFailure(Operation.UPLOAD_FILE, start, e);
+            throw e;
         }
+
+        metrics.recordSuccess(Operation.UPLOAD_FILE, start);
     }
 
-    @Override
-    public void move(final Path source, final Path target,
-        final Set<CopyOption> options)
+    private void uploadLocalFile(final Path source, final Path path)
         throws IOException
     {
-        final String srcpath = source.toRealPath().toString();
-        final String dstpath = source.toRealPath().toString();
+        final String target = path.toRealPath().toString();
+        final DbxEntry entry = lookup(target);
 
-        final DbxEntry.WithChildren dstentry;
+        if (entry != null && entry.isFolder())
+            throw new IsDirectoryException(target);
 
-        try {
-            dstentry = client.getMetadataWithChildren(dstpath);
-        } catch (DbxException e) {
-            throw DropBoxIOException.wrap(e);
-        }
+        metadataCache.invalidate(target);
 
-        if (dstentry != null) {
-            if (dstentry.entry.isFolder() && !dstentry.children.isEmpty())
-                throw new DirectoryNotEmptyException(dstpath);
-            // TODO: unknown what happens when a move operation is performed
-            // and the target already exists
-            try {
-                client.delete(dstpath);
-            } catch (DbxException e) {
-                throw DropBoxIOException.wrap(e);
+        final ContentHasher hasher = new ContentHasher();
+        final byte[] buf = new byte[UPLOAD_BUFFER_SIZE];
+        final DropBoxOutputStream out = upload(target);
+        int count;
+
+        try (
+            final InputStream in = Files.newInputStream(source);
+            final OutputStream closing = out;
+        ) {
+            while ((count = in.read(buf)) != -1) {
+                hasher.update(buf, 0, count);
+                closing.write(buf, 0, count);
             }
         }
 
-        try {
-            client.move(srcpath, dstpath);
-        } catch (DbxException e) {
-            throw DropBoxIOException.wrap(e);
-        }
+        final DbxEntry.File uploaded = out.getEntry();
+        if (uploaded != null)
+            contentHashes.put(target, uploaded.rev, hasher.digest());
     }
 
     /**
-     * Check access modes for a path on this filesystem
-     * <p>If no modes are provided to check for, this simply checks for the
-     * existence of the path.</p>
+     * Get the content hash of the current revision of a file, if known
      *
-     * @param path the path to check
-     * @param modes the modes to check for, if any
-     * @throws IOException filesystem level error, or a plain I/O error
-     * @see FileSystemProvider#checkAccess(Path, AccessMode...)
+     * <p>The hash is known only if this revision was uploaded using this
+     * filesystem (possibly in an earlier session, see {@link
+     * DropBoxEnv#CONTENT_HASH_FILE}), by {@link #uploadFile(Path, Path)} or
+     * with {@link DropBoxOpenOption#SKIP_UNCHANGED}.</p>
+     *
+     * @param path the path of the file
+     * @return the hash, as computed by {@link ContentHasher}, or {@code null}
+     * if the file does not exist, is a directory, or its hash is not known
+     * @throws IOException DropBox API error
      */
-    @Override
-    public void checkAccess(final Path path, final AccessMode... modes)
+    @Nullable
+    public String getContentHash(final Path path)
         throws IOException
     {
         final String target = path.toRealPath().toString();
+        final DbxEntry entry = lookup(target);
 
-        final DbxEntry entry;
+        return entry == null || entry.isFolder() ? null
+            : contentHashes.get(target, entry.asFile().rev);
+    }
+
+    /**
+     * Get the content hash of a given revision of a file, if known
+     *
+     * <p>Unlike {@link #getContentHash(Path)}, this does not look the file
+     * up, and costs no API call; use it when the revision is already known,
+     * for instance from the {@code rev} attribute of a file returned by a
+     * {@link #newTreeStream(Path, DirectoryStream.Filter) tree stream}.</p>
+     *
+     * @param path the path of the file
+     * @param rev the revision
+     * @return the hash, as computed by {@link ContentHasher}, or {@code null}
+     * if it is not known
+     * @throws IOException failed to resolve the path
+     */
+    @Nullable
+    public String getContentHash(final Path path, final String rev)
+        throws IOException
+    {
+        return contentHashes.get(path.toRealPath().toString(), rev);
+    }
+
+    /**
+     * Open a read only seekable channel to a file
+     *
+     * <p>Reads are served using HTTP range requests, so that seeking in a
+     * file does not require to download it from the start.</p>
+     *
+     * @param path the path to open
+     * @param options the open options
+     * @param attrs ignored
+     * @return a read only channel
+     * @throws IOException file not found, is a directory, or DropBox API error
+     * @throws UnsupportedOperationException write access was requested
+     *
+     * @see DropBoxSeekableByteChannel
+     */
+    @Nonnull
+    public SeekableByteChannel newByteChannel(final Path path,
+        final Set<? extends OpenOption> options,
+        final FileAttribute<?>... attrs)
+        throws IOException
+    {
+        final long start = System.nanoTime();
+        final SeekableByteChannel ret;
 
         try {
-            entry = client.getMetadata(target);
-        } catch (DbxException e) {
-            throw DropBoxIOException.wrap(e);
+            ret = openByteChannel(path, options, attrs);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordFailure(Operation.NEW_BYTE_CHANNEL, start, e);
+            throw e;
         }
 
+        metrics.recordSuccess(Operation.NEW_BYTE_CHANNEL, start);
+        return ret;
+    }
+
+    private SeekableByteChannel openByteChannel(final Path path,
+        final Set<? extends OpenOption> options,
+        final FileAttribute<?>... attrs)
+        throws IOException
+    {
+        if (options.contains(StandardOpenOption.WRITE)
+            || options.contains(StandardOpenOption.APPEND))
+            throw new UnsupportedOperationException("only read only channels "
+                + "are supported");
+
+        final String target = path.toRealPath().toString();
+        final DbxEntry entry = lookup(target);
+
         if (entry == null)
             throw new NoSuchFileException(target);
 
-        if (!entry.isFile())
-            return;
+        if (entry.isFolder())
+            throw new IsDirectoryException(target);
 
-        // TODO: assumed; not a file == directory
-        for (final AccessMode mode: modes)
-            if (mode == AccessMode.EXECUTE)
-                throw new AccessDeniedException(target);
-    }
+        final DbxEntry.File file = entry.asFile();
 
-    @Override
-    public void close()
-        throws IOException
-    {
-        // TODO: what to do here? DbxClient does not implement Closeable :(
+        return new DropBoxSeekableByteChannel(rangeDownloader, target,
+            file.rev, file.numBytes, channelBlockSize, channelCachedBlocks);
     }
 
+    /**
+     * Open an asynchronous channel to a file
+     *
+     * <p>The channel is read only, unless {@link StandardOpenOption#WRITE} is
+     * among the options; in this case, it is write only, and the contents
+     * written to it replace the whole file when it is closed.</p>
+     *
+     * @param path the path to open
+     * @param options the open options
+     * @param executor the executor running operations and completion
+     * handlers; if {@code null}, the executor configured for the filesystem
+     * @param attrs ignored
+     * @return a new channel
+     * @throws IOException file not found, is a directory, already exists, or
+     * DropBox API error
+     * @throws UnsupportedOperationException channel open both for reading and
+     * writing, or in append mode
+     *
+     * @see DropBoxAsynchronousFileChannel
+     */
     @Nonnull
-    @Override
-    public Object getPathMetadata(final Path path)
+    public AsynchronousFileChannel newAsynchronousFileChannel(final Path path,
+        final Set<? extends OpenOption> options,
+        @Nullable final ExecutorService executor,
+        final FileAttribute<?>... attrs)
         throws IOException
     {
+        final long start = System.nanoTime();
+        final AsynchronousFileChannel ret;
+
         try {
-            return client.getMetadata(path.toRealPath().toString());
-        } catch (DbxException e) {
-            throw DropBoxIOException.wrap(e);
+            ret = openAsynchronousFileChannel(path, options, executor, attrs);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordFailure(Operation.NEW_ASYNCHRONOUS_FILE_CHANNEL,
+                start, e);
+            throw e;
         }
+
+        metrics.recordSuccess(Operation.NEW_ASYNCHRONOUS_FILE_CHANNEL, start);
+        return ret;
+    }
+
+    private AsynchronousFileChannel openAsynchronousFileChannel(final Path path,
+        final Set<? extends OpenOption> options,
+        @Nullable final ExecutorService executor,
+        final FileAttribute<?>... attrs)
+        throws IOException
+    {
+        final boolean write = options.contains(StandardOpenOption.WRITE);
+
+        if (options.contains(StandardOpenOption.APPEND))
+            throw new UnsupportedOperationException("append mode is not "
+                + "supported");
+        if (write && options.contains(StandardOpenOption.READ))
+            throw new UnsupportedOperationException("channels cannot be open "
+                + "for both reading and writing");
+
+        final ExecutorService service = executor == null ? asyncExecutor
+            : executor;
+        final String target = path.toRealPath().toString();
+        final DbxEntry entry = lookup(target);
+
+        if (entry != null && entry.isFolder())
+            throw new IsDirectoryException(target);
+
+        if (!write) {
+            if (entry == null)
+                throw new NoSuchFileException(target);
+            final DbxEntry.File file = entry.asFile();
+            return DropBoxAsynchronousFileChannel.forReading(service,
+                rangeDownloader, target, file.rev, file.numBytes,
+                channelBlockSize, channelCachedBlocks);
+        }
+
+        if (entry != null && options.contains(StandardOpenOption.CREATE_NEW))
+            throw new FileAlreadyExistsException(target);
+        if (entry == null && !options.contains(StandardOpenOption.CREATE)
+            && !options.contains(StandardOpenOption.CREATE_NEW))
+            throw new NoSuchFileException(target);
+
+        /*
+         * Writes are tasks of their own: they upload full chunks themselves
+         * rather than handing them over to a worker thread
+         */
+        final DbxClient.Uploader uploader = new ChunkedUploader(client,
+            requestExecutor, this.executor, target, DbxWriteMode.force(),
+            uploadChunkSize, uploadSingleThreshold, 0, uploadChunkRetries);
+
+        metadataCache.invalidate(target);
+        return DropBoxAsynchronousFileChannel.forWriting(service, uploader,
+            target, metadataCache, dropBoxFileStore);
+    }
+
+    @Nonnull
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(final Path dir,
+        final DirectoryStream.Filter<? super Path> filter)
+        throws IOException
+    {
+        final long start = System.nanoTime();
+        final DirectoryStream<Path> ret;
+
+        try {
+            ret = openDirectoryStream(dir, filter);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordFailure(Operation.NEW_DIRECTORY_STREAM, start, e);
+            throw e;
+        }
+
+        metrics.recordSuccess(Operation.NEW_DIRECTORY_STREAM, start);
+        return ret;
+    }
+
+    private DirectoryStream<Path> openDirectoryStream(final Path dir,
+        final DirectoryStream.Filter<? super Path> filter)
+        throws IOException
+    {
+        // TODO: need a "shortcut" way for that; it's quite common
+        final String target = dir.toRealPath().toString();
+        final DropBoxDirectoryStream stream = new DropBoxDirectoryStream(dir,
+            filter, metadataCache.openScope());
+
+        stream.start(executor, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    streamListing(target, stream);
+                } catch (DropBoxDirectoryStream.StreamClosedException ignored) {
+                    // stream closed by the consumer
+                } catch (RuntimeException e) {
+                    stream.fail(new DropBoxIOException("listing failed", e));
+                }
+            }
+        });
+
+        return stream;
+    }
+
+    /**
+     * Open a stream over all the entries of a subtree
+     *
+     * <p>Unlike walking the tree, which costs one listing per directory, this
+     * reads the entries of the whole subtree from the delta API, in pages of
+     * up to a few thousand entries. The metadata of the entries is kept
+     * along with the stream, so that reading their attributes while
+     * iterating costs no API call, whatever the size of the metadata
+     * cache.</p>
+     *
+     * @param dir the root of the subtree
+     * @param filter the filter
+     * @return a stream over the entries below this root, in no particular
+     * order
+     * @throws IOException root not found, not a directory, or DropBox API
+     * error
+     *
+     * @see DropBoxTreeStream
+     */
+    @Nonnull
+    public DirectoryStream<Path> newTreeStream(final Path dir,
+        final DirectoryStream.Filter<? super Path> filter)
+        throws IOException
+    {
+        final long start = System.nanoTime();
+        final DirectoryStream<Path> ret;
+
+        try {
+            ret = openTreeStream(dir, filter);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordFailure(Operation.NEW_TREE_STREAM, start, e);
+            throw e;
+        }
+
+        metrics.recordSuccess(Operation.NEW_TREE_STREAM, start);
+        return ret;
+    }
+
+    private DirectoryStream<Path> openTreeStream(final Path dir,
+        final DirectoryStream.Filter<? super Path> filter)
+        throws IOException
+    {
+        final String target = dir.toRealPath().toString();
+        final DbxEntry entry = lookup(target);
+
+        if (entry == null)
+            throw new NoSuchFileException(target);
+        if (!entry.isFolder())
+            throw new NotDirectoryException(target);
+
+        final String prefix = "/".equals(target) ? null : target;
+
+        return new DropBoxTreeStream(dir, target, filter,
+            new DropBoxTreeStream.Pager()
+            {
+                @Override
+                public DbxDelta<DbxEntry> fetch(@Nullable final String cursor,
+                    final MetadataCache.Scope scope)
+                    throws IOException
+                {
+                    return fetchDelta(prefix, cursor, scope);
+                }
+            }, executor, metadataCache.openScope());
+    }
+
+    private DbxDelta<DbxEntry> fetchDelta(@Nullable final String prefix,
+        @Nullable final String cursor, final MetadataCache.Scope scope)
+        throws IOException
+    {
+        final long generation = metadataCache.generation();
+        final DbxDelta<DbxEntry> delta;
+
+        try {
+            delta = requestExecutor.execute(new DbxCall<DbxDelta<DbxEntry>>()
+            {
+                @Override
+                public DbxDelta<DbxEntry> call()
+                    throws DbxException
+                {
+                    return prefix == null ? client.getDelta(cursor)
+                        : client.getDeltaWithPathPrefix(cursor, prefix);
+                }
+            }, Lane.BULK);
+        } catch (DbxException e) {
+            throw DropBoxIOException.wrap(e);
+        }
+
+        for (final DbxDelta.Entry<DbxEntry> change: delta.entries)
+            if (change.metadata != null)
+                scope.putIfUnchanged(change.metadata.path, change.metadata,
+                    generation);
+
+        return delta;
+    }
+
+    @Override
+    public void createDirectory(final Path dir, final FileAttribute<?>... attrs)
+        throws IOException
+    {
+        final long start = System.nanoTime();
+
+        try {
+            makeDirectory(dir, attrs);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordFailure(Operation.CREATE_DIRECTORY, start, e);
+            throw e;
+        }
+
+        metrics.recordSuccess(Operation.CREATE_DIRECTORY, start);
+    }
+
+    private void makeDirectory(final Path dir, final FileAttribute<?>... attrs)
+        throws IOException
+    {
+        // TODO: need a "shortcut" way for that; it's quite common
+        final String target = dir.toRealPath().toString();
+
+        final DbxEntry.Folder folder;
+
+        /*
+         * Not retried: had a failed attempt created the folder, a retry would
+         * fail since the folder exists
+         */
+        try {
+            folder = requestExecutor.execute(new DbxCall<DbxEntry.Folder>()
+            {
+                @Override
+                public DbxEntry.Folder call()
+                    throws DbxException
+                {
+                    return client.createFolder(target);
+                }
+            }, Lane.METADATA, 0);
+        } catch (DbxException e) {
+            throw DropBoxIOException.wrap(e);
+        }
+
+        // TODO: how to diagnose?
+        if (folder == null)
+            throw new DropBoxIOException("cannot create directory??");
+
+        // a lookup in progress may have found it missing
+        metadataCache.invalidate(target);
+        metadataCache.put(target, folder);
+    }
+
+    @Override
+    public void delete(final Path path)
+        throws IOException
+    {
+        final long start = System.nanoTime();
+
+        try {
+            deletePath(path);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordFailure(Operation.DELETE, start, e);
+            throw e;
+        }
+
+        metrics.recordSuccess(Operation.DELETE, start);
+    }
+
+    private void deletePath(final Path path)
+        throws IOException
+    {
+        // TODO: need a "shortcut" way for that; it's quite common
+        final String target = path.toRealPath().toString();
+
+        final DbxEntry entry = lookup(target);
+
+        if (entry == null)
+            throw new NoSuchFileException(target);
+
+        if (entry.isFolder()) {
+            final DbxEntry.WithChildren listing = list(target);
+            if (listing == null)
+                throw new NoSuchFileException(target);
+            if (!listing.children.isEmpty())
+                throw new DirectoryNotEmptyException(target);
+        }
+
+        deleteEntry(target);
+    }
+
+    /**
+     * Delete a path and, if it is a directory, all of its contents
+     *
+     * <p>DropBox deletes a whole tree at once, using a single API call.</p>
+     *
+     * @param path the path to delete
+     * @throws NoSuchFileException path does not exist
+     * @throws IOException DropBox API error
+     */
+    public void deleteTree(final Path path)
+        throws IOException
+    {
+        final long start = System.nanoTime();
+
+        try {
+            deletePathTree(path);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordFailure(Operation.DELETE_TREE, start, e);
+            throw e;
+        }
+
+        metrics.recordSuccess(Operation.DELETE_TREE, start);
+    }
+
+    private void deletePathTree(final Path path)
+        throws IOException
+    {
+        deleteEntry(path.toRealPath().toString());
+    }
+
+    @Override
+    public void copy(final Path source, final Path target,
+        final Set<CopyOption> options)
+        throws IOException
+    {
+        final long start = System.nanoTime();
+
+        try {
+            copyPath(source, target, options);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordFailure(Operation.COPY, start, e);
+            throw e;
+        }
+
+        metrics.recordSuccess(Operation.COPY, start);
+    }
+
+    private void copyPath(final Path source, final Path target,
+        final Set<CopyOption> options)
+        throws IOException
+    {
+        final String srcpath = source.toRealPath().toString();
+        final String dstpath = target.toRealPath().toString();
+
+        final DbxEntry srcentry = lookup(srcpath);
+
+        if (srcentry == null)
+            throw new NoSuchFileException(srcpath);
+
+        if (srcpath.equalsIgnoreCase(dstpath))
+            return;
+
+        /*
+         * As per Files.copy(), copying a directory does not copy its entries
+         */
+        final DbxCall<DbxEntry> call = srcentry.isFolder()
+            ? new DbxCall<DbxEntry>()
+            {
+                @Override
+                public DbxEntry call()
+                    throws DbxException
+                {
+                    return client.createFolder(dstpath);
+                }
+            }
+            : copyCall(srcpath, dstpath);
+
+        final DbxEntry copied = transfer(call, srcpath, dstpath,
+            options.contains(StandardCopyOption.REPLACE_EXISTING), false);
+
+        metadataCache.invalidateTree(dstpath);
+        listingCache.invalidateTree(dstpath);
+        metadataCache.put(dstpath, copied);
+    }
+
+    /**
+     * Copy a path and, if it is a directory, all of its contents
+     *
+     * <p>The copy is made by DropBox itself, using a single API call. If the
+     * target exists and {@link StandardCopyOption#REPLACE_EXISTING} is given,
+     * the whole target tree is deleted first.</p>
+     *
+     * @param source the source path
+     * @param target the target path
+     * @param options the copy options
+     * @throws NoSuchFileException source does not exist
+     * @throws FileAlreadyExistsException target exists, and {@link
+     * StandardCopyOption#REPLACE_EXISTING} was not given
+     * @throws IOException DropBox API error
+     */
+    public void copyTree(final Path source, final Path target,
+        final Set<CopyOption> options)
+        throws IOException
+    {
+        final long start = System.nanoTime();
+
+        try {
+            copyPathTree(source, target, options);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordFailure(Operation.COPY_TREE, start, e);
+            throw e;
+        }
+
+        metrics.recordSuccess(Operation.COPY_TREE, start);
+    }
+
+    private void copyPathTree(final Path source, final Path target,
+        final Set<CopyOption> options)
+        throws IOException
+    {
+        final String srcpath = source.toRealPath().toString();
+        final String dstpath = target.toRealPath().toString();
+
+        if (srcpath.equalsIgnoreCase(dstpath))
+            return;
+
+        final DbxEntry copied = transfer(copyCall(srcpath, dstpath), srcpath,
+            dstpath, options.contains(StandardCopyOption.REPLACE_EXISTING),
+            true);
+
+        metadataCache.invalidateTree(dstpath);
+        listingCache.invalidateTree(dstpath);
+        metadataCache.put(dstpath, copied);
+    }
+
+    @Override
+    public void move(final Path source, final Path target,
+        final Set<CopyOption> options)
+        throws IOException
+    {
+        final long start = System.nanoTime();
+
+        try {
+            movePath(source, target, options);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordFailure(Operation.MOVE, start, e);
+            throw e;
+        }
+
+        metrics.recordSuccess(Operation.MOVE, start);
+    }
+
+    private void movePath(final Path source, final Path target,
+        final Set<CopyOption> options)
+        throws IOException
+    {
+        final String srcpath = source.toRealPath().toString();
+        final String dstpath = target.toRealPath().toString();
+
+        // DropBox paths are case insensitive: this is the same file
+        if (srcpath.equalsIgnoreCase(dstpath))
+            return;
+
+        final DbxCall<DbxEntry> call = new DbxCall<DbxEntry>()
+        {
+            @Override
+            public DbxEntry call()
+                throws DbxException
+            {
+                return client.move(srcpath, dstpath);
+            }
+        };
+
+        final DbxEntry moved;
+
+        try {
+            moved = transfer(call, srcpath, dstpath,
+                options.contains(StandardCopyOption.REPLACE_EXISTING), false);
+        } finally {
+            metadataCache.invalidateTree(srcpath);
+            listingCache.invalidateTree(srcpath);
+            metadataCache.invalidateTree(dstpath);
+            listingCache.invalidateTree(dstpath);
+        }
+
+        metadataCache.put(dstpath, moved);
+    }
+
+    /**
+     * Check access modes for a path on this filesystem
+     * <p>If no modes are provided to check for, this simply checks for the
+     * existence of the path.</p>
+     *
+     * @param path the path to check
+     * @param modes the modes to check for, if any
+     * @throws IOException filesystem level error, or a plain I/O error
+     * @see FileSystemProvider#checkAccess(Path, AccessMode...)
+     */
+    @Override
+    public void checkAccess(final Path path, final AccessMode... modes)
+        throws IOException
+    {
+        final long start = System.nanoTime();
+
+        try {
+            checkPathAccess(path, modes);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordFailure(Operation.CHECK_ACCESS, start, e);
+            throw e;
+        }
+
+        metrics.recordSuccess(Operation.CHECK_ACCESS, start);
+    }
+
+    private void checkPathAccess(final Path path, final AccessMode... modes)
+        throws IOException
+    {
+        final String target = path.toRealPath().toString();
+        final DbxEntry entry = lookup(target);
+
+        if (entry == null)
+            throw new NoSuchFileException(target);
+
+        if (!entry.isFile())
+            return;
+
+        // TODO: assumed; not a file == directory
+        for (final AccessMode mode: modes)
+            if (mode == AccessMode.EXECUTE)
+                throw new AccessDeniedException(target);
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        // TODO: what to do here? DbxClient does not implement Closeable :(
+        try {
+            /*
+             * Pending uploads need the executor; wait for them first
+             */
+            if (writeBehind != null)
+                writeBehind.close();
+            contentHashes.save();
+        } finally {
+            if (coherenceEngine != null)
+                coherenceEngine.close();
+            executor.shutdownNow();
+            if (metricsName != null)
+                try {
+                    ManagementFactory.getPlatformMBeanServer()
+                        .unregisterMBean(metricsName);
+                } catch (JMException ignored) {
+                    // already unregistered
+                }
+            if (resources != null)
+                resources.close();
+        }
+    }
+
+    /**
+     * Get the metrics of this filesystem
+     *
+     * <p>Unless disabled, they are also registered as an MXBean named {@code
+     * com.github.fge.fs.dropbox:type=FileSystem,id=<n>}.</p>
+     *
+     * @return the metrics
+     */
+    @Nonnull
+    public DropBoxMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    @Nonnull
+    @Override
+    public Object getPathMetadata(final Path path)
+        throws IOException
+    {
+        final long start = System.nanoTime();
+        final Object ret;
+
+        try {
+            ret = getMetadata(path);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordFailure(Operation.GET_PATH_METADATA, start, e);
+            throw e;
+        }
+
+        metrics.recordSuccess(Operation.GET_PATH_METADATA, start);
+        return ret;
+    }
+
+    private Object getMetadata(final Path path)
+        throws IOException
+    {
+        final String target = path.toRealPath().toString();
+        final DbxEntry entry = lookup(target);
+
+        if (entry == null)
+            throw new NoSuchFileException(target);
+
+        return new DropBoxMetadata(entry, entry.isFolder() ? null
+            : contentHashes.get(target, entry.asFile().rev));
+    }
+
+    @Nullable
+    private static ObjectName registerMetrics(final DropBoxMetrics metrics)
+    {
+        try {
+            final ObjectName name = new ObjectName(METRICS_DOMAIN
+                + ":type=FileSystem,id=" + FILESYSTEM_COUNT.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(metrics, name);
+            return name;
+        } catch (JMException ignored) {
+            // metrics are still available using getMetrics()
+            return null;
+        }
+    }
+
+    /**
+     * Download a given revision of a file into a stream
+     *
+     * @param target the real path
+     * @param file the metadata of the file, as obtained from DropBox
+     * @param out the stream to write to
+     * @throws IOException file not found, or DropBox API error
+     */
+    private void download(final String target, final DbxEntry.File file,
+        final OutputStream out)
+        throws IOException
+    {
+        if (parallelDownloadThreshold > 0L
+            && file.numBytes >= parallelDownloadThreshold) {
+            try (
+                final InputStream in = new ParallelDownloadInputStream(
+                    rangeDownloader, executor, target, file.rev,
+                    file.numBytes, parallelDownloadPartSize,
+                    parallelDownloadParts);
+            ) {
+                final byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) != -1)
+                    out.write(buf, 0, n);
+            }
+            return;
+        }
+
+        final DbxEntry.File downloaded;
+
+        try {
+            downloaded = requestExecutor.execute(new DbxCall<DbxEntry.File>()
+            {
+                @Override
+                public DbxEntry.File call()
+                    throws DbxException
+                {
+                    try {
+                        return client.getFile(target, file.rev, out);
+                    } catch (IOException e) {
+                        throw new DbxException.NetworkIO(e);
+                    }
+                }
+            }, Lane.BULK, 0);
+        } catch (DbxException e) {
+            throw DropBoxIOException.wrap(e);
+        }
+
+        if (downloaded == null)
+            throw new NoSuchFileException(target);
+    }
+
+    /**
+     * Get the metadata of a path along with its children, if it is a folder
+     *
+     * <p>If a listing of this folder is known, its hash is sent along so that
+     * DropBox only returns the full list of children if it has changed.</p>
+     *
+     * <p>The metadata of children is not recorded in the metadata cache:
+     * this is only used to tell whether a directory is empty, and a listing
+     * can have more children than the cache can hold.</p>
+     *
+     * @param target the real path
+     * @return the metadata, or {@code null} if the path does not exist
+     * @throws IOException DropBox API error
+     */
+    @Nullable
+    private DbxEntry.WithChildren list(final String target)
+        throws IOException
+    {
+        final DbxEntry.WithChildren cached = listingCache.get(target);
+        final Maybe<DbxEntry.WithChildren> result;
+
+        try {
+            result = requestExecutor.execute(
+                new DbxCall<Maybe<DbxEntry.WithChildren>>()
+                {
+                    @Override
+                    public Maybe<DbxEntry.WithChildren> call()
+                        throws DbxException
+                    {
+                        return cached == null
+                            ? Maybe.Just(client.getMetadataWithChildren(target))
+                            : client.getMetadataWithChildrenIfChanged(target,
+                                cached.hash);
+                    }
+                });
+        } catch (DbxException e) {
+            throw DropBoxIOException.wrap(e);
+        }
+
+        metrics.recordListing(result.isNothing());
+
+        if (result.isNothing()) {
+            metadataCache.put(target, cached.entry);
+            return cached;
+        }
+
+        final DbxEntry.WithChildren listing = result.getJust();
+
+        if (listing == null) {
+            metadataCache.invalidateTree(target);
+            listingCache.invalidateTree(target);
+            return null;
+        }
+
+        metadataCache.put(target, listing.entry);
+        listingCache.put(target, listing);
+        return listing;
+    }
+
+    /**
+     * Producer for {@link #newDirectoryStream(Path, DirectoryStream.Filter)}
+     *
+     * <p>Like {@link #list(String)}, this revalidates a known listing using
+     * its hash, but children of a changed listing are handed over to the
+     * stream as they are received. The new listing is only remembered if it
+     * fits in the listing cache.</p>
+     *
+     * <p>Children are recorded in the scope of the stream before they are
+     * handed over, so that reading the attributes of the paths returned by
+     * the stream while it is open, as {@link
+     * java.nio.file.Files#walkFileTree(Path, java.nio.file.FileVisitor)}
+     * does, costs no further API call. They are not recorded in the metadata
+     * cache itself, which may be smaller than the listing.</p>
+     *
+     * @param target the real path
+     * @param stream the stream to feed
+     */
+    private void streamListing(final String target,
+        final DropBoxDirectoryStream stream)
+    {
+        final DbxEntry.WithChildren cached = listingCache.get(target);
+        final long generation = metadataCache.generation();
+        final MetadataCache.Scope scope = stream.getScope();
+        final Collector<DbxEntry, List<DbxEntry>> collector = priming(
+            stream.collector(listingCache.getMaxChildren()), scope,
+            generation);
+        final Maybe<DbxEntry.WithChildrenC<List<DbxEntry>>> result;
+
+        try {
+            result = requestExecutor.execute(
+                new DbxCall<Maybe<DbxEntry.WithChildrenC<List<DbxEntry>>>>()
+                {
+                    @Override
+                    public Maybe<DbxEntry.WithChildrenC<List<DbxEntry>>> call()
+                        throws DbxException
+                    {
+                        try {
+                            return cached == null
+                                ? Maybe.Just(client.getMetadataWithChildrenC(
+                                    target, collector))
+                                : client.getMetadataWithChildrenIfChangedC(
+                                    target, cached.hash, collector);
+                        } catch (DbxException e) {
+                            /*
+                             * Children already handed over cannot be taken
+                             * back: do not let the executor retry
+                             */
+                            if (stream.hasDelivered())
+                                throw new DbxException("listing of " + target
+                                    + " failed after children were returned",
+                                    e);
+                            throw e;
+                        }
+                    }
+                });
+        } catch (DbxException e) {
+            stream.fail(DropBoxIOException.wrap(e));
+            return;
+        }
+
+        metrics.recordListing(result.isNothing());
+
+        if (result.isNothing()) {
+            metadataCache.put(target, cached.entry);
+            prime(cached.children, scope, generation);
+            stream.endWith(cached.children);
+            return;
+        }
+
+        final DbxEntry.WithChildrenC<List<DbxEntry>> listing
+            = result.getJust();
+
+        if (listing == null) {
+            metadataCache.invalidateTree(target);
+            listingCache.invalidateTree(target);
+            stream.fail(new NoSuchFileException(target));
+            return;
+        }
+
+        metadataCache.put(target, listing.entry);
+
+        if (!listing.entry.isFolder()) {
+            stream.fail(new NotDirectoryException(target));
+            return;
+        }
+
+        if (listing.children != null)
+            listingCache.put(target, new DbxEntry.WithChildren(listing.entry,
+                listing.hash, listing.children));
+
+        stream.end();
+    }
+
+    /**
+     * Record the metadata of the children of a folder
+     *
+     * @param children the children
+     * @param scope the scope to record them in
+     * @param generation the generation of the metadata cache before the
+     * listing was requested
+     */
+    private static void prime(final List<DbxEntry> children,
+        final MetadataCache.Scope scope, final long generation)
+    {
+        for (final DbxEntry child: children)
+            scope.putIfUnchanged(child.path, child, generation);
+    }
+
+    /**
+     * Wrap a collector so that it records the metadata of children before
+     * handing them over
+     *
+     * @param collector the collector to wrap
+     * @param scope the scope to record them in
+     * @param generation the generation of the metadata cache before the
+     * listing was requested
+     * @return a new collector
+     */
+    private static Collector<DbxEntry, List<DbxEntry>> priming(
+        final Collector<DbxEntry, List<DbxEntry>> collector,
+        final MetadataCache.Scope scope, final long generation)
+    {
+        return new Collector<DbxEntry, List<DbxEntry>>()
+        {
+            @Override
+            public void add(final DbxEntry element)
+            {
+                scope.putIfUnchanged(element.path, element, generation);
+                collector.add(element);
+            }
+
+            @Override
+            public List<DbxEntry> finish()
+            {
+                return collector.finish();
+            }
+        };
+    }
+
+    /**
+     * Delete a path on DropBox, along with all of its contents
+     *
+     * @param target the real path
+     * @throws NoSuchFileException path does not exist
+     * @throws IOException DropBox API error
+     */
+    private void deleteEntry(final String target)
+        throws IOException
+    {
+        try {
+            requestExecutor.execute(new DbxCall<Void>()
+            {
+                @Override
+                public Void call()
+                    throws DbxException
+                {
+                    client.delete(target);
+                    return null;
+                }
+            });
+        } catch (DbxException e) {
+            throw isNotFound(e) ? new NoSuchFileException(target)
+                : DropBoxIOException.wrap(e);
+        } finally {
+            metadataCache.invalidateTree(target);
+            listingCache.invalidateTree(target);
+        }
+    }
+
+    private DbxCall<DbxEntry> copyCall(final String srcpath,
+        final String dstpath)
+    {
+        return new DbxCall<DbxEntry>()
+        {
+            @Override
+            public DbxEntry call()
+                throws DbxException
+            {
+                return client.copy(srcpath, dstpath);
+            }
+        };
+    }
+
+    /**
+     * Run a server side copy or move
+     *
+     * <p>The operation is attempted right away. DropBox refuses it if the
+     * target exists; only then is the target looked up, and replaced if
+     * asked to, after which the operation is attempted again. The common case
+     * of a target which does not exist therefore costs a single API call.</p>
+     *
+     * <p>Calls are never retried: if an attempt succeeded but its response
+     * was lost, a retry would find the target existing, and replacing it
+     * would delete the result of the first attempt.</p>
+     *
+     * @param call the copy or move call
+     * @param srcpath the real source path
+     * @param dstpath the real target path
+     * @param replace whether to replace an existing target
+     * @param tree whether an existing directory target may be replaced along
+     * with all its contents
+     * @return the metadata of the target
+     * @throws IOException see {@link #copy(Path, Path, Set)}
+     */
+    private DbxEntry transfer(final DbxCall<DbxEntry> call,
+        final String srcpath, final String dstpath, final boolean replace,
+        final boolean tree)
+        throws IOException
+    {
+        DbxEntry ret = runTransfer(call, srcpath);
+
+        if (ret != null)
+            return ret;
+
+        final DbxEntry existing = lookup(dstpath);
+
+        if (existing == null)
+            throw new DropBoxIOException("DropBox refused to copy or move "
+                + srcpath + " to " + dstpath);
+
+        if (!replace)
+            throw new FileAlreadyExistsException(dstpath);
+
+        if (existing.isFolder() && !tree) {
+            final DbxEntry.WithChildren listing = list(dstpath);
+            if (listing != null && !listing.children.isEmpty())
+                throw new DirectoryNotEmptyException(dstpath);
+        }
+
+        try {
+            deleteEntry(dstpath);
+        } catch (NoSuchFileException ignored) {
+            // deleted in the meantime
+        }
+
+        ret = runTransfer(call, srcpath);
+
+        if (ret == null)
+            throw new DropBoxIOException("DropBox refused to copy or move "
+                + srcpath + " to " + dstpath);
+
+        return ret;
+    }
+
+    @Nullable
+    private DbxEntry runTransfer(final DbxCall<DbxEntry> call,
+        final String srcpath)
+        throws IOException
+    {
+        try {
+            return requestExecutor.execute(call, Lane.METADATA, 0);
+        } catch (DbxException e) {
+            throw isNotFound(e) ? new NoSuchFileException(srcpath)
+                : DropBoxIOException.wrap(e);
+        }
+    }
+
+    private static boolean isNotFound(final DbxException e)
+    {
+        return e instanceof DbxException.BadResponseCode
+            && ((DbxException.BadResponseCode) e).statusCode == 404;
+    }
+
+    /**
+     * Get the metadata for a path, going through the metadata cache
+     *
+     * @param target the real path
+     * @return the metadata, or {@code null} if the path does not exist
+     * @throws IOException DropBox API error
+     */
+    @Nullable
+    private DbxEntry lookup(final String target)
+        throws IOException
+    {
+        /*
+         * Read your own writes: a file being uploaded in the background must
+         * not be seen in its former state
+         */
+        if (writeBehind != null)
+            writeBehind.awaitQuietly(target);
+
+        return fetchMetadata(target);
+    }
+
+    /*
+     * Like lookup(), without waiting for write-behind uploads
+     */
+    @Nullable
+    private DbxEntry fetchMetadata(final String target)
+        throws IOException
+    {
+        DbxEntry entry = metadataCache.get(target);
+        final boolean hit = entry != null || metadataCache.isAbsent(target);
+
+        metrics.recordMetadataLookup(hit);
+
+        if (hit)
+            return entry;
+
+        final long generation = metadataCache.generation();
+
+        try {
+            entry = requestExecutor.execute(new DbxCall<DbxEntry>()
+            {
+                @Override
+                public DbxEntry call()
+                    throws DbxException
+                {
+                    return client.getMetadata(target);
+                }
+            });
+        } catch (DbxException e) {
+            throw DropBoxIOException.wrap(e);
+        }
+
+        if (entry != null)
+            metadataCache.putIfUnchanged(target, entry, generation);
+        else
+            metadataCache.putAbsentIfUnchanged(target, generation);
+
+        return entry;
     }
 }
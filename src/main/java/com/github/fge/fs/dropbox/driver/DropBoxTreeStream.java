@@ -0,0 +1,270 @@
+package com.github.fge.fs.dropbox.driver;
+
+import com.dropbox.core.DbxDelta;
+import com.dropbox.core.DbxEntry;
+import com.github.fge.fs.dropbox.cache.MetadataCache;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link DirectoryStream} over all the entries of a subtree
+ *
+ * <p>Entries are read from the delta API, restricted to the subtree: starting
+ * without a cursor, it returns every entry of the subtree, with its metadata,
+ * in large pages, however many directories there are. While the entries of a
+ * page are iterated over, the next page is fetched in the background.</p>
+ *
+ * <p>The first page is fetched when the stream is created, so that errors
+ * are reported when it is opened; errors occurring later on are reported by
+ * the iterator as {@link DirectoryIteratorException}s. Entries come in no
+ * particular order, and the root of the subtree is not returned. Returned
+ * paths are resolved against the path the stream was opened with.</p>
+ *
+ * <p>The pager records the metadata of the entries of each page in the
+ * {@link MetadataCache.Scope scope} of the stream, so that reading the
+ * attributes of returned paths costs no API call. In order to bound memory
+ * use, entries of a page are forgotten once the iterator is done with the
+ * page after it.</p>
+ *
+ * <p>Closing the stream cancels the fetch of the next page, and closes its
+ * scope.</p>
+ */
+@ParametersAreNonnullByDefault
+final class DropBoxTreeStream
+    implements DirectoryStream<Path>
+{
+    /**
+     * Fetches pages of the delta API
+     */
+    interface Pager
+    {
+        /**
+         * Fetch a page, and record the metadata of its entries
+         *
+         * @param cursor the cursor returned by the previous page, or {@code
+         * null} for the first page
+         * @param scope the scope to record metadata in
+         * @return the page
+         * @throws IOException DropBox API error
+         */
+        DbxDelta<DbxEntry> fetch(@Nullable String cursor,
+            MetadataCache.Scope scope)
+            throws IOException;
+    }
+
+    private final Path dir;
+    private final String root;
+    private final DirectoryStream.Filter<? super Path> filter;
+    private final Pager pager;
+    private final ExecutorService executor;
+    private final MetadataCache.Scope scope;
+
+    private final AtomicBoolean iteratorCalled = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private final DbxDelta<DbxEntry> first;
+    private volatile Future<DbxDelta<DbxEntry>> pending;
+
+    /**
+     * Constructor
+     *
+     * @param dir the path to resolve returned paths against
+     * @param root the real path of the root of the subtree
+     * @param filter the filter
+     * @param pager the pager
+     * @param executor the executor to fetch pages on
+     * @param scope the scope of this stream
+     * @throws IOException failed to fetch the first page
+     */
+    DropBoxTreeStream(final Path dir, final String root,
+        final DirectoryStream.Filter<? super Path> filter, final Pager pager,
+        final ExecutorService executor, final MetadataCache.Scope scope)
+        throws IOException
+    {
+        this.dir = dir;
+        this.root = root;
+        this.filter = filter;
+        this.pager = pager;
+        this.executor = executor;
+        this.scope = scope;
+        try {
+            first = pager.fetch(null, scope);
+        } catch (IOException | RuntimeException e) {
+            scope.close();
+            throw e;
+        }
+        prefetch(first);
+    }
+
+    @Override
+    public Iterator<Path> iterator()
+    {
+        // required by the contract
+        if (iteratorCalled.getAndSet(true))
+            throw new IllegalStateException();
+        if (closed.get())
+            throw new IllegalStateException("directory stream closed");
+        return new TreeIterator();
+    }
+
+    @Override
+    public void close()
+    {
+        if (closed.getAndSet(true))
+            return;
+        final Future<?> future = pending;
+        if (future != null)
+            future.cancel(true);
+        scope.close();
+    }
+
+    private void prefetch(final DbxDelta<DbxEntry> page)
+    {
+        if (!page.hasMore || closed.get()) {
+            pending = null;
+            return;
+        }
+
+        final String cursor = page.cursor;
+        pending = executor.submit(new Callable<DbxDelta<DbxEntry>>()
+        {
+            @Override
+            public DbxDelta<DbxEntry> call()
+                throws IOException
+            {
+                return pager.fetch(cursor, scope);
+            }
+        });
+    }
+
+    @Nullable
+    private DbxDelta<DbxEntry> nextPage()
+    {
+        final Future<DbxDelta<DbxEntry>> future = pending;
+
+        if (future == null || closed.get())
+            return null;
+
+        final DbxDelta<DbxEntry> page;
+
+        try {
+            page = future.get();
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+            throw new DirectoryIteratorException(new InterruptedIOException(
+                "interrupted while enumerating " + dir));
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw new DirectoryIteratorException(cause instanceof IOException
+                ? (IOException) cause : new IOException(cause));
+        }
+
+        prefetch(page);
+        return page;
+    }
+
+    private void forget(final DbxDelta<DbxEntry> page)
+    {
+        for (final DbxDelta.Entry<DbxEntry> entry: page.entries)
+            if (entry.metadata != null)
+                scope.remove(entry.metadata.path, entry.metadata);
+    }
+
+    @Nullable
+    private Path toPath(final DbxDelta.Entry<DbxEntry> entry)
+    {
+        // deleted entries; should not appear when starting from scratch
+        if (entry.metadata == null)
+            return null;
+
+        final String path = entry.metadata.path;
+
+        // the root itself
+        if (path.length() <= root.length())
+            return null;
+
+        return dir.resolve(path.substring("/".equals(root) ? 1
+            : root.length() + 1));
+    }
+
+    private final class TreeIterator
+        implements Iterator<Path>
+    {
+        private Iterator<DbxDelta.Entry<DbxEntry>> entries
+            = first.entries.iterator();
+        /*
+         * The entries of the page before the current one are kept in the
+         * scope: callers may still use the last paths of a page once they
+         * asked for the next path
+         */
+        private DbxDelta<DbxEntry> previous = null;
+        private DbxDelta<DbxEntry> current = first;
+        private Path next = null;
+
+        @Override
+        public boolean hasNext()
+        {
+            if (next != null)
+                return true;
+
+            Path path;
+
+            while (entries != null) {
+                while (entries.hasNext()) {
+                    path = toPath(entries.next());
+                    if (path == null)
+                        continue;
+                    try {
+                        if (filter.accept(path)) {
+                            next = path;
+                            return true;
+                        }
+                    } catch (IOException e) {
+                        throw new DirectoryIteratorException(e);
+                    }
+                }
+                final DbxDelta<DbxEntry> page = nextPage();
+                if (page == null) {
+                    entries = null;
+                    break;
+                }
+                if (previous != null)
+                    forget(previous);
+                previous = current;
+                current = page;
+                entries = page.entries.iterator();
+            }
+
+            return false;
+        }
+
+        @Override
+        public Path next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            final Path ret = next;
+            next = null;
+            return ret;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -6,20 +6,44 @@ import com.dropbox.core.DbxClient;
 import com.dropbox.core.DbxException;
 import com.github.fge.filesystem.attributes.FileAttributesFactory;
 import com.github.fge.filesystem.filestore.FileStoreBase;
+import com.github.fge.fs.dropbox.rpc.DbxCall;
+import com.github.fge.fs.dropbox.rpc.RequestExecutor;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.FileStore;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A simple DropBox {@link FileStore}
  *
  * <p>This makes use of information available in {@link DbxAccountInfo.Quota}.
- * Information is computed in "real time".</p>
+ * </p>
+ *
+ * <p>Quota information is fetched at most once per refresh interval; threads
+ * asking for it while it is being fetched wait for this fetch to complete
+ * instead of issuing their own. Between two fetches, the bytes written to
+ * this filestore (see {@link #recordWrite(long)}) are deducted from the space
+ * left, so that it stays close to reality.</p>
  */
 public final class DropBoxFileStore
     extends FileStoreBase
 {
+    public static final long DEFAULT_QUOTA_REFRESH_INTERVAL = 60000L;
+
     private final DbxClient client;
+    private final RequestExecutor requestExecutor;
+    private final long refreshInterval;
+
+    private final AtomicLong written = new AtomicLong();
+
+    private final Object lock = new Object();
+    private volatile Snapshot snapshot = null;
+    private FutureTask<Snapshot> refresh = null;
 
     /**
      * Constructor
@@ -28,9 +52,43 @@ public final class DropBoxFileStore
      */
     public DropBoxFileStore(final DbxClient client,
         final FileAttributesFactory factory)
+    {
+        this(client, RequestExecutor.withDefaults(null), factory,
+            DEFAULT_QUOTA_REFRESH_INTERVAL);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param client the (valid) DropBox client to use
+     * @param requestExecutor the executor to run API calls with
+     * @param refreshInterval the maximum age of quota information, in
+     * milliseconds
+     */
+    public DropBoxFileStore(final DbxClient client,
+        final RequestExecutor requestExecutor,
+        final FileAttributesFactory factory, final long refreshInterval)
     {
         super("dropbox", factory, false);
+        if (refreshInterval < 0L)
+            throw new IllegalArgumentException("refresh interval cannot be "
+                + "negative");
         this.client = client;
+        this.requestExecutor = requestExecutor;
+        this.refreshInterval = TimeUnit.MILLISECONDS.toNanos(refreshInterval);
+    }
+
+    /**
+     * Account for bytes written to this filestore
+     *
+     * <p>They are deducted from the space left until the next quota fetch.
+     * </p>
+     *
+     * @param bytes the number of bytes
+     */
+    public void recordWrite(final long bytes)
+    {
+        written.addAndGet(bytes);
     }
 
     /**
@@ -44,7 +102,7 @@ public final class DropBoxFileStore
     public long getTotalSpace()
         throws IOException
     {
-        return getQuota().total;
+        return getSnapshot().quota.total;
     }
 
     /**
@@ -66,8 +124,7 @@ public final class DropBoxFileStore
     public long getUsableSpace()
         throws IOException
     {
-        final Quota quota = getQuota();
-        return quota.total - quota.normal;
+        return getSnapshot().getFreeSpace();
     }
 
     /**
@@ -87,17 +144,112 @@ public final class DropBoxFileStore
     public long getUnallocatedSpace()
         throws IOException
     {
-        final Quota quota = getQuota();
-        return quota.total - quota.normal;
+        return getSnapshot().getFreeSpace();
     }
 
-    private Quota getQuota()
+    private Snapshot getSnapshot()
         throws IOException
     {
+        Snapshot ret = snapshot;
+
+        if (ret != null && !ret.isExpired())
+            return ret;
+
+        final FutureTask<Snapshot> task;
+        boolean owner = false;
+
+        synchronized (lock) {
+            ret = snapshot;
+            if (ret != null && !ret.isExpired())
+                return ret;
+            if (refresh == null) {
+                refresh = new FutureTask<>(new Callable<Snapshot>()
+                {
+                    @Override
+                    public Snapshot call()
+                        throws IOException
+                    {
+                        return fetch();
+                    }
+                });
+                owner = true;
+            }
+            task = refresh;
+        }
+
+        if (owner)
+            try {
+                task.run();
+            } finally {
+                synchronized (lock) {
+                    refresh = null;
+                }
+            }
+
+        try {
+            return task.get();
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for "
+                + "quota info");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException("cannot get quota info from account", cause);
+        }
+    }
+
+    private Snapshot fetch()
+        throws IOException
+    {
+        /*
+         * Bytes written while the quota is being fetched may or may not be
+         * accounted for by the server; count them anyway
+         */
+        final long base = written.get();
+        final Quota quota;
+
         try {
-            return client.getAccountInfo().quota;
+            quota = requestExecutor.execute(new DbxCall<Quota>()
+            {
+                @Override
+                public Quota call()
+                    throws DbxException
+                {
+                    return client.getAccountInfo().quota;
+                }
+            });
         } catch (DbxException e) {
             throw new IOException("cannot get quota info from account", e);
         }
+
+        final Snapshot ret = new Snapshot(quota, base);
+        snapshot = ret;
+        return ret;
+    }
+
+    private final class Snapshot
+    {
+        private final Quota quota;
+        private final long base;
+        private final long fetched = System.nanoTime();
+
+        private Snapshot(final Quota quota, final long base)
+        {
+            this.quota = quota;
+            this.base = base;
+        }
+
+        private boolean isExpired()
+        {
+            return System.nanoTime() - fetched >= refreshInterval;
+        }
+
+        private long getFreeSpace()
+        {
+            final long used = quota.normal + written.get() - base;
+            return Math.max(0L, quota.total - used);
+        }
     }
 }
@@ -0,0 +1,383 @@
+package com.github.fge.fs.dropbox.metrics;
+
+import com.dropbox.core.DbxException;
+import com.github.fge.fs.dropbox.cache.ContentCache;
+import com.github.fge.fs.dropbox.rpc.Lane;
+import com.github.fge.fs.dropbox.rpc.RequestExecutor;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Metrics of a DropBox filesystem
+ *
+ * <p>One instance of this class exists per filesystem, and is registered as
+ * an MXBean (see {@link DropBoxMetricsMXBean}) for as long as the filesystem
+ * is open.</p>
+ *
+ * <p>Recording only updates {@link StripedCounter}s and {@link
+ * LatencyHistogram}s, so that it is cheap even when many threads use the
+ * filesystem at once; the cost of summing values is paid when they are read.
+ * </p>
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class DropBoxMetrics
+    implements DropBoxMetricsMXBean
+{
+    private final RequestExecutor requestExecutor;
+    private final ContentCache contentCache;
+
+    private final Map<Operation, OperationMetrics> operations
+        = new EnumMap<>(Operation.class);
+
+    private final StripedCounter bytesRead = new StripedCounter();
+    private final StripedCounter bytesWritten = new StripedCounter();
+    private final StripedCounter metadataHits = new StripedCounter();
+    private final StripedCounter metadataMisses = new StripedCounter();
+    private final StripedCounter listingHits = new StripedCounter();
+    private final StripedCounter listingMisses = new StripedCounter();
+
+    /**
+     * Constructor
+     *
+     * @param requestExecutor the executor running the API calls of the
+     * filesystem
+     * @param contentCache the content cache of the filesystem; may be {@code
+     * null}
+     */
+    public DropBoxMetrics(final RequestExecutor requestExecutor,
+        @Nullable final ContentCache contentCache)
+    {
+        this.requestExecutor = requestExecutor;
+        this.contentCache = contentCache;
+        for (final Operation operation: Operation.values())
+            operations.put(operation, new OperationMetrics());
+    }
+
+    /**
+     * Record the successful completion of an operation
+     *
+     * @param operation the operation
+     * @param start the value of {@link System#nanoTime()} when the operation
+     * started
+     */
+    public void recordSuccess(final Operation operation, final long start)
+    {
+        final OperationMetrics metrics = operations.get(operation);
+        metrics.calls.increment();
+        metrics.latencies.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Record the failure of an operation
+     *
+     * @param operation the operation
+     * @param start the value of {@link System#nanoTime()} when the operation
+     * started
+     * @param failure the exception the operation failed with
+     */
+    public void recordFailure(final Operation operation, final long start,
+        final Throwable failure)
+    {
+        final OperationMetrics metrics = operations.get(operation);
+        metrics.calls.increment();
+        metrics.latencies.record(System.nanoTime() - start);
+
+        final String type = errorType(failure);
+        StripedCounter counter = metrics.errors.get(type);
+        if (counter == null) {
+            final StripedCounter newCounter = new StripedCounter();
+            counter = metrics.errors.putIfAbsent(type, newCounter);
+            if (counter == null)
+                counter = newCounter;
+        }
+        counter.increment();
+    }
+
+    public void recordMetadataLookup(final boolean hit)
+    {
+        (hit ? metadataHits : metadataMisses).increment();
+    }
+
+    public void recordListing(final boolean unchanged)
+    {
+        (unchanged ? listingHits : listingMisses).increment();
+    }
+
+    /**
+     * Wrap an input stream so that the bytes read from it are counted
+     *
+     * @param in the stream
+     * @return a wrapping stream
+     */
+    public InputStream countReads(final InputStream in)
+    {
+        return new CountingInputStream(in);
+    }
+
+    /**
+     * Wrap an output stream so that the bytes written to it are counted
+     *
+     * @param out the stream
+     * @return a wrapping stream
+     */
+    public OutputStream countWrites(final OutputStream out)
+    {
+        return new CountingOutputStream(out);
+    }
+
+    @Override
+    public Map<String, Long> getCallCounts()
+    {
+        final Map<String, Long> ret = new LinkedHashMap<>();
+
+        for (final Map.Entry<Operation, OperationMetrics> entry:
+            operations.entrySet())
+            ret.put(entry.getKey().name(), entry.getValue().calls.sum());
+
+        return ret;
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts()
+    {
+        final Map<String, Long> ret = new LinkedHashMap<>();
+        String name;
+
+        for (final Map.Entry<Operation, OperationMetrics> entry:
+            operations.entrySet()) {
+            name = entry.getKey().name();
+            for (final Map.Entry<String, StripedCounter> error:
+                entry.getValue().errors.entrySet())
+                ret.put(name + ':' + error.getKey(), error.getValue().sum());
+        }
+
+        return ret;
+    }
+
+    @Override
+    public Map<String, Double> getMeanLatencies()
+    {
+        final Map<String, Double> ret = new LinkedHashMap<>();
+
+        for (final Map.Entry<Operation, OperationMetrics> entry:
+            operations.entrySet())
+            ret.put(entry.getKey().name(),
+                entry.getValue().latencies.getMean());
+
+        return ret;
+    }
+
+    @Override
+    public long[] getLatencyBucketBounds()
+    {
+        return LatencyHistogram.getBucketBounds();
+    }
+
+    @Override
+    public Map<String, long[]> getLatencyHistograms()
+    {
+        final Map<String, long[]> ret = new LinkedHashMap<>();
+
+        for (final Map.Entry<Operation, OperationMetrics> entry:
+            operations.entrySet())
+            ret.put(entry.getKey().name(),
+                entry.getValue().latencies.getCounts());
+
+        return ret;
+    }
+
+    @Override
+    public long getBytesRead()
+    {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten()
+    {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public double getMetadataCacheHitRate()
+    {
+        return rate(metadataHits.sum(), metadataMisses.sum());
+    }
+
+    @Override
+    public double getListingCacheHitRate()
+    {
+        return rate(listingHits.sum(), listingMisses.sum());
+    }
+
+    @Override
+    public double getContentCacheHitRate()
+    {
+        return contentCache == null ? 0.0
+            : rate(contentCache.getHits(), contentCache.getMisses());
+    }
+
+    @Override
+    public long getRetries()
+    {
+        return requestExecutor.getRetries();
+    }
+
+    @Override
+    public long getThrottles()
+    {
+        return requestExecutor.getThrottles();
+    }
+
+    @Override
+    public int getConcurrencyLimit()
+    {
+        return requestExecutor.getConcurrencyLimit();
+    }
+
+    @Override
+    public int getInFlightRequests()
+    {
+        return requestExecutor.getInFlight();
+    }
+
+    @Override
+    public int getInFlightMetadataRequests()
+    {
+        return requestExecutor.getInFlight(Lane.METADATA);
+    }
+
+    @Override
+    public int getInFlightBulkRequests()
+    {
+        return requestExecutor.getInFlight(Lane.BULK);
+    }
+
+    @Override
+    public int getQueuedMetadataRequests()
+    {
+        return requestExecutor.getQueued(Lane.METADATA);
+    }
+
+    @Override
+    public int getQueuedBulkRequests()
+    {
+        return requestExecutor.getQueued(Lane.BULK);
+    }
+
+    private static double rate(final long hits, final long misses)
+    {
+        final long total = hits + misses;
+        return total == 0L ? 0.0 : hits / (double) total;
+    }
+
+    /*
+     * The type of the first DbxException in the cause chain, if any; for
+     * instance, "DbxException.RetryLater"
+     */
+    private static String errorType(final Throwable failure)
+    {
+        Throwable type = failure;
+
+        for (Throwable t = failure; t != null; t = t.getCause())
+            if (t instanceof DbxException) {
+                type = t;
+                break;
+            }
+
+        final String name = type.getClass().getName();
+        return name.substring(name.lastIndexOf('.') + 1).replace('$', '.');
+    }
+
+    private static final class OperationMetrics
+    {
+        private final StripedCounter calls = new StripedCounter();
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final ConcurrentMap<String, StripedCounter> errors
+            = new ConcurrentHashMap<>();
+    }
+
+    private final class CountingInputStream
+        extends FilterInputStream
+    {
+        private CountingInputStream(final InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public int read()
+            throws IOException
+        {
+            final int ret = in.read();
+            if (ret != -1)
+                bytesRead.increment();
+            return ret;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            final int ret = in.read(b, off, len);
+            if (ret > 0)
+                bytesRead.add(ret);
+            return ret;
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+    }
+
+    private final class CountingOutputStream
+        extends FilterOutputStream
+    {
+        private CountingOutputStream(final OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b)
+            throws IOException
+        {
+            out.write(b);
+            bytesWritten.increment();
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            out.write(b, off, len);
+            bytesWritten.add(len);
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            /*
+             * FilterOutputStream's close() flushes first; the upload has no
+             * use for that
+             */
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.fge.fs.dropbox.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of the metrics of a DropBox filesystem
+ *
+ * <p>Maps of per operation values are keyed by {@link Operation} name; error
+ * counts are keyed by operation name and error type, separated by a colon.
+ * Errors caused by a DropBox API error are counted under the type of this
+ * error (for instance, {@code DbxException.RetryLater}), others under the
+ * type of the exception thrown.</p>
+ */
+public interface DropBoxMetricsMXBean
+{
+    Map<String, Long> getCallCounts();
+
+    Map<String, Long> getErrorCounts();
+
+    /**
+     * Get the mean latency of all operations
+     *
+     * @return a map of mean latencies, in milliseconds
+     */
+    Map<String, Double> getMeanLatencies();
+
+    /**
+     * Get the upper bounds of latency histogram buckets
+     *
+     * <p>The last bucket of a histogram has no upper bound, so it has one
+     * more bucket than there are bounds.</p>
+     *
+     * @return the bounds, in milliseconds
+     *
+     * @see #getLatencyHistograms()
+     */
+    long[] getLatencyBucketBounds();
+
+    Map<String, long[]> getLatencyHistograms();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    /**
+     * Get the hit rate of the metadata cache
+     *
+     * @return the hit rate, between 0 and 1; 0 if there was no lookup
+     */
+    double getMetadataCacheHitRate();
+
+    /**
+     * Get the rate of directory listings found unchanged since they were last
+     * fetched
+     *
+     * @return the hit rate, between 0 and 1; 0 if there was no listing
+     */
+    double getListingCacheHitRate();
+
+    /**
+     * Get the hit rate of the content cache
+     *
+     * @return the hit rate, between 0 and 1; 0 if there is no content cache
+     */
+    double getContentCacheHitRate();
+
+    long getRetries();
+
+    long getThrottles();
+
+    int getConcurrencyLimit();
+
+    int getInFlightRequests();
+
+    int getInFlightMetadataRequests();
+
+    int getInFlightBulkRequests();
+
+    /**
+     * Get the number of metadata API calls waiting for a slot
+     *
+     * @return the number of calls
+     */
+    int getQueuedMetadataRequests();
+
+    /**
+     * Get the number of transfer API calls waiting for a slot
+     *
+     * @return the number of calls
+     */
+    int getQueuedBulkRequests();
+}
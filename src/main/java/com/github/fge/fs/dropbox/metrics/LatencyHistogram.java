@@ -0,0 +1,83 @@
+package com.github.fge.fs.dropbox.metrics;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, in buckets of exponentially growing width
+ *
+ * <p>The upper bound of bucket {@code n} is 2<sup>n</sup> milliseconds; the
+ * last bucket has no upper bound. Like {@link StripedCounter}, each thread
+ * updates its own padded set of buckets.</p>
+ */
+@ThreadSafe
+public final class LatencyHistogram
+{
+    private static final int BUCKETS = 18;
+
+    /*
+     * Buckets of a stripe, rounded up to a whole number of cache lines
+     */
+    private static final int STRIDE = (BUCKETS + StripedCounter.PADDING - 1)
+        / StripedCounter.PADDING * StripedCounter.PADDING;
+
+    private final AtomicLongArray cells
+        = new AtomicLongArray(StripedCounter.STRIPES * STRIDE);
+    private final StripedCounter totalNanos = new StripedCounter();
+
+    /**
+     * Get the upper bounds of all buckets but the last one
+     *
+     * @return the bounds, in milliseconds
+     */
+    public static long[] getBucketBounds()
+    {
+        final long[] ret = new long[BUCKETS - 1];
+
+        for (int i = 0; i < ret.length; i++)
+            ret[i] = 1L << i;
+
+        return ret;
+    }
+
+    public void record(final long nanos)
+    {
+        final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        final int bucket = millis <= 1L ? 0 : Math.min(BUCKETS - 1,
+            Long.SIZE - Long.numberOfLeadingZeros(millis - 1L));
+
+        cells.getAndIncrement(StripedCounter.stripe() * STRIDE + bucket);
+        totalNanos.add(nanos);
+    }
+
+    public long[] getCounts()
+    {
+        final long[] ret = new long[BUCKETS];
+        int base;
+
+        for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+            base = stripe * STRIDE;
+            for (int i = 0; i < BUCKETS; i++)
+                ret[i] += cells.get(base + i);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Get the mean latency
+     *
+     * @return the mean latency in milliseconds, or 0 if nothing was recorded
+     */
+    public double getMean()
+    {
+        long count = 0L;
+
+        for (final long n: getCounts())
+            count += n;
+
+        return count == 0L ? 0.0
+            : totalNanos.sum() / (double) count / 1000000.0;
+    }
+}
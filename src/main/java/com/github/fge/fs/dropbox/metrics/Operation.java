@@ -0,0 +1,23 @@
+package com.github.fge.fs.dropbox.metrics;
+
+/**
+ * Filesystem driver operations for which metrics are recorded
+ */
+public enum Operation
+{
+    NEW_INPUT_STREAM,
+    NEW_OUTPUT_STREAM,
+    UPLOAD_FILE,
+    NEW_BYTE_CHANNEL,
+    NEW_ASYNCHRONOUS_FILE_CHANNEL,
+    NEW_DIRECTORY_STREAM,
+    NEW_TREE_STREAM,
+    CREATE_DIRECTORY,
+    DELETE,
+    DELETE_TREE,
+    COPY,
+    COPY_TREE,
+    MOVE,
+    CHECK_ACCESS,
+    GET_PATH_METADATA
+}
@@ -0,0 +1,64 @@
+package com.github.fge.fs.dropbox.metrics;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over several cells to reduce contention
+ *
+ * <p>Each thread updates one cell, chosen from its identifier; cells are
+ * padded so that no two of them share a cache line. Reading the value sums
+ * all cells, and is therefore more expensive than updating it; the value read
+ * while updates are in progress is not a snapshot.</p>
+ */
+@ThreadSafe
+public final class StripedCounter
+{
+    /*
+     * Number of longs in a cache line
+     */
+    static final int PADDING = 8;
+
+    static final int STRIPES = stripes();
+
+    private final AtomicLongArray cells
+        = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment()
+    {
+        add(1L);
+    }
+
+    public void add(final long delta)
+    {
+        cells.getAndAdd(stripe() * PADDING, delta);
+    }
+
+    public long sum()
+    {
+        long ret = 0L;
+
+        for (int i = 0; i < STRIPES; i++)
+            ret += cells.get(i * PADDING);
+
+        return ret;
+    }
+
+    /**
+     * Get the stripe used by the current thread
+     *
+     * @return the stripe, between 0 and {@link #STRIPES} excluded
+     */
+    static int stripe()
+    {
+        final long id = Thread.currentThread().getId();
+        final int hash = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+        return hash & (STRIPES - 1);
+    }
+
+    private static int stripes()
+    {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        return Math.min(64, Integer.highestOneBit(processors * 2 - 1) << 1);
+    }
+}
@@ -0,0 +1,502 @@
+package com.github.fge.fs.dropbox.misc;
+
+import com.dropbox.core.DbxClient;
+import com.dropbox.core.DbxEntry;
+import com.dropbox.core.DbxException;
+import com.dropbox.core.DbxWriteMode;
+import com.github.fge.fs.dropbox.rpc.DbxCall;
+import com.github.fge.fs.dropbox.rpc.Lane;
+import com.github.fge.fs.dropbox.rpc.RequestExecutor;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link DbxClient.Uploader} running its own chunked upload session
+ *
+ * <p>Data written to the {@link #getBody() body} is cut into chunks of a
+ * configurable size. Full chunks are queued and uploaded in the background,
+ * in order, while the writer fills the next ones; the writer only blocks when
+ * the configured number of chunks is already waiting. The chunked upload API
+ * requires chunks to be appended at the offset the server expects, which is
+ * why only one request is on the wire at any given time.</p>
+ *
+ * <p>Each chunk is retried on transient failures, using a {@link
+ * RequestExecutor}. When the server reports that it has received only part
+ * of a chunk, the upload resumes from the offset it acknowledged rather than
+ * from the start of the file.</p>
+ *
+ * <p>The upload is committed when {@link #finish()} is called. Small files do
+ * not need a session at all: data is first kept in a buffer which grows as
+ * needed, and if no more than a configurable threshold has been written when
+ * the upload is finished, it is sent in a single request whose length is
+ * known. The session is only opened when the threshold is crossed, starting
+ * with the data buffered so far.</p>
+ *
+ * <p>With no chunks in flight, there is no background worker: full chunks are
+ * uploaded by the thread writing them, before the write returns. This suits
+ * writers which are tasks themselves, such as the writes of a {@link
+ * DropBoxAsynchronousFileChannel}, and must not park a thread for the whole
+ * upload.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class ChunkedUploader
+    extends DbxClient.Uploader
+{
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_CHUNKS_IN_FLIGHT = 4;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    private static final Chunk END = new Chunk(new byte[0], 0);
+
+    private final DbxClient client;
+    private final RequestExecutor requestExecutor;
+    private final ExecutorService executor;
+    private final String target;
+    private final DbxWriteMode writeMode;
+    private final int chunkSize;
+    private final int singleThreshold;
+    private final int maxRetries;
+
+    /*
+     * null if chunks are uploaded by the writer
+     */
+    private final BlockingQueue<Chunk> queue;
+    private final OutputStream body = new Body();
+
+    /*
+     * Writer side; abort() may be called from another thread, which is why
+     * it only touches the volatile fields
+     */
+    private byte[] buffer;
+    private int bufferPos = 0;
+    private boolean session = false;
+    private volatile Future<?> worker = null;
+    private volatile boolean done = false;
+
+    /*
+     * Worker side, or writer side if there is no worker; only read by the
+     * writer once the worker has completed
+     */
+    private String uploadId = null;
+    private long uploadOffset = 0L;
+    private volatile DbxException failure = null;
+
+    /**
+     * Constructor
+     *
+     * <p>Files no larger than a chunk are sent in a single request.</p>
+     *
+     * @param client the DropBox client
+     * @param requestExecutor the executor to run API calls with
+     * @param executor the executor to run uploads on
+     * @param target the real path of the file to upload
+     * @param writeMode the write mode
+     * @param chunkSize the size of a chunk
+     * @param chunksInFlight how many full chunks may wait for upload
+     * @param maxRetries how many times a chunk is retried
+     */
+    public ChunkedUploader(final DbxClient client,
+        final RequestExecutor requestExecutor,
+        final ExecutorService executor, final String target,
+        final DbxWriteMode writeMode, final int chunkSize,
+        final int chunksInFlight, final int maxRetries)
+    {
+        this(client, requestExecutor, executor, target, writeMode, chunkSize,
+            chunkSize, chunksInFlight, maxRetries);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param client the DropBox client
+     * @param requestExecutor the executor to run API calls with
+     * @param executor the executor to run uploads on
+     * @param target the real path of the file to upload
+     * @param writeMode the write mode
+     * @param chunkSize the size of a chunk
+     * @param singleThreshold the maximum size of a file sent in a single
+     * request
+     * @param chunksInFlight how many full chunks may wait for upload; 0 to
+     * have the writer upload them
+     * @param maxRetries how many times a chunk is retried
+     */
+    public ChunkedUploader(final DbxClient client,
+        final RequestExecutor requestExecutor,
+        final ExecutorService executor, final String target,
+        final DbxWriteMode writeMode, final int chunkSize,
+        final int singleThreshold, final int chunksInFlight,
+        final int maxRetries)
+    {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("chunk size must be strictly "
+                + "positive");
+        if (singleThreshold < 0)
+            throw new IllegalArgumentException("single upload threshold "
+                + "cannot be negative");
+        if (chunksInFlight < 0)
+            throw new IllegalArgumentException("number of chunks in flight "
+                + "cannot be negative");
+        if (maxRetries < 0)
+            throw new IllegalArgumentException("number of retries cannot be "
+                + "negative");
+        this.client = client;
+        this.requestExecutor = requestExecutor;
+        this.executor = executor;
+        this.target = target;
+        this.writeMode = writeMode;
+        this.chunkSize = chunkSize;
+        this.singleThreshold = singleThreshold;
+        this.maxRetries = maxRetries;
+        queue = chunksInFlight == 0 ? null
+            : new ArrayBlockingQueue<Chunk>(chunksInFlight);
+        buffer = new byte[Math.min(INITIAL_BUFFER_SIZE, singleThreshold)];
+    }
+
+    @Override
+    public OutputStream getBody()
+    {
+        return body;
+    }
+
+    @Override
+    public void abort()
+    {
+        done = true;
+        final Future<?> future = worker;
+        if (future != null)
+            future.cancel(true);
+        if (queue != null)
+            queue.clear();
+    }
+
+    @Override
+    public void close()
+    {
+        if (!done)
+            abort();
+    }
+
+    @Override
+    public DbxEntry.File finish()
+        throws DbxException
+    {
+        if (done)
+            throw new IllegalStateException("upload already finished or "
+                + "aborted");
+        done = true;
+
+        try {
+            if (!session)
+                return uploadSingle(buffer, bufferPos);
+
+            if (bufferPos > 0)
+                enqueue(new Chunk(buffer, bufferPos));
+            enqueue(END);
+            awaitWorker();
+        } finally {
+            buffer = null;
+        }
+
+        final String id = uploadId;
+        return requestExecutor.execute(new DbxCall<DbxEntry.File>()
+        {
+            @Override
+            public DbxEntry.File call()
+                throws DbxException
+            {
+                return client.chunkedUploadFinish(target, writeMode, id);
+            }
+        }, Lane.BULK, maxRetries);
+    }
+
+    private DbxEntry.File uploadSingle(final byte[] data, final int length)
+        throws DbxException
+    {
+        return requestExecutor.execute(new DbxCall<DbxEntry.File>()
+        {
+            @Override
+            public DbxEntry.File call()
+                throws DbxException
+            {
+                try {
+                    return client.uploadFile(target, writeMode, length,
+                        new ByteArrayInputStream(data, 0, length));
+                } catch (IOException e) {
+                    throw new DbxException.NetworkIO(e);
+                }
+            }
+        }, Lane.BULK, maxRetries);
+    }
+
+    private void write(final byte[] b, final int off, final int len)
+        throws IOException
+    {
+        if (done)
+            throw new IOException("upload already finished or aborted");
+
+        if (!session) {
+            if (len <= singleThreshold - bufferPos) {
+                ensureCapacity(bufferPos + len);
+                System.arraycopy(b, off, buffer, bufferPos, len);
+                bufferPos += len;
+                return;
+            }
+            startSession();
+        }
+
+        int pos = off;
+        final int end = off + len;
+        int count;
+
+        while (pos < end) {
+            if (done)
+                throw new IOException("upload aborted");
+            count = Math.min(end - pos, chunkSize - bufferPos);
+            System.arraycopy(b, pos, buffer, bufferPos, count);
+            bufferPos += count;
+            pos += count;
+            if (bufferPos == chunkSize)
+                flushBuffer();
+        }
+    }
+
+    private void ensureCapacity(final int capacity)
+    {
+        if (capacity <= buffer.length)
+            return;
+
+        final int doubled = (int) Math.min(2L * buffer.length,
+            singleThreshold);
+        buffer = Arrays.copyOf(buffer, Math.max(capacity, doubled));
+    }
+
+    /*
+     * The threshold for a single request upload is crossed: start the
+     * session, and queue the data buffered so far as its first chunks
+     */
+    private void startSession()
+        throws IOException
+    {
+        final byte[] data = buffer;
+        final int length = bufferPos;
+        int pos = 0;
+
+        session = true;
+
+        if (queue != null) {
+            final Future<?> future = executor.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    pump();
+                }
+            });
+            worker = future;
+
+            // abort() may have run before the worker was visible to it
+            if (done) {
+                future.cancel(true);
+                throw new IOException("upload aborted");
+            }
+        }
+
+        buffer = new byte[chunkSize];
+        bufferPos = 0;
+
+        try {
+            for (; length - pos >= chunkSize; pos += chunkSize)
+                enqueue(new Chunk(Arrays.copyOfRange(data, pos,
+                    pos + chunkSize), chunkSize));
+        } catch (DbxException e) {
+            throw DropBoxIOException.wrap(e);
+        }
+
+        System.arraycopy(data, pos, buffer, 0, length - pos);
+        bufferPos = length - pos;
+    }
+
+    private void flushBuffer()
+        throws IOException
+    {
+        try {
+            enqueue(new Chunk(buffer, bufferPos));
+        } catch (DbxException e) {
+            throw DropBoxIOException.wrap(e);
+        }
+
+        buffer = new byte[chunkSize];
+        bufferPos = 0;
+    }
+
+    private void enqueue(final Chunk chunk)
+        throws DbxException
+    {
+        final DbxException e = failure;
+        if (e != null)
+            throw e;
+
+        if (queue == null) {
+            if (chunk != END)
+                uploadInline(chunk);
+            return;
+        }
+
+        try {
+            queue.put(chunk);
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+            throw new DbxException.NetworkIO(new InterruptedIOException());
+        }
+    }
+
+    private void uploadInline(final Chunk chunk)
+        throws DbxException
+    {
+        try {
+            upload(chunk);
+        } catch (DbxException e) {
+            failure = e;
+            throw e;
+        }
+    }
+
+    private void awaitWorker()
+        throws DbxException
+    {
+        final Future<?> future = worker;
+
+        if (future != null)
+            try {
+                future.get();
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+                throw new DbxException.NetworkIO(new InterruptedIOException());
+            } catch (ExecutionException e) {
+                throw new DbxException("upload worker failed", e.getCause());
+            }
+
+        final DbxException e = failure;
+        if (e != null)
+            throw e;
+    }
+
+    private void pump()
+    {
+        Chunk chunk;
+
+        try {
+            while ((chunk = queue.take()) != END)
+                upload(chunk);
+        } catch (InterruptedException ignored) {
+            // aborted
+        } catch (DbxException e) {
+            failure = e;
+            queue.clear();
+        }
+    }
+
+    private void upload(final Chunk chunk)
+        throws DbxException
+    {
+        if (uploadId == null) {
+            uploadId = requestExecutor.execute(new DbxCall<String>()
+            {
+                @Override
+                public String call()
+                    throws DbxException
+                {
+                    return client.chunkedUploadFirst(chunk.data, 0,
+                        chunk.length);
+                }
+            }, Lane.BULK, maxRetries);
+            uploadOffset = chunk.length;
+            return;
+        }
+
+        final String id = uploadId;
+        final long start = uploadOffset;
+        int sent = 0;
+        long corrected;
+
+        while (sent < chunk.length) {
+            final int from = sent;
+            corrected = requestExecutor.execute(new DbxCall<Long>()
+            {
+                @Override
+                public Long call()
+                    throws DbxException
+                {
+                    return client.chunkedUploadAppend(id, start + from,
+                        chunk.data, from, chunk.length - from);
+                }
+            }, Lane.BULK, maxRetries);
+            if (corrected == -1L)
+                break;
+            /*
+             * The server did not get everything: resume from the offset it
+             * acknowledged, provided it is within this chunk and makes
+             * progress
+             */
+            if (corrected <= start + from || corrected > start + chunk.length)
+                throw new DbxException.BadResponse("we were at offset "
+                    + (start + from) + ", server said " + corrected);
+            sent = (int) (corrected - start);
+        }
+
+        uploadOffset = start + chunk.length;
+    }
+
+    private static final class Chunk
+    {
+        private final byte[] data;
+        private final int length;
+
+        private Chunk(final byte[] data, final int length)
+        {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    private final class Body
+        extends OutputStream
+    {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public void write(final int b)
+            throws IOException
+        {
+            single[0] = (byte) b;
+            ChunkedUploader.this.write(single, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            if (off < 0 || len < 0 || len > b.length - off)
+                throw new IndexOutOfBoundsException();
+            ChunkedUploader.this.write(b, off, len);
+        }
+
+        @Override
+        public void close()
+        {
+            // the upload is committed by finish()
+        }
+    }
+}
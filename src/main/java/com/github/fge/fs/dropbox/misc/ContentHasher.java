@@ -0,0 +1,88 @@
+package com.github.fge.fs.dropbox.misc;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the DropBox content hash of a stream of bytes
+ *
+ * <p>The contents are split into blocks of 4 MiB; the hash is the SHA-256 of
+ * the concatenation of the SHA-256 of each block, in hexadecimal. This is the
+ * hash later versions of the DropBox API report for files; the version of the
+ * API used here does not, which is why it is computed locally.</p>
+ */
+@NotThreadSafe
+@ParametersAreNonnullByDefault
+public final class ContentHasher
+{
+    public static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final MessageDigest overall = sha256();
+    private final MessageDigest block = sha256();
+    private int blockPos = 0;
+
+    public void update(final byte b)
+    {
+        block.update(b);
+        if (++blockPos == BLOCK_SIZE) {
+            overall.update(block.digest());
+            blockPos = 0;
+        }
+    }
+
+    public void update(final byte[] b, final int off, final int len)
+    {
+        int pos = off;
+        final int end = off + len;
+        int count;
+
+        while (pos < end) {
+            count = Math.min(end - pos, BLOCK_SIZE - blockPos);
+            block.update(b, pos, count);
+            blockPos += count;
+            pos += count;
+            if (blockPos == BLOCK_SIZE) {
+                overall.update(block.digest());
+                blockPos = 0;
+            }
+        }
+    }
+
+    /**
+     * Complete the computation
+     *
+     * <p>The hasher is reset and can be reused.</p>
+     *
+     * @return the hash, as a lowercase hexadecimal string
+     */
+    public String digest()
+    {
+        if (blockPos > 0) {
+            overall.update(block.digest());
+            blockPos = 0;
+        }
+
+        final byte[] hash = overall.digest();
+        final char[] chars = new char[hash.length * 2];
+
+        for (int i = 0; i < hash.length; i++) {
+            chars[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+
+        return new String(chars);
+    }
+
+    private static MessageDigest sha256()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available??", e);
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package com.github.fge.fs.dropbox.misc;
+
+import com.dropbox.core.DbxClient;
+import com.github.fge.fs.dropbox.cache.MetadataCache;
+import com.github.fge.fs.dropbox.filestore.DropBoxFileStore;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An {@link AsynchronousFileChannel} over a DropBox file
+ *
+ * <p>A channel is either read only or write only:</p>
+ *
+ * <ul>
+ *     <li>reads are served from the revision which was current when the
+ *     channel was opened; smaller reads go through a {@link
+ *     DropBoxSeekableByteChannel}, whose bounded, growing range requests
+ *     read ahead when reading sequentially, one read at a time; larger reads
+ *     are each served by an HTTP range request of their own (see {@link
+ *     RangeDownloader}), and may run in parallel;</li>
+ *     <li>writes feed an upload session (see {@link ChunkedUploader}); they
+ *     must be made in sequence, each one starting where the previous one
+ *     ended, and the file is only replaced on DropBox when the channel is
+ *     closed. A write uploads the chunks it fills before it completes: no
+ *     thread waits for the upload in the background.</li>
+ * </ul>
+ *
+ * <p>Operations run on the executor given when the channel is created, and
+ * completion handlers are invoked by the thread which ran the operation. A
+ * thread is therefore only used while a read or write is in progress, not for
+ * the whole life of the channel; writes to the same channel are run one after
+ * the other, by at most one thread at a time.</p>
+ *
+ * <p>File locks are not supported.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class DropBoxAsynchronousFileChannel
+    extends AsynchronousFileChannel
+{
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    /*
+     * Reads of at least this many blocks are served by a range request of
+     * their own
+     */
+    private static final int DIRECT_READ_BLOCKS = 16;
+
+    private final ExecutorService executor;
+    private final String path;
+
+    /*
+     * Read side
+     */
+    private final RangeDownloader downloader;
+    private final String rev;
+    private final long size;
+    private final DropBoxSeekableByteChannel reader;
+    private final long directReadSize;
+
+    /*
+     * Write side
+     */
+    private final DbxClient.Uploader uploader;
+    private final OutputStream out;
+    private final MetadataCache metadataCache;
+
+    private final Object lock = new Object();
+    private final Queue<Runnable> writes = new ArrayDeque<>();
+    private boolean writing = false;
+    private long writePosition = 0L;
+    private IOException writeFailure = null;
+
+    private volatile boolean open = true;
+
+    private DropBoxAsynchronousFileChannel(final ExecutorService executor,
+        final String path, @Nullable final RangeDownloader downloader,
+        @Nullable final String rev, final long size, final int blockSize,
+        final int cachedBlocks, @Nullable final DbxClient.Uploader uploader,
+        @Nullable final MetadataCache metadataCache,
+        @Nullable final DropBoxFileStore fileStore)
+    {
+        this.executor = executor;
+        this.path = path;
+        this.downloader = downloader;
+        this.rev = rev;
+        this.size = size;
+        reader = downloader == null ? null
+            : new DropBoxSeekableByteChannel(downloader, path, rev, size,
+                blockSize, cachedBlocks);
+        directReadSize = (long) blockSize * DIRECT_READ_BLOCKS;
+        this.uploader = uploader;
+        this.metadataCache = metadataCache;
+        out = uploader == null ? null
+            : new DropBoxOutputStream(uploader, path, metadataCache,
+                fileStore);
+    }
+
+    /**
+     * Create a read only channel
+     *
+     * @param executor the executor running reads and completion handlers
+     * @param downloader the range downloader
+     * @param path the real path of the file
+     * @param rev the revision of the file to read, or {@code null} for the
+     * latest one
+     * @param size the size of the file
+     * @param blockSize the size of a block read ahead
+     * @param cachedBlocks the maximum number of blocks kept in memory
+     * @return a new channel
+     *
+     * @see DropBoxSeekableByteChannel
+     */
+    public static AsynchronousFileChannel forReading(
+        final ExecutorService executor, final RangeDownloader downloader,
+        final String path, @Nullable final String rev, final long size,
+        final int blockSize, final int cachedBlocks)
+    {
+        return new DropBoxAsynchronousFileChannel(executor, path, downloader,
+            rev, size, blockSize, cachedBlocks, null, null, null);
+    }
+
+    /**
+     * Create a write only channel
+     *
+     * @param executor the executor running writes and completion handlers
+     * @param uploader the uploader; it should upload full chunks in the
+     * writing thread
+     * @param path the real path of the file
+     * @param metadataCache the metadata cache to update once the upload is
+     * over; may be {@code null}
+     * @param fileStore the filestore to record the bytes written with; may be
+     * {@code null}
+     * @return a new channel
+     */
+    public static AsynchronousFileChannel forWriting(
+        final ExecutorService executor, final DbxClient.Uploader uploader,
+        final String path, @Nullable final MetadataCache metadataCache,
+        @Nullable final DropBoxFileStore fileStore)
+    {
+        return new DropBoxAsynchronousFileChannel(executor, path, null, null,
+            0L, DropBoxSeekableByteChannel.DEFAULT_BLOCK_SIZE, 0, uploader,
+            metadataCache, fileStore);
+    }
+
+    @Override
+    public long size()
+        throws IOException
+    {
+        ensureOpen();
+        if (out == null)
+            return size;
+        synchronized (lock) {
+            return writePosition;
+        }
+    }
+
+    @Override
+    public AsynchronousFileChannel truncate(final long size)
+        throws IOException
+    {
+        if (out == null)
+            throw new NonWritableChannelException();
+        if (size < 0L)
+            throw new IllegalArgumentException("size cannot be negative");
+        if (size < size())
+            throw new UnsupportedOperationException("cannot truncate a file "
+                + "being uploaded");
+        return this;
+    }
+
+    /**
+     * Does nothing
+     *
+     * <p>The contents written to this channel only reach DropBox when the
+     * channel is closed.</p>
+     *
+     * @param metaData ignored
+     * @throws IOException channel is closed
+     */
+    @Override
+    public void force(final boolean metaData)
+        throws IOException
+    {
+        ensureOpen();
+    }
+
+    @Override
+    public <A> void lock(final long position, final long size,
+        final boolean shared, @Nullable final A attachment,
+        final CompletionHandler<FileLock, ? super A> handler)
+    {
+        throw new UnsupportedOperationException("file locks are not "
+            + "supported");
+    }
+
+    @Override
+    public Future<FileLock> lock(final long position, final long size,
+        final boolean shared)
+    {
+        throw new UnsupportedOperationException("file locks are not "
+            + "supported");
+    }
+
+    @Override
+    public FileLock tryLock(final long position, final long size,
+        final boolean shared)
+        throws IOException
+    {
+        throw new UnsupportedOperationException("file locks are not "
+            + "supported");
+    }
+
+    @Override
+    public <A> void read(final ByteBuffer dst, final long position,
+        @Nullable final A attachment,
+        final CompletionHandler<Integer, ? super A> handler)
+    {
+        executor.execute(toRunnable(readCall(dst, position), attachment,
+            handler));
+    }
+
+    @Override
+    public Future<Integer> read(final ByteBuffer dst, final long position)
+    {
+        final FutureTask<Integer> task
+            = new FutureTask<>(readCall(dst, position));
+        executor.execute(task);
+        return task;
+    }
+
+    @Override
+    public <A> void write(final ByteBuffer src, final long position,
+        @Nullable final A attachment,
+        final CompletionHandler<Integer, ? super A> handler)
+    {
+        enqueue(toRunnable(writeCall(src, position), attachment, handler));
+    }
+
+    @Override
+    public Future<Integer> write(final ByteBuffer src, final long position)
+    {
+        final FutureTask<Integer> task
+            = new FutureTask<>(writeCall(src, position));
+        enqueue(task);
+        return task;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    /**
+     * Close this channel
+     *
+     * <p>For a write only channel, this waits for all pending writes to
+     * complete, then completes the upload; if a write failed, the upload is
+     * aborted instead and the failure is rethrown.</p>
+     *
+     * @throws IOException upload failed
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (!open)
+            return;
+        open = false;
+
+        if (out == null) {
+            reader.close();
+            return;
+        }
+
+        final IOException failure;
+
+        synchronized (lock) {
+            while (writing)
+                try {
+                    lock.wait();
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                    abort();
+                    throw new InterruptedIOException("interrupted while "
+                        + "waiting for pending writes");
+                }
+            failure = writeFailure;
+        }
+
+        if (failure == null) {
+            out.close();
+            return;
+        }
+
+        abort();
+        throw failure;
+    }
+
+    private void ensureOpen()
+        throws ClosedChannelException
+    {
+        if (!open)
+            throw new ClosedChannelException();
+    }
+
+    private void abort()
+    {
+        uploader.abort();
+        uploader.close();
+        if (metadataCache != null)
+            metadataCache.invalidate(path);
+    }
+
+    private Callable<Integer> readCall(final ByteBuffer dst,
+        final long position)
+    {
+        if (out != null)
+            throw new NonReadableChannelException();
+        if (position < 0L)
+            throw new IllegalArgumentException("position cannot be negative");
+        if (dst.isReadOnly())
+            throw new IllegalArgumentException("buffer is read only");
+
+        return new Callable<Integer>()
+        {
+            @Override
+            public Integer call()
+                throws IOException
+            {
+                if (!open)
+                    throw new AsynchronousCloseException();
+                return doRead(dst, position);
+            }
+        };
+    }
+
+    private int doRead(final ByteBuffer dst, final long position)
+        throws IOException
+    {
+        if (position >= size)
+            return -1;
+
+        final int len = (int) Math.min(dst.remaining(), size - position);
+
+        if (len == 0)
+            return 0;
+
+        if (len < directReadSize)
+            synchronized (reader) {
+                reader.position(position);
+                return reader.read(dst);
+            }
+
+        final byte[] buf = new byte[Math.min(len, COPY_BUFFER_SIZE)];
+        int total = 0;
+        int read;
+
+        try (
+            final InputStream in = downloader.open(path, rev, position, len);
+        ) {
+            while (total < len) {
+                read = in.read(buf, 0, Math.min(buf.length, len - total));
+                if (read == -1)
+                    break;
+                dst.put(buf, 0, read);
+                total += read;
+            }
+        }
+
+        return total == 0 ? -1 : total;
+    }
+
+    private Callable<Integer> writeCall(final ByteBuffer src,
+        final long position)
+    {
+        if (out == null)
+            throw new NonWritableChannelException();
+        if (position < 0L)
+            throw new IllegalArgumentException("position cannot be negative");
+
+        final int len = src.remaining();
+
+        synchronized (lock) {
+            if (!open)
+                return new Callable<Integer>()
+                {
+                    @Override
+                    public Integer call()
+                        throws IOException
+                    {
+                        throw new ClosedChannelException();
+                    }
+                };
+            if (position != writePosition)
+                throw new IllegalArgumentException("writes must be made in "
+                    + "sequence (expected position " + writePosition
+                    + ", got " + position + ')');
+            writePosition += len;
+        }
+
+        return new Callable<Integer>()
+        {
+            @Override
+            public Integer call()
+                throws IOException
+            {
+                synchronized (lock) {
+                    if (writeFailure != null)
+                        throw writeFailure;
+                }
+                try {
+                    doWrite(src, len);
+                    return len;
+                } catch (IOException e) {
+                    synchronized (lock) {
+                        writeFailure = e;
+                    }
+                    throw e;
+                }
+            }
+        };
+    }
+
+    private void doWrite(final ByteBuffer src, final int len)
+        throws IOException
+    {
+        if (src.hasArray()) {
+            out.write(src.array(), src.arrayOffset() + src.position(), len);
+            src.position(src.position() + len);
+            return;
+        }
+
+        final byte[] buf = new byte[Math.min(len, COPY_BUFFER_SIZE)];
+        int chunk;
+
+        while (src.hasRemaining()) {
+            chunk = Math.min(buf.length, src.remaining());
+            src.get(buf, 0, chunk);
+            out.write(buf, 0, chunk);
+        }
+    }
+
+    /*
+     * Writes are queued and run by a single task at a time, so that they
+     * reach the upload in the order in which they were issued
+     */
+    private void enqueue(final Runnable write)
+    {
+        synchronized (lock) {
+            writes.add(write);
+            if (writing)
+                return;
+            writing = true;
+        }
+
+        try {
+            executor.execute(drain());
+        } catch (RejectedExecutionException e) {
+            synchronized (lock) {
+                writes.clear();
+                writing = false;
+                lock.notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private Runnable drain()
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Runnable next;
+
+                while (true) {
+                    synchronized (lock) {
+                        next = writes.poll();
+                        if (next == null) {
+                            writing = false;
+                            lock.notifyAll();
+                            return;
+                        }
+                    }
+                    next.run();
+                }
+            }
+        };
+    }
+
+    private static <A> Runnable toRunnable(final Callable<Integer> call,
+        @Nullable final A attachment,
+        final CompletionHandler<Integer, ? super A> handler)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final Integer result;
+
+                try {
+                    result = call.call();
+                } catch (Throwable t) {
+                    handler.failed(t, attachment);
+                    return;
+                }
+
+                handler.completed(result, attachment);
+            }
+        };
+    }
+}
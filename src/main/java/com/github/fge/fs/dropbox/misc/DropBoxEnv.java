@@ -0,0 +1,351 @@
+package com.github.fge.fs.dropbox.misc;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Typed view of the environment used to create a DropBox filesystem
+ *
+ * <p>This wraps the {@code env} map passed to {@link
+ * java.nio.file.spi.FileSystemProvider#newFileSystem(java.net.URI, Map)}. All
+ * keys except {@link #ACCESS_TOKEN} are optional; numeric and boolean values
+ * may be supplied either as their natural type or as strings.</p>
+ *
+ * <p>An invalid value for a key makes the getters throw an {@link
+ * IllegalArgumentException}.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class DropBoxEnv
+{
+    /**
+     * The OAuth 2 access token (mandatory)
+     */
+    public static final String ACCESS_TOKEN = "accessToken";
+
+    /**
+     * An {@link com.dropbox.core.http.HttpRequestor} instance to use instead
+     * of the default pooled requestor
+     */
+    public static final String HTTP_REQUESTOR = "httpRequestor";
+
+    /**
+     * A {@link com.dropbox.core.DbxHost} instance naming the servers to send
+     * requests to instead of DropBox's own; mostly useful for testing
+     */
+    public static final String HOST = "host";
+
+    /**
+     * Maximum number of HTTP connections in use at once, shared by all
+     * filesystems using the same access token
+     */
+    public static final String HTTP_MAX_CONNECTIONS = "httpMaxConnections";
+
+    /**
+     * HTTP connect timeout, in milliseconds
+     */
+    public static final String HTTP_CONNECT_TIMEOUT = "httpConnectTimeout";
+
+    /**
+     * HTTP read timeout, in milliseconds
+     */
+    public static final String HTTP_READ_TIMEOUT = "httpReadTimeout";
+
+    /**
+     * Whether to keep HTTP connections open for reuse
+     */
+    public static final String HTTP_KEEP_ALIVE = "httpKeepAlive";
+
+    /**
+     * Maximum number of entries in the metadata cache; 0 disables it
+     */
+    public static final String METADATA_CACHE_SIZE = "metadataCacheSize";
+
+    /**
+     * Time to live of metadata cache entries, in milliseconds
+     */
+    public static final String METADATA_CACHE_TTL = "metadataCacheTtl";
+
+    /**
+     * Maximum number of paths remembered as missing by the metadata cache; 0
+     * disables this
+     */
+    public static final String METADATA_CACHE_ABSENT_SIZE
+        = "metadataCacheAbsentSize";
+
+    /**
+     * Time during which a path found missing is considered missing without
+     * asking DropBox again, in milliseconds
+     */
+    public static final String METADATA_CACHE_ABSENT_TTL
+        = "metadataCacheAbsentTtl";
+
+    /**
+     * Maximum total number of children in cached directory listings; 0
+     * disables the listing cache
+     */
+    public static final String LISTING_CACHE_SIZE = "listingCacheSize";
+
+    /**
+     * Size of the blocks read by seekable byte channels, in bytes
+     */
+    public static final String CHANNEL_BLOCK_SIZE = "channelBlockSize";
+
+    /**
+     * Number of blocks kept in memory by each seekable byte channel
+     */
+    public static final String CHANNEL_CACHED_BLOCKS = "channelCachedBlocks";
+
+    /**
+     * An {@link java.util.concurrent.ExecutorService} running the operations
+     * and completion handlers of asynchronous file channels opened without an
+     * executor
+     */
+    public static final String ASYNC_EXECUTOR = "asyncExecutor";
+
+    /**
+     * Files at least this large are downloaded in parallel parts by input
+     * streams, in bytes; 0 (the default) disables parallel downloads
+     */
+    public static final String PARALLEL_DOWNLOAD_THRESHOLD
+        = "parallelDownloadThreshold";
+
+    /**
+     * Size of a part of a parallel download, in bytes
+     */
+    public static final String PARALLEL_DOWNLOAD_PART_SIZE
+        = "parallelDownloadPartSize";
+
+    /**
+     * Maximum number of parts of a parallel download fetched at once
+     */
+    public static final String PARALLEL_DOWNLOAD_PARTS
+        = "parallelDownloadParts";
+
+    /**
+     * Directory of the on disk content cache; if not set, there is no content
+     * cache
+     */
+    public static final String CONTENT_CACHE_DIRECTORY
+        = "contentCacheDirectory";
+
+    /**
+     * Maximum total size of the files in the content cache, in bytes
+     */
+    public static final String CONTENT_CACHE_SIZE = "contentCacheSize";
+
+    /**
+     * Size of a chunk of an upload, in bytes
+     */
+    public static final String UPLOAD_CHUNK_SIZE = "uploadChunkSize";
+
+    /**
+     * Files no larger than this are uploaded in a single request instead of
+     * a chunked upload session, in bytes; defaults to the chunk size
+     */
+    public static final String UPLOAD_SINGLE_THRESHOLD
+        = "uploadSingleThreshold";
+
+    /**
+     * Maximum number of full chunks of an upload waiting to be sent; with 0,
+     * writers send full chunks themselves
+     */
+    public static final String UPLOAD_CHUNKS_IN_FLIGHT = "uploadChunksInFlight";
+
+    /**
+     * Number of times the upload of a chunk is retried on transient errors
+     */
+    public static final String UPLOAD_CHUNK_RETRIES = "uploadChunkRetries";
+
+    /**
+     * Whether output streams spool their contents locally and upload them in
+     * the background once closed
+     */
+    public static final String WRITE_BEHIND = "writeBehind";
+
+    /**
+     * Directory of spool files, used by write-behind uploads and by {@link
+     * DropBoxOpenOption#SKIP_UNCHANGED}; defaults to the system temporary
+     * directory
+     */
+    public static final String WRITE_BEHIND_DIRECTORY = "writeBehindDirectory";
+
+    /**
+     * Maximum number of bytes of closed streams waiting for upload, before
+     * writers block
+     */
+    public static final String WRITE_BEHIND_MAX_PENDING
+        = "writeBehindMaxPending";
+
+    /**
+     * Number of threads running write-behind uploads
+     */
+    public static final String WRITE_BEHIND_THREADS = "writeBehindThreads";
+
+    /**
+     * File in which the content hashes of files uploaded with {@link
+     * DropBoxOpenOption#SKIP_UNCHANGED} are kept across runs; if not set,
+     * they are only kept in memory
+     */
+    public static final String CONTENT_HASH_FILE = "contentHashFile";
+
+    /**
+     * Maximum number of retries of an API call on transient errors
+     */
+    public static final String REQUEST_MAX_RETRIES = "requestMaxRetries";
+
+    /**
+     * Upper bound of the delay before the first retry of an API call, in
+     * milliseconds; it doubles with each further retry
+     */
+    public static final String REQUEST_BASE_DELAY = "requestBaseDelay";
+
+    /**
+     * Maximum delay before retrying an API call, in milliseconds
+     */
+    public static final String REQUEST_MAX_DELAY = "requestMaxDelay";
+
+    /**
+     * Maximum number of API calls running at the same time
+     */
+    public static final String REQUEST_MAX_CONCURRENCY
+        = "requestMaxConcurrency";
+
+    /**
+     * Maximum number of metadata API calls running at the same time, within
+     * the overall limit
+     */
+    public static final String REQUEST_METADATA_CONCURRENCY
+        = "requestMetadataConcurrency";
+
+    /**
+     * Maximum number of transfer API calls running at the same time, within
+     * the overall limit
+     */
+    public static final String REQUEST_BULK_CONCURRENCY
+        = "requestBulkConcurrency";
+
+    /**
+     * Share of the slots given to metadata API calls when transfers are also
+     * waiting, relative to {@link #REQUEST_BULK_WEIGHT}
+     */
+    public static final String REQUEST_METADATA_WEIGHT
+        = "requestMetadataWeight";
+
+    /**
+     * Share of the slots given to transfer API calls when metadata calls are
+     * also waiting, relative to {@link #REQUEST_METADATA_WEIGHT}
+     */
+    public static final String REQUEST_BULK_WEIGHT = "requestBulkWeight";
+
+    /**
+     * Maximum age of the account quota information used by the filestore, in
+     * milliseconds
+     */
+    public static final String QUOTA_REFRESH_INTERVAL = "quotaRefreshInterval";
+
+    /**
+     * Whether to register the metrics of the filesystem as an MXBean
+     */
+    public static final String JMX_ENABLED = "jmxEnabled";
+
+    /**
+     * Whether to keep the metadata cache coherent using the delta API
+     */
+    public static final String DELTA_COHERENCE = "deltaCoherence";
+
+    /**
+     * Maximum staleness of cached metadata when using the delta API, in
+     * milliseconds
+     */
+    public static final String DELTA_MAX_STALENESS = "deltaMaxStaleness";
+
+    /**
+     * Longpoll timeout when using the delta API, in seconds
+     */
+    public static final String DELTA_LONGPOLL_TIMEOUT = "deltaLongpollTimeout";
+
+    /**
+     * Restrict the delta API to this path prefix
+     */
+    public static final String DELTA_PATH_PREFIX = "deltaPathPrefix";
+
+    private final Map<String, ?> env;
+
+    public DropBoxEnv(final Map<String, ?> env)
+    {
+        this.env = Objects.requireNonNull(env);
+    }
+
+    public static DropBoxEnv empty()
+    {
+        return new DropBoxEnv(Collections.<String, Object>emptyMap());
+    }
+
+    @Nullable
+    public String getString(final String key)
+    {
+        final Object value = env.get(key);
+        return value == null ? null : value.toString();
+    }
+
+    @Nullable
+    public <T> T getObject(final String key, final Class<T> type)
+    {
+        final Object value = env.get(key);
+
+        if (value == null)
+            return null;
+        if (!type.isInstance(value))
+            throw new IllegalArgumentException("value for key \"" + key
+                + "\" is not an instance of " + type.getName());
+        return type.cast(value);
+    }
+
+    public long getLong(final String key, final long defaultValue)
+    {
+        final Object value = env.get(key);
+
+        if (value == null)
+            return defaultValue;
+        if (value instanceof Number)
+            return ((Number) value).longValue();
+
+        try {
+            return Long.parseLong(value.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid value for key \""
+                + key + "\": " + value, e);
+        }
+    }
+
+    public int getInt(final String key, final int defaultValue)
+    {
+        final long value = getLong(key, defaultValue);
+
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("value out of range for key \""
+                + key + "\": " + value);
+        return (int) value;
+    }
+
+    public boolean getBoolean(final String key, final boolean defaultValue)
+    {
+        final Object value = env.get(key);
+
+        if (value == null)
+            return defaultValue;
+        if (value instanceof Boolean)
+            return (Boolean) value;
+
+        final String s = value.toString().trim();
+        if ("true".equalsIgnoreCase(s))
+            return true;
+        if ("false".equalsIgnoreCase(s))
+            return false;
+        throw new IllegalArgumentException("invalid value for key \"" + key
+            + "\": " + value);
+    }
+}
@@ -0,0 +1,31 @@
+package com.github.fge.fs.dropbox.misc;
+
+import java.nio.file.OpenOption;
+
+/**
+ * DropBox specific options for {@link
+ * java.nio.file.Files#newOutputStream(java.nio.file.Path, OpenOption...)}
+ */
+public enum DropBoxOpenOption
+    implements OpenOption
+{
+    /**
+     * Do not upload the file if its contents are unchanged
+     *
+     * <p>The contents written are spooled to a local file while their content
+     * hash (see {@link ContentHasher}) is computed. When the stream is closed,
+     * the upload is skipped if this hash is the one recorded for the current
+     * revision of the target, that is, if the target was last uploaded with
+     * this option by this filesystem (or, if the hashes are kept in a file, by
+     * any previous filesystem using the same file) and was not modified since.
+     * </p>
+     *
+     * <p>Note that {@link java.nio.file.Files#copy(java.nio.file.Path,
+     * java.nio.file.Path, java.nio.file.CopyOption...)} from another
+     * filesystem does not pass options other than the standard ones to the
+     * target; open the stream with this option and copy to it instead.</p>
+     *
+     * @see DropBoxEnv#CONTENT_HASH_FILE
+     */
+    SKIP_UNCHANGED,
+}
@@ -1,9 +1,13 @@
 package com.github.fge.fs.dropbox.misc;
 
 import com.dropbox.core.DbxClient;
+import com.dropbox.core.DbxEntry;
 import com.dropbox.core.DbxException;
+import com.github.fge.fs.dropbox.cache.MetadataCache;
+import com.github.fge.fs.dropbox.filestore.DropBoxFileStore;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Objects;
@@ -26,21 +30,92 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * DropBoxIOException}. If the underlying output stream <em>did</em> throw an
  * exception, however, then such an exception is {@link
  * Throwable#addSuppressed(Throwable) suppressed}.</p>
+ *
+ * <p>When a {@link MetadataCache} is provided, it is updated with the metadata
+ * of the uploaded file on a successful close, and the target path is
+ * invalidated otherwise. When a {@link DropBoxFileStore} is provided, the
+ * number of bytes written is {@link DropBoxFileStore#recordWrite(long)
+ * recorded} on a successful close. When a {@link FailureHandler} is provided,
+ * it may replace the exception thrown by a failed close.</p>
  */
 @SuppressWarnings("HtmlTagCanBeJavadocTag")
 // TODO: more complex than the input stuff; check again (.abort(), etc)
 public final class DropBoxOutputStream
     extends OutputStream
 {
+    /**
+     * Translates the failure of an upload
+     */
+    public interface FailureHandler
+    {
+        /**
+         * Translate a failure
+         *
+         * <p>This is called once the upload failed, and the target path
+         * invalidated in the metadata cache, if any.</p>
+         *
+         * @param failure the failure
+         * @return the exception to throw instead; may be the failure itself
+         */
+        IOException handle(IOException failure);
+    }
+
     private final AtomicBoolean closeCalled = new AtomicBoolean(false);
 
     private final DbxClient.Uploader uploader;
     private final OutputStream out;
+    private final String target;
+    private final MetadataCache metadataCache;
+    private final DropBoxFileStore fileStore;
+    private final FailureHandler failureHandler;
+
+    private long written = 0L;
+    private DbxEntry.File entry = null;
 
     public DropBoxOutputStream(@Nonnull final DbxClient.Uploader uploader)
+    {
+        this(uploader, null, null, null);
+    }
+
+    public DropBoxOutputStream(@Nonnull final DbxClient.Uploader uploader,
+        @Nullable final String target,
+        @Nullable final MetadataCache metadataCache)
+    {
+        this(uploader, target, metadataCache, null);
+    }
+
+    public DropBoxOutputStream(@Nonnull final DbxClient.Uploader uploader,
+        @Nullable final String target,
+        @Nullable final MetadataCache metadataCache,
+        @Nullable final DropBoxFileStore fileStore)
+    {
+        this(uploader, target, metadataCache, fileStore, null);
+    }
+
+    public DropBoxOutputStream(@Nonnull final DbxClient.Uploader uploader,
+        @Nullable final String target,
+        @Nullable final MetadataCache metadataCache,
+        @Nullable final DropBoxFileStore fileStore,
+        @Nullable final FailureHandler failureHandler)
     {
         this.uploader = Objects.requireNonNull(uploader);
         out = uploader.getBody();
+        this.target = target;
+        this.metadataCache = metadataCache;
+        this.fileStore = fileStore;
+        this.failureHandler = failureHandler;
+    }
+
+    /**
+     * Get the metadata of the uploaded file
+     *
+     * @return the metadata, or {@code null} if the stream is not closed yet
+     * or the upload failed
+     */
+    @Nullable
+    public DbxEntry.File getEntry()
+    {
+        return entry;
     }
 
     @Override
@@ -48,6 +123,7 @@ public final class DropBoxOutputStream
         throws IOException
     {
         out.write(b);
+        written++;
     }
 
     @Override
@@ -55,6 +131,7 @@ public final class DropBoxOutputStream
         throws IOException
     {
         out.write(b);
+        written += b.length;
     }
 
     @Override
@@ -62,6 +139,7 @@ public final class DropBoxOutputStream
         throws IOException
     {
         out.write(b, off, len);
+        written += len;
     }
 
     @Override
@@ -103,7 +181,14 @@ public final class DropBoxOutputStream
          */
 
         try {
-            uploader.finish();
+            entry = uploader.finish();
+            if (metadataCache != null && target != null) {
+                // a lookup in progress may have found it missing
+                metadataCache.invalidate(target);
+                metadataCache.put(target, entry);
+            }
+            if (fileStore != null)
+                fileStore.recordWrite(written);
         } catch (DbxException e) {
             finishedOK = false;
             if (exception == null)
@@ -124,7 +209,11 @@ public final class DropBoxOutputStream
                 exception.addSuppressed(e);
         }
 
-        if (exception != null)
-            throw exception;
+        if (exception != null) {
+            if (metadataCache != null && target != null)
+                metadataCache.invalidate(target);
+            throw failureHandler == null ? exception
+                : failureHandler.handle(exception);
+        }
     }
 }
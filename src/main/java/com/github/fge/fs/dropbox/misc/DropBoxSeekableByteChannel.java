@@ -0,0 +1,297 @@
+package com.github.fge.fs.dropbox.misc;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A read only {@link SeekableByteChannel} over a DropBox file
+ *
+ * <p>Contents are read in fixed size blocks, using HTTP range requests (see
+ * {@link RangeDownloader}); changing the {@link #position(long) position}
+ * costs nothing until the next read. A small number of blocks is kept in
+ * memory, so that reads around recently read positions are served locally.
+ * </p>
+ *
+ * <p>Range requests are bounded: a request first covers a few blocks, and
+ * each request which continues where the previous one ended covers twice as
+ * many blocks, up to a limit, so that random reads do not make the server
+ * send the rest of the file. The connection used for the last range request
+ * is kept open: if the next block to read is a little further within its
+ * range, it is reached by skipping over the data on this connection rather
+ * than by issuing a new request.</p>
+ *
+ * <p>All ranges are read from the revision of the file which was current when
+ * the channel was opened.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class DropBoxSeekableByteChannel
+    implements SeekableByteChannel
+{
+    public static final int DEFAULT_BLOCK_SIZE = 65536;
+    public static final int DEFAULT_CACHED_BLOCKS = 16;
+
+    /*
+     * How many blocks we are willing to skip over on an open connection
+     * instead of issuing a new request
+     */
+    private static final int MAX_SKIPPED_BLOCKS = 4;
+
+    /*
+     * Number of blocks covered by a range request: initially, and at most
+     * when reading sequentially
+     */
+    private static final int INITIAL_RANGE_BLOCKS = 4;
+    private static final int MAX_RANGE_BLOCKS = 64;
+
+    private final RangeDownloader downloader;
+    private final String path;
+    private final String rev;
+    private final long size;
+    private final int blockSize;
+
+    private final Map<Long, byte[]> blocks;
+
+    private boolean open = true;
+    private long position = 0L;
+
+    private InputStream stream = null;
+    private long streamPosition;
+    private long streamEnd;
+    private int rangeBlocks = INITIAL_RANGE_BLOCKS;
+
+    /**
+     * Constructor
+     *
+     * @param downloader the range downloader
+     * @param path the real path of the file
+     * @param rev the revision of the file to read, or {@code null} for the
+     * latest one
+     * @param size the size of the file
+     * @param blockSize the size of a block
+     * @param cachedBlocks the maximum number of blocks kept in memory
+     */
+    public DropBoxSeekableByteChannel(final RangeDownloader downloader,
+        final String path, @Nullable final String rev, final long size,
+        final int blockSize, final int cachedBlocks)
+    {
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("block size must be strictly "
+                + "positive");
+        if (cachedBlocks <= 0)
+            throw new IllegalArgumentException("number of cached blocks must "
+                + "be strictly positive");
+        this.downloader = downloader;
+        this.path = path;
+        this.rev = rev;
+        this.size = size;
+        this.blockSize = blockSize;
+        //noinspection CloneableClassWithoutClone
+        blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(
+                final Map.Entry<Long, byte[]> eldest)
+            {
+                return size() > cachedBlocks;
+            }
+        };
+    }
+
+    @Override
+    public synchronized int read(final ByteBuffer dst)
+        throws IOException
+    {
+        ensureOpen();
+
+        if (position >= size)
+            return -1;
+
+        int total = 0;
+        long index;
+        byte[] block;
+        int offset;
+        int len;
+
+        while (dst.hasRemaining() && position < size) {
+            index = position / blockSize;
+            block = getBlock(index);
+            offset = (int) (position - index * blockSize);
+            len = Math.min(dst.remaining(), block.length - offset);
+            if (len <= 0)
+                break;
+            dst.put(block, offset, len);
+            position += len;
+            total += len;
+        }
+
+        return total == 0 ? -1 : total;
+    }
+
+    @Override
+    public int write(final ByteBuffer src)
+        throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position()
+        throws IOException
+    {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(final long newPosition)
+        throws IOException
+    {
+        ensureOpen();
+        if (newPosition < 0L)
+            throw new IllegalArgumentException("position cannot be negative");
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public synchronized long size()
+        throws IOException
+    {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(final long size)
+        throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen()
+    {
+        return open;
+    }
+
+    @Override
+    public synchronized void close()
+        throws IOException
+    {
+        if (!open)
+            return;
+        open = false;
+        blocks.clear();
+        closeStream();
+    }
+
+    private void ensureOpen()
+        throws ClosedChannelException
+    {
+        if (!open)
+            throw new ClosedChannelException();
+    }
+
+    private byte[] getBlock(final long index)
+        throws IOException
+    {
+        byte[] block = blocks.get(index);
+
+        if (block != null)
+            return block;
+
+        final long start = index * blockSize;
+        final int len = (int) Math.min(blockSize, size - start);
+
+        if (stream == null || streamPosition > start || start + len > streamEnd
+            || start - streamPosition > (long) MAX_SKIPPED_BLOCKS * blockSize)
+            openStream(start);
+
+        block = new byte[len];
+
+        try {
+            skipFully(start - streamPosition);
+            final int read = readFully(block);
+            streamPosition += read;
+            if (read < len)
+                block = Arrays.copyOf(block, read);
+        } catch (IOException e) {
+            closeStream();
+            throw e;
+        }
+
+        blocks.put(index, block);
+        return block;
+    }
+
+    private void openStream(final long start)
+        throws IOException
+    {
+        final boolean sequential = stream != null && start >= streamPosition
+            && start <= streamEnd;
+
+        rangeBlocks = sequential
+            ? Math.min(rangeBlocks * 2, MAX_RANGE_BLOCKS)
+            : INITIAL_RANGE_BLOCKS;
+
+        final long length
+            = Math.min((long) rangeBlocks * blockSize, size - start);
+
+        closeStream();
+        stream = downloader.open(path, rev, start, length);
+        streamPosition = start;
+        streamEnd = start + length;
+    }
+
+    private void closeStream()
+        throws IOException
+    {
+        final InputStream in = stream;
+        stream = null;
+        if (in != null)
+            in.close();
+    }
+
+    private void skipFully(final long n)
+        throws IOException
+    {
+        long remaining = n;
+        long skipped;
+
+        while (remaining > 0L) {
+            skipped = stream.skip(remaining);
+            if (skipped <= 0L) {
+                if (stream.read() == -1)
+                    break;
+                skipped = 1L;
+            }
+            remaining -= skipped;
+            streamPosition += skipped;
+        }
+    }
+
+    private int readFully(final byte[] block)
+        throws IOException
+    {
+        int offset = 0;
+        int read;
+
+        while (offset < block.length) {
+            read = stream.read(block, offset, block.length - offset);
+            if (read == -1)
+                break;
+            offset += read;
+        }
+
+        return offset;
+    }
+}
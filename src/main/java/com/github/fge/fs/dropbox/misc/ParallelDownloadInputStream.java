@@ -0,0 +1,208 @@
+package com.github.fge.fs.dropbox.misc;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * An {@link InputStream} over a DropBox file downloaded in parallel parts
+ *
+ * <p>The file is split into parts of a fixed size, each of which is fetched
+ * with an HTTP range request (see {@link RangeDownloader}). At most a given
+ * number of parts are downloaded at the same time; they are handed over to
+ * the reader in order, and a new part is requested each time one has been
+ * read completely. Memory usage is therefore bounded by the number of parts
+ * in flight times the part size.</p>
+ *
+ * <p>All parts are read from the revision of the file which was current when
+ * the stream was opened.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class ParallelDownloadInputStream
+    extends InputStream
+{
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+
+    private final RangeDownloader downloader;
+    private final ExecutorService executor;
+    private final String path;
+    private final String rev;
+    private final long size;
+    private final int partSize;
+
+    private final Queue<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private long nextPartOffset = 0L;
+
+    private byte[] current = null;
+    private int currentOffset = 0;
+    private boolean closed = false;
+
+    /**
+     * Constructor
+     *
+     * @param downloader the range downloader
+     * @param executor the executor to download parts on
+     * @param path the real path of the file
+     * @param rev the revision of the file, or {@code null} for the latest one
+     * @param size the size of the file
+     * @param partSize the size of a part
+     * @param parallelism the maximum number of parts downloaded at once
+     */
+    public ParallelDownloadInputStream(final RangeDownloader downloader,
+        final ExecutorService executor, final String path,
+        @Nullable final String rev, final long size, final int partSize,
+        final int parallelism)
+    {
+        if (partSize <= 0)
+            throw new IllegalArgumentException("part size must be strictly "
+                + "positive");
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("parallelism must be strictly "
+                + "positive");
+        this.downloader = downloader;
+        this.executor = executor;
+        this.path = path;
+        this.rev = rev;
+        this.size = size;
+        this.partSize = partSize;
+
+        for (int i = 0; i < parallelism; i++)
+            if (!submitNextPart())
+                break;
+    }
+
+    @Override
+    public synchronized int read()
+        throws IOException
+    {
+        if (!ensureData())
+            return -1;
+        return current[currentOffset++] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(final byte[] b, final int off, final int len)
+        throws IOException
+    {
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+        if (!ensureData())
+            return -1;
+
+        final int count = Math.min(len, current.length - currentOffset);
+        System.arraycopy(current, currentOffset, b, off, count);
+        currentOffset += count;
+        return count;
+    }
+
+    @Override
+    public synchronized int available()
+        throws IOException
+    {
+        return current == null ? 0 : current.length - currentOffset;
+    }
+
+    @Override
+    public synchronized void close()
+        throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        current = null;
+        Future<byte[]> future;
+        while ((future = pending.poll()) != null)
+            future.cancel(true);
+    }
+
+    private boolean submitNextPart()
+    {
+        if (nextPartOffset >= size)
+            return false;
+
+        final long offset = nextPartOffset;
+        final int length = (int) Math.min(partSize, size - offset);
+        nextPartOffset += length;
+
+        pending.add(executor.submit(new Callable<byte[]>()
+        {
+            @Override
+            public byte[] call()
+                throws IOException
+            {
+                return downloadPart(offset, length);
+            }
+        }));
+        return true;
+    }
+
+    private byte[] downloadPart(final long offset, final int length)
+        throws IOException
+    {
+        final byte[] part = new byte[length];
+        int read = 0;
+        int n;
+
+        try (
+            final InputStream in = downloader.open(path, rev, offset, length);
+        ) {
+            while (read < length) {
+                n = in.read(part, read, length - read);
+                if (n == -1)
+                    throw new EOFException("premature end of part at offset "
+                        + offset + " of " + path);
+                read += n;
+            }
+        }
+
+        return part;
+    }
+
+    private boolean ensureData()
+        throws IOException
+    {
+        if (closed)
+            throw new IOException("stream closed");
+
+        while (current == null || currentOffset == current.length) {
+            final Future<byte[]> future = pending.poll();
+            if (future == null)
+                return false;
+            current = awaitPart(future);
+            currentOffset = 0;
+            submitNextPart();
+        }
+
+        return true;
+    }
+
+    private static byte[] awaitPart(final Future<byte[]> future)
+        throws IOException
+    {
+        try {
+            return future.get();
+        } catch (InterruptedException ignored) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new DropBoxIOException("part download failed", cause);
+        }
+    }
+}
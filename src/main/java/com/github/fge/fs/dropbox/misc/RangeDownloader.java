@@ -0,0 +1,261 @@
+package com.github.fge.fs.dropbox.misc;
+
+import com.dropbox.core.DbxClient;
+import com.dropbox.core.DbxException;
+import com.dropbox.core.DbxHost;
+import com.dropbox.core.DbxPath;
+import com.dropbox.core.DbxRequestUtil;
+import com.dropbox.core.http.HttpRequestor;
+import com.github.fge.fs.dropbox.rpc.DbxCall;
+import com.github.fge.fs.dropbox.rpc.Lane;
+import com.github.fge.fs.dropbox.rpc.RequestExecutor;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+
+/**
+ * Downloads byte ranges of DropBox files
+ *
+ * <p>The DropBox SDK only allows to download files as a whole; this class
+ * issues the same request as {@link DbxClient#startGetFile(String, String)},
+ * with an added HTTP {@code Range} header.</p>
+ *
+ * <p>Callers which issue several requests for the same file should pass the
+ * revision they obtained when first looking up the file, so that all ranges
+ * come from the same version of its contents.</p>
+ *
+ * <p>Requests go through a {@link RequestExecutor}, so that throttled and
+ * failed requests are retried.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class RangeDownloader
+{
+    private static final String FILES_PATH = "1/files/auto";
+
+    private final DbxClient client;
+    private final RequestExecutor requestExecutor;
+    private final DbxHost host;
+
+    public RangeDownloader(final DbxClient client,
+        final RequestExecutor requestExecutor, final DbxHost host)
+    {
+        this.client = client;
+        this.requestExecutor = requestExecutor;
+        this.host = host;
+    }
+
+    /**
+     * Open a stream from an offset in a file to the end of this file
+     *
+     * @param path the real path of the file
+     * @param rev the revision of the file, or {@code null} for the latest one
+     * @param offset the offset
+     * @return a stream; it is empty if the offset is at or beyond the end of
+     * the file
+     * @throws IOException file not found, or DropBox API error
+     */
+    @Nonnull
+    public InputStream open(final String path, @Nullable final String rev,
+        final long offset)
+        throws IOException
+    {
+        return open(path, rev, offset, -1L);
+    }
+
+    /**
+     * Open a stream over a range of a file
+     *
+     * @param path the real path of the file
+     * @param rev the revision of the file, or {@code null} for the latest one
+     * @param offset the offset
+     * @param length the length of the range, or -1 to read to the end of
+     * file
+     * @return a stream; it is empty if the offset is at or beyond the end of
+     * the file
+     * @throws IOException file not found, or DropBox API error
+     */
+    @Nonnull
+    public InputStream open(final String path, @Nullable final String rev,
+        final long offset, final long length)
+        throws IOException
+    {
+        if (offset < 0L)
+            throw new IllegalArgumentException("offset cannot be negative");
+        if (length == 0L)
+            return emptyStream();
+
+        DbxPath.checkArgNonRoot("path", path);
+
+        final ArrayList<HttpRequestor.Header> headers = new ArrayList<>();
+        final String range = length < 0L ? "bytes=" + offset + '-'
+            : "bytes=" + offset + '-' + (offset + length - 1L);
+        headers.add(new HttpRequestor.Header("Range", range));
+
+        final String[] params = { "rev", rev };
+        final HttpRequestor.Response response;
+
+        try {
+            response = requestExecutor.execute(
+                new DbxCall<HttpRequestor.Response>()
+                {
+                    @Override
+                    public HttpRequestor.Response call()
+                        throws DbxException
+                    {
+                        return startGet(path, params, headers);
+                    }
+                }, Lane.BULK);
+        } catch (DbxException e) {
+            throw DropBoxIOException.wrap(e);
+        }
+
+        switch (response.statusCode) {
+            case 206:
+                return response.body;
+            case 200:
+                /*
+                 * The server ignored the range; skip to the offset ourselves
+                 */
+                final InputStream in = skipTo(response.body, offset);
+                return length < 0L ? in : new BoundedInputStream(in, length);
+            case 404:
+                response.body.close();
+                throw new NoSuchFileException(path);
+            case 416:
+                response.body.close();
+                return emptyStream();
+            default:
+                try {
+                    throw DbxRequestUtil.unexpectedStatus(response);
+                } catch (DbxException e) {
+                    throw DropBoxIOException.wrap(e);
+                } finally {
+                    response.body.close();
+                }
+        }
+    }
+
+    /*
+     * Issue the request; statuses worth retrying are turned into exceptions
+     * here, so that the request executor sees them
+     */
+    private HttpRequestor.Response startGet(final String path,
+        final String[] params, final ArrayList<HttpRequestor.Header> headers)
+        throws DbxException
+    {
+        final HttpRequestor.Response response = DbxRequestUtil.startGet(
+            client.getRequestConfig(), client.getAccessToken(), host.content,
+            FILES_PATH + path, params, headers);
+
+        if (response.statusCode != 429 && response.statusCode < 500)
+            return response;
+
+        try {
+            throw DbxRequestUtil.unexpectedStatus(response);
+        } finally {
+            try {
+                response.body.close();
+            } catch (IOException ignored) {
+                // nothing we can do
+            }
+        }
+    }
+
+    private static InputStream emptyStream()
+    {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    private static InputStream skipTo(final InputStream in, final long offset)
+        throws IOException
+    {
+        long remaining = offset;
+        long skipped;
+
+        try {
+            while (remaining > 0L) {
+                skipped = in.skip(remaining);
+                if (skipped <= 0L) {
+                    if (in.read() == -1)
+                        throw new EOFException();
+                    skipped = 1L;
+                }
+                remaining -= skipped;
+            }
+        } catch (EOFException ignored) {
+            in.close();
+            return emptyStream();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+
+        return in;
+    }
+
+    private static final class BoundedInputStream
+        extends FilterInputStream
+    {
+        private long remaining;
+
+        private BoundedInputStream(final InputStream in, final long length)
+        {
+            super(in);
+            remaining = length;
+        }
+
+        @Override
+        public int read()
+            throws IOException
+        {
+            if (remaining <= 0L)
+                return -1;
+            final int ret = in.read();
+            if (ret != -1)
+                remaining--;
+            return ret;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            if (remaining <= 0L)
+                return -1;
+            final int ret = in.read(b, off, (int) Math.min(len, remaining));
+            if (ret > 0)
+                remaining -= ret;
+            return ret;
+        }
+
+        @Override
+        public long skip(final long n)
+            throws IOException
+        {
+            final long ret = in.skip(Math.min(n, remaining));
+            remaining -= ret;
+            return ret;
+        }
+
+        @Override
+        public int available()
+            throws IOException
+        {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+    }
+}
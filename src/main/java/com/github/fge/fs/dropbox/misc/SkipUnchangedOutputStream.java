@@ -0,0 +1,135 @@
+package com.github.fge.fs.dropbox.misc;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * An output stream only uploading contents which differ from the current ones
+ *
+ * <p>Contents are spooled to a local file, and their content hash computed
+ * while they are written. When the stream is closed, the hash is compared to
+ * the one known for the current revision of the target; the spool file is
+ * handed to an {@link Uploader} only if they differ.</p>
+ *
+ * @see DropBoxOpenOption#SKIP_UNCHANGED
+ */
+@ParametersAreNonnullByDefault
+public final class SkipUnchangedOutputStream
+    extends OutputStream
+{
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * Uploads a spool file
+     */
+    public interface Uploader
+    {
+        /**
+         * Upload the contents of a spool file
+         *
+         * <p>The uploader takes ownership of the spool file, and must delete it
+         * once done with it.</p>
+         *
+         * @param spool the spool file
+         * @param hash the content hash of the spool file
+         * @throws IOException upload failed
+         */
+        void upload(Path spool, String hash)
+            throws IOException;
+    }
+
+    private final Path spool;
+    private final OutputStream out;
+    private final ContentHasher hasher = new ContentHasher();
+    @Nullable
+    private final String currentHash;
+    private final Uploader uploader;
+
+    private boolean closed = false;
+    private boolean skipped = false;
+
+    /**
+     * Constructor
+     *
+     * @param spool the spool file
+     * @param currentHash the content hash of the current revision of the
+     * target, or {@code null} if not known
+     * @param uploader the uploader
+     * @throws IOException failed to open the spool file
+     */
+    public SkipUnchangedOutputStream(final Path spool,
+        @Nullable final String currentHash, final Uploader uploader)
+        throws IOException
+    {
+        this.spool = spool;
+        this.currentHash = currentHash;
+        this.uploader = uploader;
+        out = new BufferedOutputStream(Files.newOutputStream(spool),
+            BUFFER_SIZE);
+    }
+
+    /**
+     * Tell whether the upload was skipped
+     *
+     * @return true if the stream was closed and the contents were unchanged
+     */
+    public boolean isSkipped()
+    {
+        return skipped;
+    }
+
+    @Override
+    public void write(final int b)
+        throws IOException
+    {
+        out.write(b);
+        hasher.update((byte) b);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+        throws IOException
+    {
+        out.write(b, off, len);
+        hasher.update(b, off, len);
+    }
+
+    @Override
+    public void flush()
+        throws IOException
+    {
+        out.flush();
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+
+        final String hash;
+
+        try {
+            out.close();
+            hash = hasher.digest();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(spool);
+            throw e;
+        }
+
+        if (hash.equals(currentHash)) {
+            skipped = true;
+            Files.deleteIfExists(spool);
+            return;
+        }
+
+        uploader.upload(spool, hash);
+    }
+}
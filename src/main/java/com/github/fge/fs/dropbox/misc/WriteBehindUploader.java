@@ -0,0 +1,483 @@
+package com.github.fge.fs.dropbox.misc;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write-behind uploads: spool locally, upload in the background
+ *
+ * <p>Streams returned by {@link #open(String, Sink)} write to a local spool
+ * file, at disk speed. When such a stream is closed, the spooled contents are
+ * handed to a pool of uploader threads and {@code close()} returns; the upload
+ * itself goes to the stream provided by a {@link Sink}, opened only at that
+ * time.</p>
+ *
+ * <p>The number of bytes handed over but not yet uploaded is bounded: once
+ * the bound is reached, writers block until uploads complete, and closing a
+ * stream blocks until there is room for its contents. A file larger than the
+ * bound is accepted when nothing else is pending.</p>
+ *
+ * <p>Uploads to the same path are run in the order the streams were closed.
+ * The pending upload of a path can be obtained using {@link
+ * #getUpload(String)}, and waited for using {@link #await(String)}; uploads
+ * which failed are kept until they are waited for, or replaced by a new
+ * upload to the same path.</p>
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class WriteBehindUploader
+    implements Closeable
+{
+    public static final long DEFAULT_MAX_PENDING = 256L * 1024L * 1024L;
+    public static final int DEFAULT_THREADS = 4;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * Provides the stream an upload is written to
+     */
+    public interface Sink
+    {
+        /**
+         * Open the stream to upload to
+         *
+         * <p>The upload is considered successful if closing this stream does
+         * not throw an exception.</p>
+         *
+         * @return the stream
+         * @throws IOException failed to start the upload
+         */
+        OutputStream open()
+            throws IOException;
+    }
+
+    @Nullable
+    private final Path directory;
+    private final long maxPending;
+    private final ExecutorService executor;
+
+    /*
+     * Keyed by lowercase path
+     */
+    private final ConcurrentMap<String, Upload> uploads
+        = new ConcurrentHashMap<>();
+
+    private final Object lock = new Object();
+
+    /*
+     * Guarded by "lock"; "full" is only written with the lock held, and read
+     * without it by writers so that they do not take the lock on every write
+     */
+    private long pending = 0L;
+    private volatile boolean full = false;
+
+    /**
+     * Constructor
+     *
+     * @param directory the directory to create spool files in; {@code null}
+     * for the default temporary directory
+     * @param maxPending the maximum number of bytes waiting for upload
+     * @param threads the number of uploader threads
+     */
+    public WriteBehindUploader(@Nullable final Path directory,
+        final long maxPending, final int threads)
+    {
+        if (maxPending <= 0L)
+            throw new IllegalArgumentException("maximum number of pending "
+                + "bytes must be strictly positive");
+        if (threads <= 0)
+            throw new IllegalArgumentException("number of threads must be "
+                + "strictly positive");
+        this.directory = directory;
+        this.maxPending = maxPending;
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(final Runnable r)
+            {
+                final Thread t = new Thread(r,
+                    "dropbox-write-behind-" + THREAD_COUNT.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Open a stream spooling contents to upload to a path
+     *
+     * @param target the real path of the file
+     * @param sink provides the stream to upload to
+     * @return a stream
+     * @throws IOException failed to create the spool file
+     */
+    public OutputStream open(final String target, final Sink sink)
+        throws IOException
+    {
+        final Path spool = directory == null
+            ? Files.createTempFile("dropbox-", ".spool")
+            : Files.createTempFile(directory, "dropbox-", ".spool");
+
+        try {
+            return new SpoolOutputStream(target, spool, sink);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(spool);
+            throw e;
+        }
+    }
+
+    /**
+     * Upload an existing spool file in the background
+     *
+     * <p>This takes ownership of the spool file, which is deleted once the
+     * upload is over. Like closing a stream returned by {@link #open(String,
+     * Sink)}, this blocks until there is room for the contents of the file.
+     * </p>
+     *
+     * @param target the real path of the file
+     * @param spool the spool file
+     * @param sink provides the stream to upload to
+     * @throws IOException failed to read the size of the spool file, or
+     * interrupted while waiting
+     */
+    public void upload(final String target, final Path spool,
+        final Sink sink)
+        throws IOException
+    {
+        try {
+            submit(target, spool, Files.size(spool), sink);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(spool);
+            throw e;
+        }
+    }
+
+    /**
+     * Get the pending or failed upload of a path
+     *
+     * <p>The future completes when the contents are on DropBox; if the upload
+     * failed, {@link Future#get()} throws an {@link ExecutionException}
+     * wrapping the failure.</p>
+     *
+     * @param target the real path of the file
+     * @return the upload, or {@code null} if there is none
+     */
+    @Nullable
+    public Future<Void> getUpload(final String target)
+    {
+        return uploads.get(key(target));
+    }
+
+    /**
+     * Wait for the pending upload of a path, if any, to complete
+     *
+     * <p>A failed upload is forgotten once reported by this method.</p>
+     *
+     * @param target the real path of the file
+     * @throws IOException the upload failed
+     */
+    public void await(final String target)
+        throws IOException
+    {
+        final String key = key(target);
+        final Upload upload = uploads.get(key);
+
+        if (upload == null)
+            return;
+
+        try {
+            waitFor(upload);
+        } catch (IOException | RuntimeException e) {
+            uploads.remove(key, upload);
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for the pending upload of a path, if any, to complete, ignoring
+     * failures
+     *
+     * @param target the real path of the file
+     * @throws InterruptedIOException interrupted while waiting
+     */
+    public void awaitQuietly(final String target)
+        throws InterruptedIOException
+    {
+        final Upload upload = uploads.get(key(target));
+
+        if (upload != null)
+            waitQuietly(upload);
+    }
+
+    /**
+     * Wait for all uploads, then shut down the uploader threads
+     *
+     * @throws IOException at least one upload failed; other failures are
+     * suppressed by the first one
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        final List<Upload> list = new ArrayList<>(uploads.values());
+        IOException failure = null;
+
+        try {
+            for (final Upload upload: list)
+                try {
+                    waitFor(upload);
+                } catch (IOException | RuntimeException e) {
+                    if (failure == null)
+                        failure = e instanceof IOException ? (IOException) e
+                            : new IOException(e);
+                    else
+                        failure.addSuppressed(e);
+                }
+        } finally {
+            executor.shutdown();
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    private void submit(final String target, final Path spool,
+        final long size, final Sink sink)
+        throws IOException
+    {
+        final String key = key(target);
+
+        synchronized (lock) {
+            while (pending > 0L && pending + size > maxPending)
+                try {
+                    lock.wait();
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while "
+                        + "waiting for pending uploads");
+                }
+            pending += size;
+            full = pending >= maxPending;
+
+            /*
+             * Chained and queued with the lock held, so that streams to the
+             * same path closed concurrently cannot both follow the same
+             * upload, and an upload is always queued after the one it waits
+             * for
+             */
+            final Upload upload = new Upload(key, spool, size, sink,
+                uploads.get(key));
+
+            uploads.put(key, upload);
+
+            try {
+                executor.execute(upload);
+            } catch (RejectedExecutionException e) {
+                uploads.remove(key, upload);
+                release(size);
+                throw new IOException("filesystem is closed", e);
+            }
+        }
+    }
+
+    private void release(final long size)
+    {
+        synchronized (lock) {
+            pending -= size;
+            full = pending >= maxPending;
+            lock.notifyAll();
+        }
+    }
+
+    private void waitForRoom()
+        throws InterruptedIOException
+    {
+        if (!full)
+            return;
+
+        synchronized (lock) {
+            while (pending >= maxPending)
+                try {
+                    lock.wait();
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while "
+                        + "waiting for pending uploads");
+                }
+        }
+    }
+
+    private static void waitFor(final Future<Void> upload)
+        throws IOException
+    {
+        try {
+            upload.get();
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for "
+                + "an upload");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private static void waitQuietly(final Future<Void> upload)
+        throws InterruptedIOException
+    {
+        try {
+            upload.get();
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for "
+                + "an upload");
+        } catch (ExecutionException ignored) {
+            // reported by await()
+        }
+    }
+
+    private static String key(final String path)
+    {
+        return path.toLowerCase(Locale.ROOT);
+    }
+
+    private final class Upload
+        extends FutureTask<Void>
+    {
+        private final String key;
+        private final Path spool;
+        private final long size;
+
+        private Upload(final String key, final Path spool, final long size,
+            final Sink sink, @Nullable final Upload previous)
+        {
+            super(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                    throws IOException
+                {
+                    /*
+                     * Uploads to the same path must not overtake one another;
+                     * the previous one was queued first, so it is either done
+                     * or running
+                     */
+                    if (previous != null)
+                        waitQuietly(previous);
+                    try (
+                        final OutputStream out = sink.open();
+                    ) {
+                        Files.copy(spool, out);
+                    }
+                    return null;
+                }
+            });
+            this.key = key;
+            this.spool = spool;
+            this.size = size;
+        }
+
+        @Override
+        protected void done()
+        {
+            try {
+                Files.deleteIfExists(spool);
+            } catch (IOException ignored) {
+                // nothing we can do
+            }
+            release(size);
+            try {
+                get(0L, TimeUnit.MILLISECONDS);
+                uploads.remove(key, this);
+            } catch (Exception ignored) {
+                // failed; kept so that it can be reported
+            }
+        }
+    }
+
+    private final class SpoolOutputStream
+        extends FilterOutputStream
+    {
+        private final String target;
+        private final Path spool;
+        private final Sink sink;
+
+        private long size = 0L;
+        private boolean closed = false;
+
+        private SpoolOutputStream(final String target, final Path spool,
+            final Sink sink)
+            throws IOException
+        {
+            super(new BufferedOutputStream(Files.newOutputStream(spool),
+                BUFFER_SIZE));
+            this.target = target;
+            this.spool = spool;
+            this.sink = sink;
+        }
+
+        @Override
+        public void write(final int b)
+            throws IOException
+        {
+            waitForRoom();
+            out.write(b);
+            size++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            waitForRoom();
+            out.write(b, off, len);
+            size += len;
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            if (closed)
+                return;
+            closed = true;
+
+            try {
+                out.close();
+                submit(target, spool, size, sink);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(spool);
+                throw e;
+            }
+        }
+    }
+}
@@ -2,12 +2,224 @@ package com.github.fge.fs.dropbox.provider;
 
 import com.github.fge.filesystem.provider.FileSystemProviderBase;
 import com.github.fge.filesystem.provider.FileSystemRepository;
+import com.github.fge.fs.dropbox.driver.DropBoxFileSystemDriver;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.attribute.FileAttribute;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public final class DropBoxFileSystemProvider
     extends FileSystemProviderBase
 {
+    private final FileSystemRepository repository;
+
     public DropBoxFileSystemProvider(final FileSystemRepository repository)
     {
         super(repository);
+        this.repository = repository;
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(final Path path,
+        final Set<? extends OpenOption> options,
+        final FileAttribute<?>... attrs)
+        throws IOException
+    {
+        return getDriver(path).newByteChannel(path, options, attrs);
+    }
+
+    @Override
+    public AsynchronousFileChannel newAsynchronousFileChannel(final Path path,
+        final Set<? extends OpenOption> options,
+        final ExecutorService executor, final FileAttribute<?>... attrs)
+        throws IOException
+    {
+        return getDriver(path).newAsynchronousFileChannel(path, options,
+            executor, attrs);
+    }
+
+    /**
+     * Delete a path and, if it is a directory, all of its contents
+     *
+     * <p>Unlike walking the tree and deleting each entry, this only costs a
+     * single API call.</p>
+     *
+     * @param path the path to delete
+     * @throws IOException path does not exist, or DropBox API error
+     */
+    public void deleteTree(final Path path)
+        throws IOException
+    {
+        getDriver(path).deleteTree(path);
+    }
+
+    /**
+     * Copy a path and, if it is a directory, all of its contents
+     *
+     * <p>The copy is made server side, using a single API call. Both paths
+     * must belong to the same DropBox filesystem.</p>
+     *
+     * @param source the source path
+     * @param target the target path
+     * @param options the copy options; only {@link
+     * java.nio.file.StandardCopyOption#REPLACE_EXISTING} is honored
+     * @throws ProviderMismatchException source and target belong to different
+     * filesystems
+     * @throws IOException source does not exist, target exists, or DropBox
+     * API error
+     */
+    public void copyTree(final Path source, final Path target,
+        final CopyOption... options)
+        throws IOException
+    {
+        if (source.getFileSystem() != target.getFileSystem())
+            throw new ProviderMismatchException("source and target must "
+                + "belong to the same filesystem");
+        final Set<CopyOption> set = new HashSet<>(Arrays.asList(options));
+        getDriver(source).copyTree(source, target, set);
+    }
+
+    /**
+     * Open a stream over all the entries of a subtree
+     *
+     * <p>This is much faster than walking the tree for large trees, since the
+     * entries are fetched in large pages whatever the number of directories;
+     * their attributes can then be read without further API calls while
+     * iterating. Entries are returned in no particular order.</p>
+     *
+     * @param dir the root of the subtree
+     * @return a stream over all the entries below this root
+     * @throws IOException root not found, not a directory, or DropBox API
+     * error
+     *
+     * @see DropBoxFileSystemDriver#newTreeStream(Path,
+     * DirectoryStream.Filter)
+     */
+    public DirectoryStream<Path> newTreeStream(final Path dir)
+        throws IOException
+    {
+        return newTreeStream(dir, new DirectoryStream.Filter<Path>()
+        {
+            @Override
+            public boolean accept(final Path entry)
+            {
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Open a stream over the entries of a subtree accepted by a filter
+     *
+     * @param dir the root of the subtree
+     * @param filter the filter
+     * @return a stream over the entries below this root accepted by the
+     * filter
+     * @throws IOException root not found, not a directory, or DropBox API
+     * error
+     *
+     * @see #newTreeStream(Path)
+     */
+    public DirectoryStream<Path> newTreeStream(final Path dir,
+        final DirectoryStream.Filter<? super Path> filter)
+        throws IOException
+    {
+        return getDriver(dir).newTreeStream(dir, filter);
+    }
+
+    /**
+     * Upload a local file, remembering its content hash
+     *
+     * @param source the local file
+     * @param target the path to upload to
+     * @throws IOException failed to read the local file, target is a
+     * directory, or DropBox API error
+     *
+     * @see DropBoxFileSystemDriver#uploadFile(Path, Path)
+     */
+    public void uploadFile(final Path source, final Path target)
+        throws IOException
+    {
+        getDriver(target).uploadFile(source, target);
+    }
+
+    /**
+     * Get the content hash of the current revision of a file, if known
+     *
+     * @param path the path of the file
+     * @return the hash, or {@code null} if not known
+     * @throws IOException DropBox API error
+     *
+     * @see DropBoxFileSystemDriver#getContentHash(Path)
+     */
+    @Nullable
+    public String getContentHash(final Path path)
+        throws IOException
+    {
+        return getDriver(path).getContentHash(path);
+    }
+
+    /**
+     * Get the content hash of a given revision of a file, if known
+     *
+     * @param path the path of the file
+     * @param rev the revision
+     * @return the hash, or {@code null} if not known
+     * @throws IOException failed to resolve the path
+     *
+     * @see DropBoxFileSystemDriver#getContentHash(Path, String)
+     */
+    @Nullable
+    public String getContentHash(final Path path, final String rev)
+        throws IOException
+    {
+        return getDriver(path).getContentHash(path, rev);
+    }
+
+    /**
+     * Get the pending upload of a file written in write-behind mode
+     *
+     * @param path the path of the file
+     * @return the upload, or {@code null} if there is none
+     * @throws IOException failed to resolve the path
+     *
+     * @see DropBoxFileSystemDriver#getUpload(Path)
+     */
+    public Future<Void> getUpload(final Path path)
+        throws IOException
+    {
+        return getDriver(path).getUpload(path);
+    }
+
+    /**
+     * Wait until the contents written to a file in write-behind mode are on
+     * DropBox
+     *
+     * @param path the path of the file
+     * @throws IOException the upload failed
+     *
+     * @see DropBoxFileSystemDriver#awaitUpload(Path)
+     */
+    public void awaitUpload(final Path path)
+        throws IOException
+    {
+        getDriver(path).awaitUpload(path);
+    }
+
+    private DropBoxFileSystemDriver getDriver(final Path path)
+    {
+        return (DropBoxFileSystemDriver) repository.getDriver(path);
     }
 }
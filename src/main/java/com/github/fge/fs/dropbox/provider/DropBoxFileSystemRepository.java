@@ -1,18 +1,28 @@
 package com.github.fge.fs.dropbox.provider;
 
 import com.dropbox.core.DbxClient;
+import com.dropbox.core.DbxHost;
 import com.dropbox.core.DbxRequestConfig;
+import com.dropbox.core.http.HttpRequestor;
 import com.github.fge.filesystem.driver.FileSystemDriver;
 import com.github.fge.filesystem.provider.FileSystemRepositoryBase;
 import com.github.fge.fs.dropbox.driver.DropBoxFileSystemDriver;
 import com.github.fge.fs.dropbox.filestore.DropBoxFileStore;
+import com.github.fge.fs.dropbox.misc.DropBoxEnv;
+import com.github.fge.fs.dropbox.rpc.PooledHttpRequestor;
+import com.github.fge.fs.dropbox.rpc.RequestExecutor;
+import com.github.fge.fs.dropbox.rpc.RetryAfterRequestor;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.URI;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @ParametersAreNonnullByDefault
 public final class DropBoxFileSystemRepository
@@ -21,6 +31,11 @@ public final class DropBoxFileSystemRepository
     private static final String NAME = "java7-fs-dropbox";
     private static final String LOCALE = Locale.US.toString();
 
+    /*
+     * Requestors shared by all open filesystems using the same access token
+     */
+    private final Map<String, SharedRequestor> requestors = new HashMap<>();
+
     public DropBoxFileSystemRepository()
     {
         super("dropbox", new DropboxFileSystemFactoryProvider());
@@ -32,15 +47,144 @@ public final class DropBoxFileSystemRepository
         final Map<String, ?> env)
         throws IOException
     {
-        final String accessToken = (String) env.get("accessToken");
+        final DropBoxEnv dropBoxEnv = new DropBoxEnv(env);
+        final String accessToken
+            = dropBoxEnv.getString(DropBoxEnv.ACCESS_TOKEN);
         if (accessToken == null)
             throw new IllegalArgumentException("access token not found");
 
-        final DbxRequestConfig config = new DbxRequestConfig(NAME, LOCALE);
-        final DbxClient client = new DbxClient(config, accessToken);
+        final HttpRequestor custom = dropBoxEnv.getObject(
+            DropBoxEnv.HTTP_REQUESTOR, HttpRequestor.class);
+        if (custom != null)
+            return createDriver(accessToken, dropBoxEnv, custom, null);
+
+        final Lease lease = acquireRequestor(accessToken, dropBoxEnv);
+
+        try {
+            return createDriver(accessToken, dropBoxEnv,
+                lease.shared.requestor, lease);
+        } catch (IOException | RuntimeException e) {
+            lease.close();
+            throw e;
+        }
+    }
+
+    private FileSystemDriver createDriver(final String accessToken,
+        final DropBoxEnv dropBoxEnv, final HttpRequestor httpRequestor,
+        @Nullable final Closeable lease)
+        throws IOException
+    {
+        final RetryAfterRequestor requestor
+            = new RetryAfterRequestor(httpRequestor);
+        final DbxRequestConfig config
+            = new DbxRequestConfig(NAME, LOCALE, requestor);
+        final DbxHost host = dropBoxEnv.getObject(DropBoxEnv.HOST,
+            DbxHost.class);
+        final DbxClient client = new DbxClient(config, accessToken,
+            host == null ? DbxHost.Default : host);
+        final int maxConcurrency
+            = dropBoxEnv.getInt(DropBoxEnv.REQUEST_MAX_CONCURRENCY,
+                RequestExecutor.DEFAULT_MAX_CONCURRENCY);
+        final RequestExecutor requestExecutor = new RequestExecutor(requestor,
+            dropBoxEnv.getInt(DropBoxEnv.REQUEST_MAX_RETRIES,
+                RequestExecutor.DEFAULT_MAX_RETRIES),
+            dropBoxEnv.getLong(DropBoxEnv.REQUEST_BASE_DELAY,
+                RequestExecutor.DEFAULT_BASE_DELAY),
+            dropBoxEnv.getLong(DropBoxEnv.REQUEST_MAX_DELAY,
+                RequestExecutor.DEFAULT_MAX_DELAY),
+            maxConcurrency,
+            dropBoxEnv.getInt(DropBoxEnv.REQUEST_METADATA_CONCURRENCY,
+                maxConcurrency),
+            dropBoxEnv.getInt(DropBoxEnv.REQUEST_BULK_CONCURRENCY,
+                RequestExecutor.defaultBulkConcurrency(maxConcurrency)),
+            dropBoxEnv.getInt(DropBoxEnv.REQUEST_METADATA_WEIGHT,
+                RequestExecutor.DEFAULT_METADATA_WEIGHT),
+            dropBoxEnv.getInt(DropBoxEnv.REQUEST_BULK_WEIGHT,
+                RequestExecutor.DEFAULT_BULK_WEIGHT)
+        );
         final DropBoxFileStore fileStore
-            = new DropBoxFileStore(client,
-            factoryProvider.getAttributesFactory());
-        return new DropBoxFileSystemDriver(fileStore, factoryProvider, client);
+            = new DropBoxFileStore(client, requestExecutor,
+            factoryProvider.getAttributesFactory(),
+            dropBoxEnv.getLong(DropBoxEnv.QUOTA_REFRESH_INTERVAL,
+                DropBoxFileStore.DEFAULT_QUOTA_REFRESH_INTERVAL));
+        return new DropBoxFileSystemDriver(fileStore, factoryProvider, client,
+            requestExecutor, dropBoxEnv, lease);
+    }
+
+    /**
+     * Get a lease on the HTTP requestor for a new filesystem
+     *
+     * <p>Filesystems using the same access token share a {@link
+     * PooledHttpRequestor}, so that they share the same connections. This
+     * requestor is configured by the first of these filesystems to be
+     * created; it is closed, and forgotten, when the last of them is
+     * closed.</p>
+     *
+     * @param accessToken the access token
+     * @param env the environment
+     * @return the lease, to close when the filesystem is closed
+     */
+    private Lease acquireRequestor(final String accessToken,
+        final DropBoxEnv env)
+    {
+        final SharedRequestor shared;
+
+        synchronized (requestors) {
+            SharedRequestor existing = requestors.get(accessToken);
+            if (existing == null) {
+                existing = new SharedRequestor(new PooledHttpRequestor(
+                    env.getInt(DropBoxEnv.HTTP_MAX_CONNECTIONS,
+                        PooledHttpRequestor.DEFAULT_MAX_CONNECTIONS),
+                    env.getInt(DropBoxEnv.HTTP_CONNECT_TIMEOUT,
+                        PooledHttpRequestor.DEFAULT_CONNECT_TIMEOUT),
+                    env.getInt(DropBoxEnv.HTTP_READ_TIMEOUT,
+                        PooledHttpRequestor.DEFAULT_READ_TIMEOUT),
+                    env.getBoolean(DropBoxEnv.HTTP_KEEP_ALIVE, true)
+                ));
+                requestors.put(accessToken, existing);
+            }
+            existing.users++;
+            shared = existing;
+        }
+
+        return new Lease(accessToken, shared);
+    }
+
+    private final class Lease
+        implements Closeable
+    {
+        private final String accessToken;
+        private final SharedRequestor shared;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Lease(final String accessToken, final SharedRequestor shared)
+        {
+            this.accessToken = accessToken;
+            this.shared = shared;
+        }
+
+        @Override
+        public void close()
+        {
+            if (released.getAndSet(true))
+                return;
+            synchronized (requestors) {
+                if (--shared.users > 0)
+                    return;
+                requestors.remove(accessToken);
+            }
+            shared.requestor.close();
+        }
+    }
+
+    private static final class SharedRequestor
+    {
+        private final PooledHttpRequestor requestor;
+        private int users = 0;
+
+        private SharedRequestor(final PooledHttpRequestor requestor)
+        {
+            this.requestor = requestor;
+        }
     }
 }
@@ -0,0 +1,154 @@
+package com.github.fge.fs.dropbox.rpc;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A concurrency limit adjusted using additive increase, multiplicative
+ * decrease, shared by weighted {@link Lane}s
+ *
+ * <p>Each successful request raises the limit by {@code 1 / limit}, that is
+ * by roughly one once a full window of requests has succeeded; each throttled
+ * request halves it. Several throttled responses arriving close to each other
+ * usually report the same overload, so the limit is halved at most once per
+ * {@link #DECREASE_INTERVAL}.</p>
+ *
+ * <p>Each lane also has a fixed limit of its own. When requests of several
+ * lanes are waiting, slots are handed out using stride scheduling: each lane
+ * advances by {@code 1 / weight} per request it runs, and the lane which has
+ * advanced the least goes first. A lane which was idle catches up with the
+ * others when it becomes busy again, so that it cannot save up turns.</p>
+ */
+@ThreadSafe
+final class AdaptiveLimiter
+{
+    private static final long DECREASE_INTERVAL
+        = TimeUnit.SECONDS.toNanos(1L);
+
+    private static final int LANES = Lane.values().length;
+
+    private final int maxLimit;
+    private final int[] laneLimits = new int[LANES];
+    private final double[] strides = new double[LANES];
+
+    private double limit;
+    private int inFlight = 0;
+    private long lastDecrease;
+    private boolean decreased = false;
+
+    private final int[] laneInFlight = new int[LANES];
+    private final int[] waiting = new int[LANES];
+    private final double[] passes = new double[LANES];
+
+    AdaptiveLimiter(final int maxLimit, final int metadataLimit,
+        final int bulkLimit, final int metadataWeight, final int bulkWeight)
+    {
+        if (maxLimit <= 0 || metadataLimit <= 0 || bulkLimit <= 0)
+            throw new IllegalArgumentException("concurrency limit must be "
+                + "strictly positive");
+        if (metadataWeight <= 0 || bulkWeight <= 0)
+            throw new IllegalArgumentException("lane weight must be strictly "
+                + "positive");
+        this.maxLimit = maxLimit;
+        limit = maxLimit;
+        laneLimits[Lane.METADATA.ordinal()] = metadataLimit;
+        laneLimits[Lane.BULK.ordinal()] = bulkLimit;
+        strides[Lane.METADATA.ordinal()] = 1.0 / metadataWeight;
+        strides[Lane.BULK.ordinal()] = 1.0 / bulkWeight;
+    }
+
+    synchronized void acquire(final Lane lane)
+        throws InterruptedException
+    {
+        final int index = lane.ordinal();
+
+        if (waiting[index] == 0 && laneInFlight[index] == 0)
+            catchUp(index);
+
+        waiting[index]++;
+
+        try {
+            while (!mayRun(index))
+                wait();
+        } catch (InterruptedException e) {
+            // we may have been in the way of another lane
+            notifyAll();
+            throw e;
+        } finally {
+            waiting[index]--;
+        }
+
+        inFlight++;
+        laneInFlight[index]++;
+        passes[index] += strides[index];
+    }
+
+    synchronized void release(final Lane lane)
+    {
+        inFlight--;
+        laneInFlight[lane.ordinal()]--;
+        notifyAll();
+    }
+
+    synchronized void onSuccess()
+    {
+        if (limit >= maxLimit)
+            return;
+        limit = Math.min(maxLimit, limit + 1.0 / limit);
+        notifyAll();
+    }
+
+    synchronized void onThrottle()
+    {
+        final long now = System.nanoTime();
+
+        if (decreased && now - lastDecrease < DECREASE_INTERVAL)
+            return;
+
+        limit = Math.max(1.0, limit / 2.0);
+        lastDecrease = now;
+        decreased = true;
+    }
+
+    synchronized int getLimit()
+    {
+        return (int) limit;
+    }
+
+    synchronized int getInFlight()
+    {
+        return inFlight;
+    }
+
+    synchronized int getInFlight(final Lane lane)
+    {
+        return laneInFlight[lane.ordinal()];
+    }
+
+    synchronized int getWaiting(final Lane lane)
+    {
+        return waiting[lane.ordinal()];
+    }
+
+    private boolean mayRun(final int index)
+    {
+        if (inFlight >= (int) limit || laneInFlight[index] >= laneLimits[index])
+            return false;
+
+        for (int other = 0; other < LANES; other++)
+            if (other != index && waiting[other] > 0
+                && laneInFlight[other] < laneLimits[other]
+                && passes[other] < passes[index])
+                return false;
+
+        return true;
+    }
+
+    private void catchUp(final int index)
+    {
+        for (int other = 0; other < LANES; other++)
+            if (other != index
+                && (waiting[other] > 0 || laneInFlight[other] > 0))
+                passes[index] = Math.max(passes[index], passes[other]);
+    }
+}
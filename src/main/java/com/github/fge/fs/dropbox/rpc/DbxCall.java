@@ -0,0 +1,17 @@
+package com.github.fge.fs.dropbox.rpc;
+
+import com.dropbox.core.DbxException;
+
+/**
+ * A call to the DropBox API, as submitted to a {@link RequestExecutor}
+ *
+ * <p>A call may be run several times if it fails with a transient error; it
+ * should therefore not have side effects other than the API call itself.</p>
+ *
+ * @param <T> the type of the result
+ */
+public interface DbxCall<T>
+{
+    T call()
+        throws DbxException;
+}
@@ -0,0 +1,21 @@
+package com.github.fge.fs.dropbox.rpc;
+
+/**
+ * The lanes of a {@link RequestExecutor}
+ *
+ * <p>Each lane has its own concurrency limit, within the overall limit of the
+ * executor, and a weight deciding how often it goes first when calls of both
+ * lanes are waiting.</p>
+ */
+public enum Lane
+{
+    /**
+     * Short, latency sensitive calls: metadata, listings, and server side
+     * operations such as copies, moves and deletions
+     */
+    METADATA,
+    /**
+     * Transfers of file contents, and other long running calls
+     */
+    BULK
+}
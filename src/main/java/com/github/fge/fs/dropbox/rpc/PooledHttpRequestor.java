@@ -0,0 +1,328 @@
+package com.github.fge.fs.dropbox.rpc;
+
+import com.dropbox.core.http.HttpRequestor;
+import com.dropbox.core.http.SSLConfig;
+import com.dropbox.core.http.StandardHttpRequestor;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.net.ssl.HttpsURLConnection;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link HttpRequestor} with a bounded number of connections, reusing
+ * them across requests
+ *
+ * <p>Connections are made using {@link HttpURLConnection}, whose
+ * implementation keeps idle connections open for reuse. The SDK's {@link
+ * StandardHttpRequestor} defeats this for uploads, since it disconnects once
+ * the upload is over, which means a new TCP connection and TLS handshake for
+ * every chunk of an upload; this requestor only closes the response body,
+ * which hands the connection back to the pool of idle connections.</p>
+ *
+ * <p>The number of connections in use at the same time is bounded; a request
+ * for which no connection is available waits for one to be released, which
+ * happens when the response body is closed. When the SDK sends a {@code
+ * Content-Length} header, the request body is streamed instead of being
+ * buffered in memory first.</p>
+ *
+ * <p>Instances are meant to be shared by all filesystems using the same
+ * access token (see {@link
+ * com.github.fge.fs.dropbox.provider.DropBoxFileSystemRepository}). Once
+ * {@link #close() closed}, a requestor refuses new requests; idle connections
+ * are in the care of {@link HttpURLConnection}, which closes them after their
+ * keep alive timeout.</p>
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class PooledHttpRequestor
+    extends HttpRequestor
+    implements Closeable
+{
+    public static final int DEFAULT_MAX_CONNECTIONS = 16;
+    public static final int DEFAULT_CONNECT_TIMEOUT
+        = StandardHttpRequestor.DefaultConnectTimeoutMillis;
+    public static final int DEFAULT_READ_TIMEOUT
+        = StandardHttpRequestor.DefaultReadTimeoutMillis;
+
+    private static final String CONTENT_LENGTH = "Content-Length";
+
+    private final int maxConnections;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final boolean keepAlive;
+
+    private final Semaphore connections;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicInteger peakConnections = new AtomicInteger();
+
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor
+     *
+     * @param maxConnections the maximum number of connections in use at once
+     * @param connectTimeout the connect timeout, in milliseconds
+     * @param readTimeout the read timeout, in milliseconds
+     * @param keepAlive whether to keep connections open for reuse
+     */
+    public PooledHttpRequestor(final int maxConnections,
+        final int connectTimeout, final int readTimeout,
+        final boolean keepAlive)
+    {
+        if (maxConnections <= 0)
+            throw new IllegalArgumentException("number of connections must be "
+                + "strictly positive");
+        if (connectTimeout < 0 || readTimeout < 0)
+            throw new IllegalArgumentException("timeouts cannot be negative");
+        this.maxConnections = maxConnections;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.keepAlive = keepAlive;
+        connections = new Semaphore(maxConnections, true);
+    }
+
+    public int getMaxConnections()
+    {
+        return maxConnections;
+    }
+
+    public int getActiveConnections()
+    {
+        return maxConnections - connections.availablePermits();
+    }
+
+    public int getPeakConnections()
+    {
+        return peakConnections.get();
+    }
+
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    /**
+     * Get the number of requests which had to wait for a connection
+     *
+     * @return the number of requests
+     */
+    public long getWaits()
+    {
+        return waits.get();
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+    }
+
+    @Override
+    public Response doGet(final String url, final Iterable<Header> headers)
+        throws IOException
+    {
+        acquire();
+
+        try {
+            final HttpURLConnection conn = prepare(url, headers, "GET");
+            conn.connect();
+            return toResponse(conn);
+        } catch (IOException | RuntimeException e) {
+            connections.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Uploader startPost(final String url, final Iterable<Header> headers)
+        throws IOException
+    {
+        return startUpload(url, headers, "POST");
+    }
+
+    @Override
+    public Uploader startPut(final String url, final Iterable<Header> headers)
+        throws IOException
+    {
+        return startUpload(url, headers, "PUT");
+    }
+
+    private Uploader startUpload(final String url,
+        final Iterable<Header> headers, final String method)
+        throws IOException
+    {
+        acquire();
+
+        try {
+            final HttpURLConnection conn = prepare(url, headers, method);
+            conn.setDoOutput(true);
+            return new PooledUploader(conn);
+        } catch (IOException | RuntimeException e) {
+            connections.release();
+            throw e;
+        }
+    }
+
+    private void acquire()
+        throws IOException
+    {
+        if (closed)
+            throw new IOException("requestor closed");
+
+        requests.incrementAndGet();
+
+        if (!connections.tryAcquire()) {
+            waits.incrementAndGet();
+            try {
+                connections.acquire();
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting "
+                    + "for a connection");
+            }
+        }
+
+        final int active = getActiveConnections();
+        int peak;
+        do {
+            peak = peakConnections.get();
+        } while (active > peak && !peakConnections.compareAndSet(peak, active));
+    }
+
+    private HttpURLConnection prepare(final String url,
+        final Iterable<Header> headers, final String method)
+        throws IOException
+    {
+        final HttpURLConnection conn
+            = (HttpURLConnection) new URL(url).openConnection();
+
+        if (conn instanceof HttpsURLConnection)
+            SSLConfig.apply((HttpsURLConnection) conn);
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        conn.setUseCaches(false);
+        conn.setAllowUserInteraction(false);
+        conn.setRequestMethod(method);
+        if (!keepAlive)
+            conn.setRequestProperty("Connection", "close");
+
+        for (final Header header: headers) {
+            /*
+             * HttpURLConnection ignores this header; tell it the length
+             * instead, so that it streams the body
+             */
+            if (CONTENT_LENGTH.equalsIgnoreCase(header.key)) {
+                conn.setFixedLengthStreamingMode(Long.parseLong(header.value));
+                continue;
+            }
+            conn.addRequestProperty(header.key, header.value);
+        }
+
+        return conn;
+    }
+
+    private Response toResponse(final HttpURLConnection conn)
+        throws IOException
+    {
+        final int status = conn.getResponseCode();
+        InputStream body = status >= 400 ? conn.getErrorStream()
+            : conn.getInputStream();
+
+        if (body == null)
+            body = new ByteArrayInputStream(new byte[0]);
+
+        return new Response(status, new ReleasingInputStream(body),
+            conn.getHeaderFields());
+    }
+
+    /*
+     * Gives the connection back when the response body is closed
+     */
+    private final class ReleasingInputStream
+        extends FilterInputStream
+    {
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        private ReleasingInputStream(final InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            if (closed.getAndSet(true))
+                return;
+            try {
+                in.close();
+            } finally {
+                connections.release();
+            }
+        }
+    }
+
+    private final class PooledUploader
+        extends Uploader
+    {
+        private final HttpURLConnection conn;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+
+        private PooledUploader(final HttpURLConnection conn)
+            throws IOException
+        {
+            super(conn.getOutputStream());
+            this.conn = conn;
+        }
+
+        @Override
+        public void close()
+        {
+            abort();
+        }
+
+        @Override
+        public void abort()
+        {
+            /*
+             * Once finish() has been called, the connection belongs to the
+             * response body
+             */
+            if (done.getAndSet(true))
+                return;
+            conn.disconnect();
+            connections.release();
+        }
+
+        @Override
+        public Response finish()
+            throws IOException
+        {
+            if (done.getAndSet(true))
+                throw new IllegalStateException("upload already finished or "
+                    + "aborted");
+
+            try {
+                return toResponse(conn);
+            } catch (IOException | RuntimeException e) {
+                conn.disconnect();
+                connections.release();
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.github.fge.fs.dropbox.rpc;
+
+import com.dropbox.core.DbxException;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs DropBox API calls with retries and an adaptive concurrency limit
+ *
+ * <p>One instance of this class is shared by all components of a filesystem.
+ * Calls failing with a transient error (the server asking to retry later,
+ * a server error or a network error) are retried, after a delay growing
+ * exponentially with the number of attempts; the actual delay is drawn at
+ * random below this bound, so that clients throttled at the same time do not
+ * all retry at the same time. If the server said how long to wait, the delay
+ * is at least this long.</p>
+ *
+ * <p>The number of calls running at the same time is bounded by an {@link
+ * AdaptiveLimiter}, which shrinks when the server throttles requests and
+ * grows back as they succeed. Calls do not hold a slot while waiting to be
+ * retried.</p>
+ *
+ * <p>Calls are run in one of two {@link Lane}s: metadata calls, which are
+ * short and latency sensitive, and bulk transfers. Each lane has its own
+ * concurrency limit within the overall one; by default, bulk calls can only
+ * take half of the slots, so that metadata calls do not queue behind large
+ * transfers. When calls of both lanes are waiting, slots are handed out in
+ * proportion to the weights of the lanes.</p>
+ *
+ * <p>Note that calls returning a stream (downloads, uploads) only hold a slot
+ * while the request is being issued, not while the stream is in use.</p>
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class RequestExecutor
+{
+    public static final int DEFAULT_MAX_RETRIES = 5;
+    public static final long DEFAULT_BASE_DELAY = 250L;
+    public static final long DEFAULT_MAX_DELAY = 30000L;
+    public static final int DEFAULT_MAX_CONCURRENCY = 16;
+    public static final int DEFAULT_METADATA_WEIGHT = 4;
+    public static final int DEFAULT_BULK_WEIGHT = 1;
+
+    private final RetryAfterRequestor requestor;
+    private final int maxRetries;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final AdaptiveLimiter limiter;
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong throttles = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param requestor the requestor used by the client, to read {@code
+     * Retry-After} headers from; may be {@code null}
+     * @param maxRetries the default maximum number of retries of a call
+     * @param baseDelay the delay bound of the first retry, in milliseconds
+     * @param maxDelay the maximum delay bound, in milliseconds
+     * @param maxConcurrency the maximum number of calls running at once
+     */
+    public RequestExecutor(@Nullable final RetryAfterRequestor requestor,
+        final int maxRetries, final long baseDelay, final long maxDelay,
+        final int maxConcurrency)
+    {
+        this(requestor, maxRetries, baseDelay, maxDelay, maxConcurrency,
+            maxConcurrency, defaultBulkConcurrency(maxConcurrency),
+            DEFAULT_METADATA_WEIGHT, DEFAULT_BULK_WEIGHT);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param requestor the requestor used by the client, to read {@code
+     * Retry-After} headers from; may be {@code null}
+     * @param maxRetries the default maximum number of retries of a call
+     * @param baseDelay the delay bound of the first retry, in milliseconds
+     * @param maxDelay the maximum delay bound, in milliseconds
+     * @param maxConcurrency the maximum number of calls running at once
+     * @param metadataConcurrency the maximum number of calls of the {@link
+     * Lane#METADATA metadata lane} running at once
+     * @param bulkConcurrency the maximum number of calls of the {@link
+     * Lane#BULK bulk lane} running at once
+     * @param metadataWeight the weight of the metadata lane
+     * @param bulkWeight the weight of the bulk lane
+     */
+    public RequestExecutor(@Nullable final RetryAfterRequestor requestor,
+        final int maxRetries, final long baseDelay, final long maxDelay,
+        final int maxConcurrency, final int metadataConcurrency,
+        final int bulkConcurrency, final int metadataWeight,
+        final int bulkWeight)
+    {
+        if (maxRetries < 0)
+            throw new IllegalArgumentException("number of retries cannot be "
+                + "negative");
+        if (baseDelay <= 0L || maxDelay < baseDelay)
+            throw new IllegalArgumentException("invalid retry delays");
+        this.requestor = requestor;
+        this.maxRetries = maxRetries;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        limiter = new AdaptiveLimiter(maxConcurrency, metadataConcurrency,
+            bulkConcurrency, metadataWeight, bulkWeight);
+    }
+
+    /**
+     * Get the default concurrency limit of the bulk lane
+     *
+     * @param maxConcurrency the overall concurrency limit
+     * @return half of this limit, rounded up
+     */
+    public static int defaultBulkConcurrency(final int maxConcurrency)
+    {
+        return Math.max(1, (maxConcurrency + 1) / 2);
+    }
+
+    /**
+     * Create an executor with default settings
+     *
+     * @param requestor the requestor used by the client; may be {@code null}
+     * @return a new executor
+     */
+    public static RequestExecutor withDefaults(
+        @Nullable final RetryAfterRequestor requestor)
+    {
+        return new RequestExecutor(requestor, DEFAULT_MAX_RETRIES,
+            DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, DEFAULT_MAX_CONCURRENCY);
+    }
+
+    public long getRetries()
+    {
+        return retries.get();
+    }
+
+    public long getThrottles()
+    {
+        return throttles.get();
+    }
+
+    public int getConcurrencyLimit()
+    {
+        return limiter.getLimit();
+    }
+
+    public int getInFlight()
+    {
+        return limiter.getInFlight();
+    }
+
+    public int getInFlight(final Lane lane)
+    {
+        return limiter.getInFlight(lane);
+    }
+
+    /**
+     * Get the number of calls of a lane waiting for a slot
+     *
+     * @param lane the lane
+     * @return the number of calls
+     */
+    public int getQueued(final Lane lane)
+    {
+        return limiter.getWaiting(lane);
+    }
+
+    /**
+     * Run a call in the metadata lane, retrying it the default number of
+     * times
+     *
+     * @param call the call
+     * @param <T> the type of the result
+     * @return the result of the call
+     * @throws DbxException the call failed with a permanent error, or still
+     * failed after the last retry
+     */
+    public <T> T execute(final DbxCall<T> call)
+        throws DbxException
+    {
+        return execute(call, Lane.METADATA, maxRetries);
+    }
+
+    /**
+     * Run a call in a given lane, retrying it the default number of times
+     *
+     * @param call the call
+     * @param lane the lane
+     * @param <T> the type of the result
+     * @return the result of the call
+     * @throws DbxException the call failed with a permanent error, or still
+     * failed after the last retry
+     */
+    public <T> T execute(final DbxCall<T> call, final Lane lane)
+        throws DbxException
+    {
+        return execute(call, lane, maxRetries);
+    }
+
+    /**
+     * Run a call in a given lane, retrying it a given number of times
+     *
+     * <p>Use 0 for calls which cannot safely be run again, for instance
+     * because they consume a stream.</p>
+     *
+     * <p>A call waiting to be retried does not hold a slot; it goes through
+     * its lane again when retried.</p>
+     *
+     * @param call the call
+     * @param lane the lane
+     * @param maxRetries the maximum number of retries
+     * @param <T> the type of the result
+     * @return the result of the call
+     * @throws DbxException the call failed with a permanent error, or still
+     * failed after the last retry
+     */
+    public <T> T execute(final DbxCall<T> call, final Lane lane,
+        final int maxRetries)
+        throws DbxException
+    {
+        int attempt = 0;
+        T ret;
+
+        while (true) {
+            try {
+                limiter.acquire(lane);
+            } catch (InterruptedException ignored) {
+                throw interrupted();
+            }
+
+            if (requestor != null)
+                requestor.takeRetryAfter();
+
+            try {
+                ret = call.call();
+                limiter.onSuccess();
+                return ret;
+            } catch (DbxException e) {
+                final boolean throttled = isThrottle(e);
+                if (throttled) {
+                    throttles.incrementAndGet();
+                    limiter.onThrottle();
+                }
+                if (!throttled && !isTransient(e) || attempt >= maxRetries
+                    || Thread.currentThread().isInterrupted())
+                    throw e;
+            } finally {
+                limiter.release(lane);
+            }
+
+            retries.incrementAndGet();
+            sleep(delay(attempt++));
+        }
+    }
+
+    private long delay(final int attempt)
+    {
+        final long bound = baseDelay << Math.min(attempt, 30);
+        final long cap = bound <= 0L || bound > maxDelay ? maxDelay : bound;
+        final long delay = ThreadLocalRandom.current().nextLong(cap + 1L);
+        final long retryAfter = requestor == null ? -1L
+            : requestor.takeRetryAfter();
+        return Math.max(delay, retryAfter);
+    }
+
+    private static void sleep(final long millis)
+        throws DbxException
+    {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException ignored) {
+            throw interrupted();
+        }
+    }
+
+    private static DbxException interrupted()
+    {
+        Thread.currentThread().interrupt();
+        return new DbxException.NetworkIO(new InterruptedIOException());
+    }
+
+    private static boolean isThrottle(final DbxException e)
+    {
+        return e instanceof DbxException.RetryLater
+            || e instanceof DbxException.BadResponseCode
+            && ((DbxException.BadResponseCode) e).statusCode == 429;
+    }
+
+    private static boolean isTransient(final DbxException e)
+    {
+        if (e instanceof DbxException.ServerError
+            || e instanceof DbxException.NetworkIO)
+            return true;
+        if (!(e instanceof DbxException.BadResponseCode))
+            return false;
+        final int status = ((DbxException.BadResponseCode) e).statusCode;
+        return status == 502 || status == 504;
+    }
+}
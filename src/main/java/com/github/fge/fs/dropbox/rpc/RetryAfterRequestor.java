@@ -0,0 +1,147 @@
+package com.github.fge.fs.dropbox.rpc;
+
+import com.dropbox.core.http.HttpRequestor;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link HttpRequestor} remembering the {@code Retry-After} header of
+ * throttled responses
+ *
+ * <p>The DropBox SDK turns 503 and 429 responses into exceptions which do not
+ * carry the delay the server asked for. This requestor delegates all requests
+ * to another requestor, and records this delay for the calling thread so
+ * that {@link RequestExecutor} can pick it up once the call has failed.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class RetryAfterRequestor
+    extends HttpRequestor
+{
+    private static final String RETRY_AFTER = "Retry-After";
+    private static final String HTTP_DATE = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private final HttpRequestor delegate;
+
+    private final ThreadLocal<Long> retryAfter = new ThreadLocal<>();
+
+    public RetryAfterRequestor(final HttpRequestor delegate)
+    {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Get, and forget, the delay requested by the last throttled response
+     * received by the current thread
+     *
+     * @return the delay in milliseconds, or -1 if none was requested
+     */
+    public long takeRetryAfter()
+    {
+        final Long ret = retryAfter.get();
+        retryAfter.remove();
+        return ret == null ? -1L : ret;
+    }
+
+    @Override
+    public Response doGet(final String url, final Iterable<Header> headers)
+        throws IOException
+    {
+        return record(delegate.doGet(url, headers));
+    }
+
+    @Override
+    public Uploader startPost(final String url, final Iterable<Header> headers)
+        throws IOException
+    {
+        return new RecordingUploader(delegate.startPost(url, headers));
+    }
+
+    @Override
+    public Uploader startPut(final String url, final Iterable<Header> headers)
+        throws IOException
+    {
+        return new RecordingUploader(delegate.startPut(url, headers));
+    }
+
+    private Response record(final Response response)
+    {
+        if (response.statusCode != 429 && response.statusCode != 503)
+            return response;
+
+        for (final Map.Entry<String, ? extends List<String>> entry:
+            response.headers.entrySet())
+            if (RETRY_AFTER.equalsIgnoreCase(entry.getKey())
+                && !entry.getValue().isEmpty()) {
+                final long delay = parseDelay(entry.getValue().get(0));
+                if (delay >= 0L)
+                    retryAfter.set(delay);
+                break;
+            }
+
+        return response;
+    }
+
+    /*
+     * Retry-After is either a number of seconds or an HTTP date
+     */
+    private static long parseDelay(final String value)
+    {
+        final String s = value.trim();
+
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(s));
+        } catch (NumberFormatException ignored) {
+            // try a date
+        }
+
+        final SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE,
+            Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        try {
+            return Math.max(0L,
+                format.parse(s).getTime() - System.currentTimeMillis());
+        } catch (ParseException ignored) {
+            return -1L;
+        }
+    }
+
+    private final class RecordingUploader
+        extends Uploader
+    {
+        private final Uploader uploader;
+
+        private RecordingUploader(final Uploader uploader)
+        {
+            super(uploader.body);
+            this.uploader = uploader;
+        }
+
+        @Override
+        public void close()
+        {
+            uploader.close();
+        }
+
+        @Override
+        public void abort()
+        {
+            uploader.abort();
+        }
+
+        @Override
+        public Response finish()
+            throws IOException
+        {
+            return record(uploader.finish());
+        }
+    }
+}
@@ -0,0 +1,692 @@
+package com.github.fge.fs.dropbox.sync;
+
+import com.github.fge.fs.dropbox.misc.ContentHasher;
+import com.github.fge.fs.dropbox.provider.DropBoxFileSystemProvider;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One way mirroring of a local directory to a DropBox directory
+ *
+ * <p>Mirroring is done in two phases. First, {@link #plan(Path, Path)}
+ * compares both trees and computes a {@link SyncPlan}; the remote tree is
+ * read using {@link DropBoxFileSystemProvider#newTreeStream(Path)}, that is
+ * in a few API calls however large it is. Then {@link #execute(SyncPlan,
+ * SyncListener)} runs the actions of the plan on a bounded pool of threads.
+ * Computing a plan without executing it is a dry run.</p>
+ *
+ * <p>A local file is considered unchanged if it has the same size as the
+ * remote file and was not modified after it; otherwise, if the content hash
+ * of the remote file is known (see {@link
+ * DropBoxFileSystemProvider#getContentHash(Path, String)}), it is compared
+ * to the hash of the local file; hashes are looked up using the revision
+ * read along with the remote tree, which costs no API call. Files are
+ * uploaded using {@link DropBoxFileSystemProvider#uploadFile(Path, Path)},
+ * which records their hash, so that later mirrors can compare contents.</p>
+ *
+ * <p>A new local file whose size and hash match those of a remote file about
+ * to be deleted is moved on the server instead of being uploaded; this makes
+ * renames cheap, provided the file was uploaded by a previous mirror.</p>
+ *
+ * <p>Only directories and regular files are mirrored; symbolic links are not
+ * followed.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class DropBoxMirror
+{
+    public static final int DEFAULT_THREADS = 8;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static final int BUFFER_SIZE = 65536;
+
+    private final int threads;
+
+    /**
+     * Constructor
+     *
+     * @param threads the number of actions to run in parallel
+     */
+    public DropBoxMirror(final int threads)
+    {
+        if (threads <= 0)
+            throw new IllegalArgumentException("number of threads must be "
+                + "strictly positive");
+        this.threads = threads;
+    }
+
+    public DropBoxMirror()
+    {
+        this(DEFAULT_THREADS);
+    }
+
+    /**
+     * Make a DropBox directory match a local directory
+     *
+     * <p>This computes a plan and executes it.</p>
+     *
+     * @param source the local directory
+     * @param target the DropBox directory; created if it does not exist
+     * @param listener the listener, or {@code null}
+     * @return the executed plan
+     * @throws IOException see {@link #plan(Path, Path)} and {@link
+     * #execute(SyncPlan, SyncListener)}
+     */
+    public SyncPlan mirror(final Path source, final Path target,
+        @Nullable final SyncListener listener)
+        throws IOException
+    {
+        final SyncPlan plan = plan(source, target);
+        execute(plan, listener);
+        return plan;
+    }
+
+    /**
+     * Compute the actions needed to make a DropBox directory match a local
+     * directory
+     *
+     * <p>Nothing is modified, on either side.</p>
+     *
+     * @param source the local directory
+     * @param target the DropBox directory
+     * @return the plan
+     * @throws NotDirectoryException the source, or the target if it exists,
+     * is not a directory
+     * @throws ProviderMismatchException the target is not a DropBox path
+     * @throws IOException failed to read the local tree, or DropBox API error
+     */
+    public SyncPlan plan(final Path source, final Path target)
+        throws IOException
+    {
+        final DropBoxFileSystemProvider provider = providerOf(target);
+
+        if (!Files.isDirectory(source))
+            throw new NotDirectoryException(source.toString());
+
+        final SortedMap<String, Entry> local = scanLocal(source);
+        final SortedMap<String, Entry> remote = scanRemote(provider, target);
+
+        return new Planner(provider, source, target, local, remote).plan();
+    }
+
+    /**
+     * Execute a plan
+     *
+     * <p>Steps of the plan are run one after the other, the actions of each
+     * step in parallel. If an action fails, the other actions of its step
+     * are still run, but the following steps are not.</p>
+     *
+     * @param plan the plan
+     * @param listener the listener, or {@code null}
+     * @throws IOException at least one action failed; other failures are
+     * suppressed by the first one
+     */
+    public void execute(final SyncPlan plan,
+        @Nullable final SyncListener listener)
+        throws IOException
+    {
+        final DropBoxFileSystemProvider provider
+            = providerOf(plan.getTarget());
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+            new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(final Runnable r)
+                {
+                    final Thread t = new Thread(r,
+                        "dropbox-mirror-" + THREAD_COUNT.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+        try {
+            for (final List<SyncAction> step: plan.getSteps())
+                runStep(provider, executor, step, listener);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void runStep(final DropBoxFileSystemProvider provider,
+        final ExecutorService executor, final List<SyncAction> step,
+        @Nullable final SyncListener listener)
+        throws IOException
+    {
+        final List<Future<Void>> futures = new ArrayList<>(step.size());
+
+        for (final SyncAction action: step)
+            futures.add(executor.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                    throws IOException
+                {
+                    perform(provider, action, listener);
+                    return null;
+                }
+            }));
+
+        IOException failure = null;
+
+        for (final Future<Void> future: futures)
+            try {
+                future.get();
+            } catch (InterruptedException ignored) {
+                for (final Future<Void> f: futures)
+                    f.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while "
+                    + "mirroring");
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (failure == null)
+                    failure = cause instanceof IOException
+                        ? (IOException) cause : new IOException(cause);
+                else
+                    failure.addSuppressed(cause);
+            }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    private static void perform(final DropBoxFileSystemProvider provider,
+        final SyncAction action, @Nullable final SyncListener listener)
+        throws IOException
+    {
+        final Path target = action.getTarget();
+
+        try {
+            switch (action.getType()) {
+                case DELETE:
+                    provider.deleteTree(target);
+                    break;
+                case CREATE_DIRECTORY:
+                    Files.createDirectory(target);
+                    break;
+                case MOVE:
+                    //noinspection ConstantConditions
+                    Files.move(action.getSource(), target);
+                    break;
+                case UPLOAD:
+                    //noinspection ConstantConditions
+                    provider.uploadFile(action.getSource(), target);
+                    break;
+            }
+        } catch (IOException e) {
+            if (listener != null)
+                listener.failed(action, e);
+            throw e;
+        }
+
+        if (listener != null)
+            listener.completed(action);
+    }
+
+    private static DropBoxFileSystemProvider providerOf(final Path path)
+    {
+        final FileSystemProvider provider = path.getFileSystem().provider();
+
+        if (!(provider instanceof DropBoxFileSystemProvider))
+            throw new ProviderMismatchException(path + " is not a DropBox "
+                + "path");
+        return (DropBoxFileSystemProvider) provider;
+    }
+
+    private static SortedMap<String, Entry> scanLocal(final Path source)
+        throws IOException
+    {
+        final SortedMap<String, Entry> ret = new TreeMap<>();
+
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir,
+                final BasicFileAttributes attrs)
+            {
+                if (!dir.equals(source))
+                    add(dir, attrs);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file,
+                final BasicFileAttributes attrs)
+            {
+                if (attrs.isRegularFile())
+                    add(file, attrs);
+                return FileVisitResult.CONTINUE;
+            }
+
+            private void add(final Path path, final BasicFileAttributes attrs)
+            {
+                final Entry entry = new Entry(path, relative(source, path),
+                    attrs, null);
+                ret.put(entry.key, entry);
+            }
+        });
+
+        return ret;
+    }
+
+    /*
+     * Returns null if the target does not exist
+     */
+    @Nullable
+    private static SortedMap<String, Entry> scanRemote(
+        final DropBoxFileSystemProvider provider, final Path target)
+        throws IOException
+    {
+        final BasicFileAttributes attrs;
+
+        try {
+            attrs = Files.readAttributes(target, BasicFileAttributes.class);
+        } catch (NoSuchFileException ignored) {
+            return null;
+        }
+
+        if (!attrs.isDirectory())
+            throw new NotDirectoryException(target.toString());
+
+        final SortedMap<String, Entry> ret = new TreeMap<>();
+        BasicFileAttributes entryAttrs;
+        String rev;
+        Entry entry;
+
+        try (
+            final DirectoryStream<Path> stream
+                = provider.newTreeStream(target);
+        ) {
+            /*
+             * The stream keeps the metadata of the entries it returns until
+             * it moves on: read everything needed from it right away, this
+             * costs no API call
+             */
+            for (final Path path: stream) {
+                entryAttrs = Files.readAttributes(path,
+                    BasicFileAttributes.class);
+                rev = entryAttrs.isDirectory() ? null
+                    : (String) Files.readAttributes(path, "dropbox:rev")
+                        .get("rev");
+                entry = new Entry(path, relative(target, path), entryAttrs,
+                    rev);
+                ret.put(entry.key, entry);
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+
+        return ret;
+    }
+
+    /*
+     * Relative path, with "/" as a separator whatever the filesystem
+     */
+    private static String relative(final Path base, final Path path)
+    {
+        final StringBuilder sb = new StringBuilder();
+
+        for (final Path name: base.relativize(path)) {
+            if (sb.length() > 0)
+                sb.append('/');
+            sb.append(name);
+        }
+
+        return sb.toString();
+    }
+
+    private static String hash(final Path file)
+        throws IOException
+    {
+        final ContentHasher hasher = new ContentHasher();
+        final byte[] buf = new byte[BUFFER_SIZE];
+        int count;
+
+        try (
+            final InputStream in = Files.newInputStream(file);
+        ) {
+            while ((count = in.read(buf)) != -1)
+                hasher.update(buf, 0, count);
+        }
+
+        return hasher.digest();
+    }
+
+    private static final class Entry
+    {
+        private final Path path;
+        private final String relative;
+        /*
+         * DropBox paths are case insensitive
+         */
+        private final String key;
+        private final boolean directory;
+        private final long size;
+        /*
+         * In seconds; DropBox only has this precision
+         */
+        private final long modified;
+        /*
+         * Revision of remote files, as read along with the tree
+         */
+        @Nullable
+        private final String rev;
+
+        private Entry(final Path path, final String relative,
+            final BasicFileAttributes attrs, @Nullable final String rev)
+        {
+            this.path = path;
+            this.relative = relative;
+            key = relative.toLowerCase(Locale.ROOT);
+            directory = attrs.isDirectory();
+            size = directory ? 0L : attrs.size();
+            modified = attrs.lastModifiedTime().to(TimeUnit.SECONDS);
+            this.rev = rev;
+        }
+    }
+
+    private static final class Planner
+    {
+        private final DropBoxFileSystemProvider provider;
+        private final Path source;
+        private final Path target;
+        private final SortedMap<String, Entry> local;
+        @Nullable
+        private final SortedMap<String, Entry> remote;
+
+        private final List<SyncAction> conflicts = new ArrayList<>();
+        private final SortedMap<Integer, List<SyncAction>> directories
+            = new TreeMap<>();
+        private final List<SyncAction> moves = new ArrayList<>();
+        private final List<SyncAction> uploads = new ArrayList<>();
+        private final List<SyncAction> deletes = new ArrayList<>();
+
+        /*
+         * Keys of remote entries deleted because in the way of local ones
+         */
+        private final Set<String> replaced = new HashSet<>();
+        private final List<Entry> created = new ArrayList<>();
+        private int unchanged = 0;
+
+        private Planner(final DropBoxFileSystemProvider provider,
+            final Path source, final Path target,
+            final SortedMap<String, Entry> local,
+            @Nullable final SortedMap<String, Entry> remote)
+        {
+            this.provider = provider;
+            this.source = source;
+            this.target = target;
+            this.local = local;
+            this.remote = remote;
+        }
+
+        private SyncPlan plan()
+            throws IOException
+        {
+            final SortedMap<String, Entry> others = remote == null
+                ? new TreeMap<String, Entry>() : remote;
+
+            if (remote == null)
+                addDirectory(target, 0);
+
+            for (final Entry entry: local.values())
+                compare(entry, others.remove(entry.key));
+
+            final Set<String> moved = planMoves(others);
+
+            for (final Entry entry: others.values())
+                if (!moved.contains(entry.key) && !hasDeletedParent(others,
+                    entry.key))
+                    deletes.add(SyncAction.delete(entry.path));
+
+            final List<List<SyncAction>> steps = new ArrayList<>();
+            steps.add(conflicts);
+            steps.addAll(directories.values());
+            steps.add(moves);
+            steps.add(uploads);
+            steps.add(deletes);
+
+            return new SyncPlan(source, target, steps, unchanged);
+        }
+
+        private void compare(final Entry entry, @Nullable final Entry other)
+            throws IOException
+        {
+            Entry existing = other;
+
+            if (existing != null && existing.directory != entry.directory) {
+                conflicts.add(SyncAction.delete(existing.path));
+                replaced.add(existing.key);
+                existing = null;
+            }
+
+            if (entry.directory) {
+                if (existing == null)
+                    addDirectory(target.resolve(entry.relative),
+                        depth(entry.key));
+                return;
+            }
+
+            if (existing == null)
+                created.add(entry);
+            else if (isChanged(entry, existing))
+                uploads.add(SyncAction.upload(entry.path, existing.path,
+                    entry.size));
+            else
+                unchanged++;
+        }
+
+        private boolean isChanged(final Entry entry, final Entry existing)
+            throws IOException
+        {
+            if (entry.size != existing.size)
+                return true;
+            if (entry.modified <= existing.modified)
+                return false;
+
+            final String hash = contentHash(existing);
+            return hash == null || !hash.equals(hash(entry.path));
+        }
+
+        /*
+         * Content hash of the revision read along with the tree; this costs
+         * no API call, unlike looking the file up again
+         */
+        @Nullable
+        private String contentHash(final Entry existing)
+            throws IOException
+        {
+            return existing.rev == null ? null
+                : provider.getContentHash(existing.path, existing.rev);
+        }
+
+        /*
+         * Plan the moves of files to be deleted to the place of new files
+         * with the same contents, and the uploads of the other new files;
+         * returns the keys of the moved files
+         */
+        private Set<String> planMoves(final SortedMap<String, Entry> others)
+            throws IOException
+        {
+            final Map<Long, List<Candidate>> candidates
+                = findCandidates(others);
+
+            if (candidates.isEmpty()) {
+                for (final Entry entry: created)
+                    uploads.add(SyncAction.upload(entry.path,
+                        target.resolve(entry.relative), entry.size));
+                return Collections.emptySet();
+            }
+
+            final Set<String> moved = new HashSet<>();
+            List<Candidate> list;
+            Iterator<Candidate> iterator;
+            Candidate candidate;
+            String hash;
+            Path to;
+
+            for (final Entry entry: created) {
+                to = target.resolve(entry.relative);
+                list = candidates.get(entry.size);
+                if (list != null) {
+                    hash = hash(entry.path);
+                    iterator = list.iterator();
+                    while (iterator.hasNext()) {
+                        candidate = iterator.next();
+                        if (!candidate.hash.equals(hash))
+                            continue;
+                        iterator.remove();
+                        moved.add(candidate.entry.key);
+                        moves.add(SyncAction.move(candidate.entry.path, to,
+                            entry.size));
+                        to = null;
+                        break;
+                    }
+                }
+                if (to != null)
+                    uploads.add(SyncAction.upload(entry.path, to,
+                        entry.size));
+            }
+
+            return moved;
+        }
+
+        /*
+         * Remote files to be deleted, with a known hash and the same size as
+         * a new file, by size
+         */
+        private Map<Long, List<Candidate>> findCandidates(
+            final SortedMap<String, Entry> others)
+            throws IOException
+        {
+            final Map<Long, List<Candidate>> ret = new HashMap<>();
+
+            if (created.isEmpty() || others.isEmpty())
+                return ret;
+
+            final Set<Long> sizes = new HashSet<>();
+            for (final Entry entry: created)
+                sizes.add(entry.size);
+
+            String hash;
+            List<Candidate> list;
+
+            for (final Entry entry: others.values()) {
+                if (entry.directory || !sizes.contains(entry.size))
+                    continue;
+                // deleted before moves are run
+                if (hasReplacedParent(entry.key))
+                    continue;
+                hash = contentHash(entry);
+                if (hash == null)
+                    continue;
+                list = ret.get(entry.size);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    ret.put(entry.size, list);
+                }
+                list.add(new Candidate(entry, hash));
+            }
+
+            return ret;
+        }
+
+        private void addDirectory(final Path path, final int depth)
+        {
+            List<SyncAction> list = directories.get(depth);
+
+            if (list == null) {
+                list = new ArrayList<>();
+                directories.put(depth, list);
+            }
+
+            list.add(SyncAction.createDirectory(path));
+        }
+
+        private boolean hasDeletedParent(final Map<String, Entry> others,
+            final String key)
+        {
+            String parent = key;
+            int index;
+
+            while ((index = parent.lastIndexOf('/')) > 0) {
+                parent = parent.substring(0, index);
+                if (others.containsKey(parent) || replaced.contains(parent))
+                    return true;
+            }
+
+            return false;
+        }
+
+        private boolean hasReplacedParent(final String key)
+        {
+            String parent = key;
+            int index;
+
+            while ((index = parent.lastIndexOf('/')) > 0) {
+                parent = parent.substring(0, index);
+                if (replaced.contains(parent))
+                    return true;
+            }
+
+            return false;
+        }
+
+        private static int depth(final String key)
+        {
+            int ret = 1;
+
+            for (int i = 0; i < key.length(); i++)
+                if (key.charAt(i) == '/')
+                    ret++;
+
+            return ret;
+        }
+    }
+
+    private static final class Candidate
+    {
+        private final Entry entry;
+        private final String hash;
+
+        private Candidate(final Entry entry, final String hash)
+        {
+            this.entry = entry;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.fge.fs.dropbox.sync;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.Immutable;
+import java.nio.file.Path;
+
+/**
+ * One action of a {@link SyncPlan}
+ *
+ * <p>The target of an action is always a path on DropBox. The source is the
+ * local file to upload for {@link Type#UPLOAD}, the DropBox path to move from
+ * for {@link Type#MOVE}, and {@code null} otherwise.</p>
+ */
+@Immutable
+@ParametersAreNonnullByDefault
+public final class SyncAction
+{
+    public enum Type
+    {
+        /**
+         * Delete a file or a whole directory
+         */
+        DELETE,
+        /**
+         * Create a directory
+         */
+        CREATE_DIRECTORY,
+        /**
+         * Move a file on the server, instead of uploading it again
+         */
+        MOVE,
+        /**
+         * Upload a local file
+         */
+        UPLOAD
+    }
+
+    private final Type type;
+    @Nullable
+    private final Path source;
+    private final Path target;
+    private final long size;
+
+    private SyncAction(final Type type, @Nullable final Path source,
+        final Path target, final long size)
+    {
+        this.type = type;
+        this.source = source;
+        this.target = target;
+        this.size = size;
+    }
+
+    static SyncAction delete(final Path target)
+    {
+        return new SyncAction(Type.DELETE, null, target, 0L);
+    }
+
+    static SyncAction createDirectory(final Path target)
+    {
+        return new SyncAction(Type.CREATE_DIRECTORY, null, target, 0L);
+    }
+
+    static SyncAction move(final Path source, final Path target,
+        final long size)
+    {
+        return new SyncAction(Type.MOVE, source, target, size);
+    }
+
+    static SyncAction upload(final Path source, final Path target,
+        final long size)
+    {
+        return new SyncAction(Type.UPLOAD, source, target, size);
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    @Nullable
+    public Path getSource()
+    {
+        return source;
+    }
+
+    public Path getTarget()
+    {
+        return target;
+    }
+
+    /**
+     * Get the size of the file uploaded or moved by this action
+     *
+     * @return the size, in bytes; 0 for other actions
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    @Override
+    public String toString()
+    {
+        switch (type) {
+            case DELETE:
+                return "delete " + target;
+            case CREATE_DIRECTORY:
+                return "mkdir " + target;
+            case MOVE:
+                return "move " + source + " -> " + target;
+            default:
+                return "upload " + source + " -> " + target + " (" + size
+                    + " bytes)";
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.github.fge.fs.dropbox.sync;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+
+/**
+ * Receives the progress of the execution of a {@link SyncPlan}
+ *
+ * <p>Methods are called from the threads running the actions, and therefore
+ * must be thread safe. Totals to compute the progress against are available
+ * from the plan ({@link SyncPlan#size()}, {@link SyncPlan#getUploadSize()}).
+ * </p>
+ *
+ * @see DropBoxMirror#execute(SyncPlan, SyncListener)
+ */
+@ParametersAreNonnullByDefault
+public interface SyncListener
+{
+    /**
+     * Called when an action succeeded
+     *
+     * @param action the action
+     */
+    void completed(SyncAction action);
+
+    /**
+     * Called when an action failed
+     *
+     * @param action the action
+     * @param failure the failure
+     */
+    void failed(SyncAction action, IOException failure);
+}
@@ -0,0 +1,139 @@
+package com.github.fge.fs.dropbox.sync;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.Immutable;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The actions needed to make a DropBox directory match a local directory
+ *
+ * <p>A plan is computed by {@link DropBoxMirror#plan(Path, Path)} and run by
+ * {@link DropBoxMirror#execute(SyncPlan, SyncListener)}; on its own, it is a
+ * dry run of the mirror operation: {@link #toString()} lists what would be
+ * done, one action per line.</p>
+ *
+ * <p>Actions are grouped in steps, run one after the other; the actions of a
+ * step are independent from one another and run in parallel. Steps are, in
+ * order: deletion of entries in the way of new ones (a file where a directory
+ * is needed, or the reverse), creation of directories (one step per depth),
+ * server side moves, uploads, and finally deletion of entries which no longer
+ * exist locally.</p>
+ */
+@Immutable
+@ParametersAreNonnullByDefault
+public final class SyncPlan
+{
+    private final Path source;
+    private final Path target;
+    private final List<List<SyncAction>> steps;
+    private final List<SyncAction> actions;
+    private final long uploadSize;
+    private final int unchanged;
+
+    SyncPlan(final Path source, final Path target,
+        final List<List<SyncAction>> steps, final int unchanged)
+    {
+        this.source = source;
+        this.target = target;
+        this.unchanged = unchanged;
+
+        final List<List<SyncAction>> list = new ArrayList<>(steps.size());
+        final List<SyncAction> all = new ArrayList<>();
+        long size = 0L;
+
+        for (final List<SyncAction> step: steps) {
+            if (step.isEmpty())
+                continue;
+            list.add(Collections.unmodifiableList(
+                new ArrayList<>(step)));
+            for (final SyncAction action: step) {
+                all.add(action);
+                if (action.getType() == SyncAction.Type.UPLOAD)
+                    size += action.getSize();
+            }
+        }
+
+        this.steps = Collections.unmodifiableList(list);
+        actions = Collections.unmodifiableList(all);
+        uploadSize = size;
+    }
+
+    public Path getSource()
+    {
+        return source;
+    }
+
+    public Path getTarget()
+    {
+        return target;
+    }
+
+    /**
+     * Get all actions of this plan, in the order of their steps
+     *
+     * @return an unmodifiable list
+     */
+    public List<SyncAction> getActions()
+    {
+        return actions;
+    }
+
+    /**
+     * Get the number of actions of this plan
+     *
+     * @return the number of actions
+     */
+    public int size()
+    {
+        return actions.size();
+    }
+
+    public boolean isEmpty()
+    {
+        return actions.isEmpty();
+    }
+
+    /**
+     * Get the total number of bytes uploaded by this plan
+     *
+     * @return the number of bytes
+     */
+    public long getUploadSize()
+    {
+        return uploadSize;
+    }
+
+    /**
+     * Get the number of files found to be identical on both sides
+     *
+     * @return the number of files
+     */
+    public int getUnchanged()
+    {
+        return unchanged;
+    }
+
+    List<List<SyncAction>> getSteps()
+    {
+        return steps;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder sb = new StringBuilder();
+
+        sb.append("mirror ").append(source).append(" -> ").append(target)
+            .append(": ").append(actions.size()).append(" action(s), ")
+            .append(uploadSize).append(" byte(s) to upload, ")
+            .append(unchanged).append(" file(s) unchanged");
+
+        for (final SyncAction action: actions)
+            sb.append('\n').append(action);
+
+        return sb.toString();
+    }
+}
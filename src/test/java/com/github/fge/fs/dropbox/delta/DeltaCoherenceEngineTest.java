@@ -0,0 +1,222 @@
+package com.github.fge.fs.dropbox.delta;
+
+import com.dropbox.core.DbxDelta;
+import com.dropbox.core.DbxEntry;
+import com.github.fge.fs.dropbox.cache.MetadataCache;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class DeltaCoherenceEngineTest
+{
+    private static final long TTL = 60000L;
+
+    private FakeDeltaSource source;
+    private MetadataCache cache;
+    private DeltaCoherenceEngine engine;
+
+    @BeforeMethod
+    public void init()
+        throws Exception
+    {
+        source = new FakeDeltaSource();
+        cache = new MetadataCache(MetadataCache.DEFAULT_SIZE, TTL,
+            MetadataCache.DEFAULT_ABSENT_SIZE,
+            MetadataCache.DEFAULT_ABSENT_TTL);
+        engine = new DeltaCoherenceEngine(source, cache, TTL, 30, null);
+    }
+
+    @Test
+    public void firstSyncStartsFromLatestCursor()
+        throws Exception
+    {
+        assertThat(engine.sync()).isEqualTo(0);
+        assertThat(engine.getCursor()).isEqualTo(FakeDeltaSource.LATEST);
+        assertThat(source.requested).isEmpty();
+    }
+
+    @Test
+    public void pagesAreFollowedUntilNoMoreChanges()
+        throws Exception
+    {
+        engine.sync();
+        source.addPage(false, true);
+        source.addPage(false, false);
+
+        engine.sync();
+
+        assertThat(source.requested).containsExactly(FakeDeltaSource.LATEST,
+            "cursor1");
+        assertThat(engine.getCursor()).isEqualTo("cursor2");
+    }
+
+    @Test
+    public void resetClearsTheCache()
+        throws Exception
+    {
+        engine.sync();
+        cache.put("/foo", file("/foo", "1"));
+        source.addPage(true, false);
+
+        engine.sync();
+
+        assertThat(cache.get("/foo")).isNull();
+    }
+
+    @Test
+    public void deletionInvalidatesTree()
+        throws Exception
+    {
+        engine.sync();
+        cache.put("/dir", folder("/dir"));
+        cache.put("/dir/foo", file("/dir/foo", "1"));
+        cache.put("/other", file("/other", "1"));
+        source.addPage(false, false, new DbxDelta.Entry<DbxEntry>("/dir",
+            null));
+
+        assertThat(engine.sync()).isEqualTo(1);
+
+        assertThat(cache.get("/dir")).isNull();
+        assertThat(cache.get("/dir/foo")).isNull();
+        assertThat(cache.get("/other")).isNotNull();
+    }
+
+    @Test
+    public void changeReplacesCachedEntryOnly()
+        throws Exception
+    {
+        engine.sync();
+        cache.put("/Foo", file("/Foo", "1"));
+        final DbxEntry changed = file("/Foo", "2");
+        final DbxEntry unknown = file("/bar", "1");
+        source.addPage(false, false,
+            new DbxDelta.Entry<>("/foo", changed),
+            new DbxDelta.Entry<>("/bar", unknown));
+
+        engine.sync();
+
+        assertThat(cache.get("/Foo")).isSameAs(changed);
+        assertThat(cache.get("/bar")).isNull();
+    }
+
+    @Test
+    public void changesOfUnknownPathsDoNotBlockLookups()
+        throws Exception
+    {
+        engine.sync();
+        final long generation = cache.generation();
+        source.addPage(false, false,
+            new DbxDelta.Entry<>("/bar", file("/bar", "1")));
+
+        engine.sync();
+
+        assertThat(cache.generation()).isEqualTo(generation);
+    }
+
+    @Test
+    public void entriesOutliveTheirTtlWhileSynced()
+        throws Exception
+    {
+        cache = new MetadataCache(MetadataCache.DEFAULT_SIZE, 1L, 0, 0L);
+        engine = new DeltaCoherenceEngine(source, cache, TTL, 30, null);
+        final DbxEntry entry = file("/foo", "1");
+
+        engine.sync();
+        cache.put("/foo", entry);
+        Thread.sleep(20L);
+
+        assertThat(cache.get("/foo")).isSameAs(entry);
+    }
+
+    @Test
+    public void entriesExpireOnceTooStale()
+        throws Exception
+    {
+        cache = new MetadataCache(MetadataCache.DEFAULT_SIZE, 1L, 0, 0L);
+        engine = new DeltaCoherenceEngine(source, cache, 10L, 30, null);
+
+        engine.sync();
+        cache.put("/foo", file("/foo", "1"));
+        Thread.sleep(50L);
+
+        assertThat(cache.get("/foo")).isNull();
+    }
+
+    @Test
+    public void staleEntriesAreServedAgainOnceSynced()
+        throws Exception
+    {
+        cache = new MetadataCache(MetadataCache.DEFAULT_SIZE, 1L, 0, 0L);
+        engine = new DeltaCoherenceEngine(source, cache, 30L, 30, null);
+        final DbxEntry entry = file("/foo", "1");
+
+        engine.sync();
+        cache.put("/foo", entry);
+        Thread.sleep(50L);
+        cache.markSynced(System.nanoTime());
+
+        assertThat(cache.get("/foo")).isSameAs(entry);
+    }
+
+    private static DbxEntry file(final String path, final String rev)
+    {
+        final Date date = new Date();
+        return new DbxEntry.File(path, "page_white", false, 1L, "1 byte",
+            date, date, rev);
+    }
+
+    private static DbxEntry folder(final String path)
+    {
+        return new DbxEntry.Folder(path, "folder", false);
+    }
+
+    private static final class FakeDeltaSource
+        implements DeltaSource
+    {
+        private static final String LATEST = "latest";
+
+        private final Queue<DbxDelta<DbxEntry>> pages = new ArrayDeque<>();
+        private final List<String> requested = new ArrayList<>();
+        private int count = 0;
+
+        @SafeVarargs
+        private final void addPage(final boolean reset, final boolean hasMore,
+            final DbxDelta.Entry<DbxEntry>... entries)
+        {
+            pages.add(new DbxDelta<>(reset, Arrays.asList(entries),
+                "cursor" + ++count, hasMore));
+        }
+
+        @Override
+        public String getLatestCursor()
+        {
+            return LATEST;
+        }
+
+        @Override
+        public DbxDelta<DbxEntry> getDelta(final String cursor)
+        {
+            requested.add(cursor);
+            final DbxDelta<DbxEntry> page = pages.poll();
+            return page != null ? page : new DbxDelta<>(false,
+                Collections.<DbxDelta.Entry<DbxEntry>>emptyList(), cursor,
+                false);
+        }
+
+        @Override
+        public LongpollResult longpoll(final String cursor,
+            final int timeoutSeconds)
+        {
+            return LongpollResult.NO_CHANGES;
+        }
+    }
+}